@@ -0,0 +1,48 @@
+package org.komamitsu.fluency.jdk21;
+
+import org.komamitsu.fluency.util.ExecutorFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+// Runs all the threads of Fluency on virtual threads. Registered with ServiceLoader,
+// so it's used just by adding this module to the classpath
+public class VirtualThreadExecutorFactory
+        implements ExecutorFactory
+{
+    private final ThreadFactory threadFactory = Thread.ofVirtual().name("fluency-", 0).factory();
+
+    @Override
+    public ExecutorService newSingleThreadExecutor()
+    {
+        // Still single threaded since the callers rely on the tasks running one by one
+        return Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    @Override
+    public ExecutorService newFixedThreadPool(int nThreads)
+    {
+        // The callers submit at most `nThreads` tasks at once
+        return Executors.newThreadPerTaskExecutor(threadFactory);
+    }
+
+    @Override
+    public ScheduledExecutorService newSingleThreadScheduledExecutor()
+    {
+        return Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    @Override
+    public boolean isBlockingReadOnCallerPreferred()
+    {
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "VirtualThreadExecutorFactory{}";
+    }
+}
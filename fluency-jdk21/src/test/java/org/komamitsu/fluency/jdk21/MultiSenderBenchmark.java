@@ -0,0 +1,162 @@
+package org.komamitsu.fluency.jdk21;
+
+import org.komamitsu.fluency.sender.MultiSender;
+import org.komamitsu.fluency.sender.Sender;
+import org.komamitsu.fluency.sender.TCPSender;
+import org.komamitsu.fluency.sender.heartbeat.TCPHeartbeater;
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorFactory;
+import org.komamitsu.fluency.util.PlatformExecutorFactory;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ImmutableArrayValue;
+import org.msgpack.value.Value;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Compares platform threads and virtual threads with a MultiSender of 50 nodes, each of which has a heartbeater.
+// Prints the number of platform threads and the latency of sends in ack response mode
+public class MultiSenderBenchmark
+{
+    private static final int NODE_COUNT = 50;
+    private static final int SEND_COUNT = 20000;
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+        for (int i = 0; i < NODE_COUNT; i++) {
+            serverSockets.add(startAckServer());
+        }
+        try {
+            // Warm up once, then measure each
+            run("warmup", new PlatformExecutorFactory(), serverSockets);
+            run("platform", new PlatformExecutorFactory(), serverSockets);
+            run("virtual", new VirtualThreadExecutorFactory(), serverSockets);
+        }
+        finally {
+            for (ServerSocket serverSocket : serverSockets) {
+                serverSocket.close();
+            }
+        }
+    }
+
+    private static void run(String label, ExecutorFactory executorFactory, List<ServerSocket> serverSockets)
+            throws Exception
+    {
+        ExecutorFactories.setDefault(executorFactory);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        int baseThreadCount = threadMXBean.getThreadCount();
+        threadMXBean.resetPeakThreadCount();
+
+        List<Sender.Instantiator> senderConfigs = new ArrayList<Sender.Instantiator>();
+        for (ServerSocket serverSocket : serverSockets) {
+            senderConfigs.add(new TCPSender.Config()
+                    .setPort(serverSocket.getLocalPort())
+                    .setHeartbeaterConfig(new TCPHeartbeater.Config().setPort(serverSocket.getLocalPort()).setIntervalMillis(500)));
+        }
+        MultiSender sender = new MultiSender.Config(senderConfigs).createInstance();
+        // Let the heartbeaters run a few times
+        TimeUnit.SECONDS.sleep(2);
+        int threadCount = threadMXBean.getThreadCount() - baseThreadCount;
+
+        byte[] header = packHeader("bench.tag", 64);
+        ByteBuffer payload = ByteBuffer.allocate(64);
+        long[] latencies = new long[SEND_COUNT];
+        for (int i = 0; i < SEND_COUNT; i++) {
+            long start = System.nanoTime();
+            sender.sendWithAck(Arrays.asList(ByteBuffer.wrap(header), payload.duplicate()), ("token" + i).getBytes(StandardCharsets.UTF_8));
+            latencies[i] = System.nanoTime() - start;
+        }
+        int peakThreadCount = threadMXBean.getPeakThreadCount() - baseThreadCount;
+        sender.close(1, TimeUnit.SECONDS);
+
+        Arrays.sort(latencies);
+        System.out.printf("%-8s nodes=%d, platformThreads=%d, peakPlatformThreads=%d, p50=%dus, p99=%dus, max=%dus%n",
+                label, NODE_COUNT, threadCount, peakThreadCount,
+                TimeUnit.NANOSECONDS.toMicros(latencies[SEND_COUNT / 2]),
+                TimeUnit.NANOSECONDS.toMicros(latencies[SEND_COUNT * 99 / 100]),
+                TimeUnit.NANOSECONDS.toMicros(latencies[SEND_COUNT - 1]));
+    }
+
+    private static byte[] packHeader(String tag, int payloadSize)
+            throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MessagePacker packer = MessagePack.newDefaultPacker(outputStream);
+        packer.packArrayHeader(3);
+        packer.packString(tag);
+        packer.packBinaryHeader(payloadSize);
+        packer.flush();
+        return outputStream.toByteArray();
+    }
+
+    // Accepts connections on virtual threads so that the server doesn't affect the platform thread count
+    private static ServerSocket startAckServer()
+            throws IOException
+    {
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread.ofVirtual().start(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread.ofVirtual().start(() -> handleConnection(socket));
+                }
+                catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        return serverSocket;
+    }
+
+    private static void handleConnection(Socket socket)
+    {
+        try (Socket s = socket;
+                MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(s.getInputStream())) {
+            OutputStream outputStream = s.getOutputStream();
+            while (unpacker.hasNext()) {
+                ImmutableArrayValue message = unpacker.unpackValue().asArrayValue();
+                if (message.size() < 3) {
+                    continue;
+                }
+                for (Map.Entry<Value, Value> entry : message.get(2).asMapValue().entrySet()) {
+                    if (entry.getKey().asStringValue().asString().equals("chunk")) {
+                        outputStream.write(packAck(entry.getValue().asBinaryValue().asByteArray()));
+                        outputStream.flush();
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // Disconnected
+        }
+    }
+
+    private static byte[] packAck(byte[] token)
+            throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        MessagePacker packer = MessagePack.newDefaultPacker(outputStream);
+        packer.packMapHeader(1);
+        packer.packString("ack");
+        packer.packBinaryHeader(token.length);
+        packer.writePayload(token);
+        packer.flush();
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,457 @@
+package org.komamitsu.fluency;
+
+import org.komamitsu.fluency.buffer.PackedForwardBuffer;
+import org.komamitsu.fluency.sender.MultiSender;
+import org.komamitsu.fluency.sender.RetryableSender;
+import org.komamitsu.fluency.sender.Sender;
+import org.komamitsu.fluency.sender.TCPSender;
+import org.komamitsu.fluency.sender.retry.ExponentialBackOffRetryStrategy;
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorServiceUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Sends the chunks left in backup directories to Fluentd without starting the application. It's the entry point
+// of the shadow jar. The chunks are sent over parallel connections, directly from memory mapped files, and
+// each file is removed once the chunk is sent (acked in ack response mode)
+public class BackupDrainer
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BackupDrainer.class);
+    private static final long IDLE_WAIT_MILLIS = 100;
+    private final Config config;
+
+    private BackupDrainer(Config config)
+    {
+        this.config = config;
+    }
+
+    public Result drain()
+            throws InterruptedException
+    {
+        final PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setFileBackupDirs(config.getBackupDirs())
+                .setFileBackupPrefix(config.getFileBackupPrefix())
+                .setFileBackupSegmentEnabled(config.isFileBackupSegmentEnabled())
+                .setLazyBackupRecovery(true)
+                .setAckResponseMode(config.isAckResponseMode())
+                .setBacklogReplayBytesPerSecond(config.getMaxBytesPerSecond())
+                .createInstance();
+        final long startTimeMillis = System.currentTimeMillis();
+        final int initialChunkCount = buffer.getSpilledChunkCount();
+        final long initialSize = buffer.getBacklogSize();
+        LOG.info("Draining backup files: chunks={}, size={}, config={}", initialChunkCount, initialSize, config);
+
+        ScheduledExecutorService progressReporter = ExecutorFactories.getDefault().newSingleThreadScheduledExecutor();
+        progressReporter.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                reportProgress(buffer, initialChunkCount, initialSize, startTimeMillis);
+            }
+        }, config.getProgressIntervalMillis(), config.getProgressIntervalMillis(), TimeUnit.MILLISECONDS);
+
+        final AtomicInteger failedWorkers = new AtomicInteger();
+        ExecutorService workers = ExecutorFactories.getDefault().newFixedThreadPool(config.getConnections());
+        try {
+            for (int i = 0; i < config.getConnections(); i++) {
+                workers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (!drainWithConnection(buffer)) {
+                            failedWorkers.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                LOG.trace("Waiting for workers");
+            }
+        }
+        finally {
+            ExecutorServiceUtils.finishExecutorService(workers);
+            ExecutorServiceUtils.finishExecutorService(progressReporter);
+        }
+        reportProgress(buffer, initialChunkCount, initialSize, startTimeMillis);
+
+        Result result = new Result(
+                initialChunkCount - buffer.getSpilledChunkCount(),
+                initialSize - buffer.getBacklogSize(),
+                buffer.getSpilledChunkCount(),
+                failedWorkers.get(),
+                System.currentTimeMillis() - startTimeMillis);
+        // Chunks which couldn't be sent stay in the backup directories
+        buffer.close();
+        return result;
+    }
+
+    // Returns false if it gave up sending chunks
+    private boolean drainWithConnection(PackedForwardBuffer buffer)
+    {
+        Sender sender = createSender();
+        try {
+            while (!Thread.currentThread().isInterrupted() && buffer.getSpilledChunkCount() > 0) {
+                long backlogSize = buffer.getBacklogSize();
+                buffer.flush(sender, true);
+                if (buffer.getBacklogSize() == backlogSize) {
+                    // Throttled, or other connections are sending the rest
+                    TimeUnit.MILLISECONDS.sleep(IDLE_WAIT_MILLIS);
+                }
+            }
+            return true;
+        }
+        catch (IOException e) {
+            LOG.error("Failed to send chunks. Giving up this connection: sender=" + sender, e);
+            return false;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally {
+            try {
+                sender.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to close the sender: sender=" + sender, e);
+            }
+        }
+    }
+
+    private Sender createSender()
+    {
+        List<Sender.Instantiator> tcpSenderConfigs = new ArrayList<Sender.Instantiator>();
+        for (InetSocketAddress server : config.getServers()) {
+            tcpSenderConfigs.add(new TCPSender.Config().setHost(server.getHostName()).setPort(server.getPort()));
+        }
+        Sender.Instantiator baseSenderConfig =
+                tcpSenderConfigs.size() == 1 ? tcpSenderConfigs.get(0) : new MultiSender.Config(tcpSenderConfigs);
+        return new RetryableSender.Config(baseSenderConfig)
+                .setRetryStrategyConfig(new ExponentialBackOffRetryStrategy.Config().setMaxRetryCount(config.getMaxRetryCount()))
+                .createInstance();
+    }
+
+    private void reportProgress(PackedForwardBuffer buffer, int initialChunkCount, long initialSize, long startTimeMillis)
+    {
+        long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTimeMillis);
+        long sentSize = initialSize - buffer.getBacklogSize();
+        String progress = String.format("Sent %d/%d chunks, %d/%d bytes (%.1f KB/s), remaining=%d bytes, eta=%d ms",
+                initialChunkCount - buffer.getSpilledChunkCount(), initialChunkCount, sentSize, initialSize,
+                sentSize / 1024.0 * 1000 / elapsedMillis, buffer.getBacklogSize(), buffer.getBacklogDrainEtaMillis());
+        LOG.info(progress);
+        if (config.getProgressOutput() != null) {
+            config.getProgressOutput().println(progress);
+        }
+    }
+
+    public static class Result
+    {
+        private final int sentChunkCount;
+        private final long sentSize;
+        private final int remainingChunkCount;
+        private final int failedConnectionCount;
+        private final long elapsedMillis;
+
+        Result(int sentChunkCount, long sentSize, int remainingChunkCount, int failedConnectionCount, long elapsedMillis)
+        {
+            this.sentChunkCount = sentChunkCount;
+            this.sentSize = sentSize;
+            this.remainingChunkCount = remainingChunkCount;
+            this.failedConnectionCount = failedConnectionCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getSentChunkCount()
+        {
+            return sentChunkCount;
+        }
+
+        public long getSentSize()
+        {
+            return sentSize;
+        }
+
+        public int getRemainingChunkCount()
+        {
+            return remainingChunkCount;
+        }
+
+        public int getFailedConnectionCount()
+        {
+            return failedConnectionCount;
+        }
+
+        public long getElapsedMillis()
+        {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Result{" +
+                    "sentChunkCount=" + sentChunkCount +
+                    ", sentSize=" + sentSize +
+                    ", remainingChunkCount=" + remainingChunkCount +
+                    ", failedConnectionCount=" + failedConnectionCount +
+                    ", elapsedMillis=" + elapsedMillis +
+                    '}';
+        }
+    }
+
+    public static class Config
+    {
+        private List<String> backupDirs = new ArrayList<String>();
+        private String fileBackupPrefix;
+        private boolean fileBackupSegmentEnabled = false;
+        private List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        private int connections = 4;
+        private boolean ackResponseMode = false;
+        private long maxBytesPerSecond = 0;
+        private int maxRetryCount = 7;
+        private int progressIntervalMillis = 10000;
+        private PrintStream progressOutput;
+
+        public List<String> getBackupDirs()
+        {
+            return backupDirs;
+        }
+
+        public Config setBackupDirs(List<String> backupDirs)
+        {
+            this.backupDirs = backupDirs;
+            return this;
+        }
+
+        public String getFileBackupPrefix()
+        {
+            return fileBackupPrefix;
+        }
+
+        public Config setFileBackupPrefix(String fileBackupPrefix)
+        {
+            this.fileBackupPrefix = fileBackupPrefix;
+            return this;
+        }
+
+        public boolean isFileBackupSegmentEnabled()
+        {
+            return fileBackupSegmentEnabled;
+        }
+
+        public Config setFileBackupSegmentEnabled(boolean fileBackupSegmentEnabled)
+        {
+            this.fileBackupSegmentEnabled = fileBackupSegmentEnabled;
+            return this;
+        }
+
+        public List<InetSocketAddress> getServers()
+        {
+            return servers;
+        }
+
+        // Chunks are sent through MultiSender if multiple servers are given
+        public Config setServers(List<InetSocketAddress> servers)
+        {
+            this.servers = servers;
+            return this;
+        }
+
+        public int getConnections()
+        {
+            return connections;
+        }
+
+        public Config setConnections(int connections)
+        {
+            this.connections = connections;
+            return this;
+        }
+
+        public boolean isAckResponseMode()
+        {
+            return ackResponseMode;
+        }
+
+        public Config setAckResponseMode(boolean ackResponseMode)
+        {
+            this.ackResponseMode = ackResponseMode;
+            return this;
+        }
+
+        public long getMaxBytesPerSecond()
+        {
+            return maxBytesPerSecond;
+        }
+
+        // 0 means unlimited
+        public Config setMaxBytesPerSecond(long maxBytesPerSecond)
+        {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
+        public int getMaxRetryCount()
+        {
+            return maxRetryCount;
+        }
+
+        public Config setMaxRetryCount(int maxRetryCount)
+        {
+            this.maxRetryCount = maxRetryCount;
+            return this;
+        }
+
+        public int getProgressIntervalMillis()
+        {
+            return progressIntervalMillis;
+        }
+
+        public Config setProgressIntervalMillis(int progressIntervalMillis)
+        {
+            this.progressIntervalMillis = progressIntervalMillis;
+            return this;
+        }
+
+        public PrintStream getProgressOutput()
+        {
+            return progressOutput;
+        }
+
+        // Progress is also printed here besides the log
+        public Config setProgressOutput(PrintStream progressOutput)
+        {
+            this.progressOutput = progressOutput;
+            return this;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Config{" +
+                    "backupDirs=" + backupDirs +
+                    ", fileBackupPrefix='" + fileBackupPrefix + '\'' +
+                    ", fileBackupSegmentEnabled=" + fileBackupSegmentEnabled +
+                    ", servers=" + servers +
+                    ", connections=" + connections +
+                    ", ackResponseMode=" + ackResponseMode +
+                    ", maxBytesPerSecond=" + maxBytesPerSecond +
+                    ", maxRetryCount=" + maxRetryCount +
+                    ", progressIntervalMillis=" + progressIntervalMillis +
+                    '}';
+        }
+
+        public BackupDrainer createInstance()
+        {
+            if (backupDirs.isEmpty()) {
+                throw new IllegalArgumentException("At least one backup directory is required: config=" + this);
+            }
+            if (connections <= 0) {
+                throw new IllegalArgumentException("`connections` should be positive: config=" + this);
+            }
+            if (servers.isEmpty()) {
+                servers = new ArrayList<InetSocketAddress>();
+                servers.add(new InetSocketAddress("127.0.0.1", 24224));
+            }
+            return new BackupDrainer(this);
+        }
+    }
+
+    private static final String USAGE =
+            "Usage: java -jar fluency-shadow.jar --backup-dir DIR [--backup-dir DIR ...] [options]\n" +
+            "Options:\n" +
+            "  --server HOST:PORT               Fluentd to send chunks to. Repeatable (default: 127.0.0.1:24224)\n" +
+            "  --connections N                  The number of parallel connections (default: 4)\n" +
+            "  --ack                            Remove each file only after the chunk is acked\n" +
+            "  --segments                       Read backup segments as well\n" +
+            "  --prefix PREFIX                  `fileBackupPrefix` of the application\n" +
+            "  --max-bytes-per-second N         Bandwidth limit (default: unlimited)\n" +
+            "  --max-retry-count N              Retries per chunk before giving up a connection (default: 7)\n" +
+            "  --progress-interval-seconds N    Interval of progress reports (default: 10)\n";
+
+    // Returns null if the arguments are invalid
+    static Config parseArgs(String[] args)
+    {
+        Config config = new Config().setProgressOutput(System.err);
+        List<String> backupDirs = new ArrayList<String>();
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--ack")) {
+                    config.setAckResponseMode(true);
+                    continue;
+                }
+                if (arg.equals("--segments")) {
+                    config.setFileBackupSegmentEnabled(true);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    return null;
+                }
+                String value = args[++i];
+                if (arg.equals("--backup-dir")) {
+                    backupDirs.add(value);
+                }
+                else if (arg.equals("--server")) {
+                    int colon = value.lastIndexOf(':');
+                    if (colon <= 0) {
+                        return null;
+                    }
+                    servers.add(new InetSocketAddress(value.substring(0, colon), Integer.parseInt(value.substring(colon + 1))));
+                }
+                else if (arg.equals("--connections")) {
+                    config.setConnections(Integer.parseInt(value));
+                }
+                else if (arg.equals("--prefix")) {
+                    config.setFileBackupPrefix(value);
+                }
+                else if (arg.equals("--max-bytes-per-second")) {
+                    config.setMaxBytesPerSecond(Long.parseLong(value));
+                }
+                else if (arg.equals("--max-retry-count")) {
+                    config.setMaxRetryCount(Integer.parseInt(value));
+                }
+                else if (arg.equals("--progress-interval-seconds")) {
+                    config.setProgressIntervalMillis(Integer.parseInt(value) * 1000);
+                }
+                else {
+                    return null;
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        if (backupDirs.isEmpty()) {
+            return null;
+        }
+        return config.setBackupDirs(backupDirs).setServers(servers);
+    }
+
+    public static void main(String[] args)
+            throws InterruptedException
+    {
+        Config config = parseArgs(args);
+        if (config == null) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        Result result = config.createInstance().drain();
+        System.out.println(result);
+        System.exit(result.getRemainingChunkCount() == 0 ? 0 : 1);
+    }
+}
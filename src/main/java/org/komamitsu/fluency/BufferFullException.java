@@ -9,4 +9,11 @@ public class BufferFullException
     {
         super(s);
     }
+
+    @Override
+    public synchronized Throwable fillInStackTrace()
+    {
+        // This can be thrown for every emit() while the buffer is full. Skip capturing the stack trace since it's costly
+        return this;
+    }
 }
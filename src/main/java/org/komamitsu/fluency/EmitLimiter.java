@@ -0,0 +1,252 @@
+package org.komamitsu.fluency;
+
+import org.komamitsu.fluency.util.TagMatcher;
+import org.komamitsu.fluency.util.TokenBucket;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sheds events per tag at the beginning of Fluency#emit() before they are serialized
+public class EmitLimiter
+{
+    private final Map<String, Rule> samplingRules = new LinkedHashMap<String, Rule>();
+    private final Map<String, Rule> rateLimitRules = new LinkedHashMap<String, Rule>();
+    private final TagMatcher<Rule> samplers;
+    private final TagMatcher<Rule> rateLimiters;
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final Random random = new Random();
+    private final Config config;
+
+    private EmitLimiter(Config config)
+    {
+        this.config = config;
+        for (Map.Entry<String, Double> entry : config.getSamplingRates().entrySet()) {
+            Rule rule = new Rule();
+            rule.samplingRate = entry.getValue();
+            samplingRules.put(entry.getKey(), rule);
+        }
+        for (Map.Entry<String, Double> entry : config.getRateLimits().entrySet()) {
+            Rule rule = new Rule();
+            rule.tokenBucket = new TokenBucket(entry.getValue(), burstSize(entry.getValue()));
+            rateLimitRules.put(entry.getKey(), rule);
+        }
+        samplers = new TagMatcher<Rule>(samplingRules);
+        rateLimiters = new TagMatcher<Rule>(rateLimitRules);
+    }
+
+    private double burstSize(double eventsPerSecond)
+    {
+        return Math.max(1, eventsPerSecond * config.getBurstSeconds());
+    }
+
+    public boolean tryAcquire(String tag)
+    {
+        Rule sampler = samplers.match(tag);
+        if (sampler != null) {
+            if (!sample(sampler)) {
+                sampler.rejectedCount.incrementAndGet();
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        Rule rateLimiter = rateLimiters.match(tag);
+        if (rateLimiter != null) {
+            if (!rateLimiter.tokenBucket.tryAcquire()) {
+                rateLimiter.rejectedCount.incrementAndGet();
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            rateLimiter.acceptedCount.incrementAndGet();
+        }
+
+        // Counted only after the event passes both of them
+        if (sampler != null) {
+            sampler.acceptedCount.incrementAndGet();
+        }
+        acceptedCount.incrementAndGet();
+        return true;
+    }
+
+    private boolean sample(Rule sampler)
+    {
+        double samplingRate = sampler.samplingRate;
+        if (samplingRate >= 1) {
+            return true;
+        }
+        if (config.isDeterministicSampling()) {
+            // Accepts exactly `samplingRate` of the events at regular intervals
+            long seq = sampler.sequence.incrementAndGet();
+            return (long) (seq * samplingRate) != (long) ((seq - 1) * samplingRate);
+        }
+        synchronized (random) {
+            return random.nextDouble() < samplingRate;
+        }
+    }
+
+    private Rule getRule(Map<String, Rule> rules, String tagPattern)
+    {
+        Rule rule = rules.get(tagPattern);
+        if (rule == null) {
+            throw new IllegalArgumentException("Unknown tag pattern: " + tagPattern);
+        }
+        return rule;
+    }
+
+    public void setSamplingRate(String tagPattern, double samplingRate)
+    {
+        getRule(samplingRules, tagPattern).samplingRate = samplingRate;
+    }
+
+    public double getSamplingRate(String tagPattern)
+    {
+        return getRule(samplingRules, tagPattern).samplingRate;
+    }
+
+    public void setRateLimit(String tagPattern, double eventsPerSecond)
+    {
+        getRule(rateLimitRules, tagPattern).tokenBucket.setRate(eventsPerSecond, burstSize(eventsPerSecond));
+    }
+
+    public double getRateLimit(String tagPattern)
+    {
+        return getRule(rateLimitRules, tagPattern).tokenBucket.getRate();
+    }
+
+    public long getAcceptedCount()
+    {
+        return acceptedCount.get();
+    }
+
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    public long getSamplingRejectedCount(String tagPattern)
+    {
+        return getRule(samplingRules, tagPattern).rejectedCount.get();
+    }
+
+    public long getSamplingAcceptedCount(String tagPattern)
+    {
+        return getRule(samplingRules, tagPattern).acceptedCount.get();
+    }
+
+    public long getRateLimitRejectedCount(String tagPattern)
+    {
+        return getRule(rateLimitRules, tagPattern).rejectedCount.get();
+    }
+
+    public long getRateLimitAcceptedCount(String tagPattern)
+    {
+        return getRule(rateLimitRules, tagPattern).acceptedCount.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EmitLimiter{" +
+                "samplingRules=" + samplingRules +
+                ", rateLimitRules=" + rateLimitRules +
+                ", acceptedCount=" + acceptedCount +
+                ", rejectedCount=" + rejectedCount +
+                ", config=" + config +
+                '}';
+    }
+
+    private static class Rule
+    {
+        private final AtomicLong acceptedCount = new AtomicLong();
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private final AtomicLong sequence = new AtomicLong();
+        private volatile double samplingRate;
+        private TokenBucket tokenBucket;
+
+        @Override
+        public String toString()
+        {
+            return "Rule{" +
+                    "acceptedCount=" + acceptedCount +
+                    ", rejectedCount=" + rejectedCount +
+                    ", samplingRate=" + samplingRate +
+                    ", tokenBucket=" + tokenBucket +
+                    '}';
+        }
+    }
+
+    public static class Config
+    {
+        private Map<String, Double> samplingRates = Collections.emptyMap();
+        private Map<String, Double> rateLimits = Collections.emptyMap();
+        private boolean deterministicSampling = false;
+        private double burstSeconds = 1.0;
+
+        public Map<String, Double> getSamplingRates()
+        {
+            return samplingRates;
+        }
+
+        // Key: tag pattern (e.g. "debug.**"), Value: ratio of events to keep (0.0 - 1.0)
+        public Config setSamplingRates(Map<String, Double> samplingRates)
+        {
+            this.samplingRates = samplingRates;
+            return this;
+        }
+
+        public Map<String, Double> getRateLimits()
+        {
+            return rateLimits;
+        }
+
+        // Key: tag pattern (e.g. "debug.**"), Value: max events per second shared by tags matching the pattern
+        public Config setRateLimits(Map<String, Double> rateLimits)
+        {
+            this.rateLimits = rateLimits;
+            return this;
+        }
+
+        public boolean isDeterministicSampling()
+        {
+            return deterministicSampling;
+        }
+
+        public Config setDeterministicSampling(boolean deterministicSampling)
+        {
+            this.deterministicSampling = deterministicSampling;
+            return this;
+        }
+
+        public double getBurstSeconds()
+        {
+            return burstSeconds;
+        }
+
+        // How many seconds worth of events can be emitted at once after an idle period
+        public Config setBurstSeconds(double burstSeconds)
+        {
+            this.burstSeconds = burstSeconds;
+            return this;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Config{" +
+                    "samplingRates=" + samplingRates +
+                    ", rateLimits=" + rateLimits +
+                    ", deterministicSampling=" + deterministicSampling +
+                    ", burstSeconds=" + burstSeconds +
+                    '}';
+        }
+
+        public EmitLimiter createInstance()
+        {
+            return new EmitLimiter(this);
+        }
+    }
+}
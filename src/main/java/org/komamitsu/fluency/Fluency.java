@@ -1,7 +1,10 @@
 package org.komamitsu.fluency;
 
 import org.komamitsu.fluency.buffer.Buffer;
+import org.komamitsu.fluency.buffer.BufferPressureListener;
 import org.komamitsu.fluency.buffer.PackedForwardBuffer;
+import org.komamitsu.fluency.buffer.SharedMemoryBudget;
+import org.komamitsu.fluency.flusher.AdaptiveFlushPolicy;
 import org.komamitsu.fluency.flusher.AsyncFlusher;
 import org.komamitsu.fluency.flusher.Flusher;
 import org.komamitsu.fluency.sender.SenderErrorHandler;
@@ -22,7 +25,10 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Fluency
         implements Flushable, Closeable
@@ -30,6 +36,7 @@ public class Fluency
     private static final Logger LOG = LoggerFactory.getLogger(Fluency.class);
     private final Buffer buffer;
     private final Flusher flusher;
+    private final EmitLimiter emitLimiter;
     private final Emitter emitter = new Emitter();
 
     public static Fluency defaultFluency(String host, int port, Config config)
@@ -57,20 +64,44 @@ public class Fluency
                 bufferConfig.setChunkRetentionSize(config.getBufferChunkRetentionSize());
             }
 
+            if (config.getMaxCoalescedWriteSize() != null) {
+                bufferConfig.setMaxCoalescedWriteSize(config.getMaxCoalescedWriteSize());
+            }
+
+            if (config.getMessageModeTagPatterns() != null) {
+                bufferConfig.setMessageModeTagPatterns(config.getMessageModeTagPatterns());
+            }
+
             bufferConfig.setAckResponseMode(config.isAckResponseMode());
 
             if (config.getFileBackupDir() != null) {
                 bufferConfig.setFileBackupDir(config.getFileBackupDir());
             }
 
+            if (config.getFileBackupDirs() != null) {
+                bufferConfig.setFileBackupDirs(config.getFileBackupDirs());
+            }
+
             if (config.getJvmHeapBufferMode() != null) {
                 bufferConfig.setJvmHeapBufferMode(config.jvmHeapBufferMode);
             }
 
+            if (config.getSharedMemoryBudget() != null) {
+                bufferConfig.setSharedMemoryBudget(config.getSharedMemoryBudget());
+            }
+
+            if (config.getSharedMemoryReservation() != null) {
+                bufferConfig.setSharedMemoryReservation(config.getSharedMemoryReservation());
+            }
+
             if (config.getFlushIntervalMillis() != null) {
                 flusherConfig.setFlushIntervalMillis(config.getFlushIntervalMillis());
             }
 
+            if (config.getAdaptiveFlushPolicyConfig() != null) {
+                flusherConfig.setAdaptiveFlushPolicyConfig(config.getAdaptiveFlushPolicyConfig());
+            }
+
             if (config.getWaitUntilBufferFlushed() != null) {
                 flusherConfig.setWaitUntilBufferFlushed(config.getWaitUntilBufferFlushed());
             }
@@ -93,11 +124,16 @@ public class Fluency
             }
         }
 
+        if (config != null && config.getFlushWorkerCount() != null) {
+            flusherConfig.setFlushWorkerCount(config.getFlushWorkerCount()).setWorkerSenderConfig(senderConfig);
+        }
+
         RetryableSender retryableSender = senderConfig.createInstance();
 
         return new Fluency.Builder(retryableSender)
                 .setBufferConfig(bufferConfig)
                 .setFlusherConfig(flusherConfig)
+                .setEmitLimiterConfig(config != null ? config.getEmitLimiterConfig() : null)
                 .build();
     }
 
@@ -154,10 +190,11 @@ public class Fluency
         return defaultFluency(servers, null);
     }
 
-    private Fluency(Buffer buffer, Flusher flusher)
+    private Fluency(Buffer buffer, Flusher flusher, EmitLimiter emitLimiter)
     {
         this.buffer = buffer;
         this.flusher = flusher;
+        this.emitLimiter = emitLimiter;
     }
 
     private interface Append
@@ -168,9 +205,13 @@ public class Fluency
 
     private class Emitter
     {
-        void emit(Append appender)
+        void emit(String tag, Append appender)
                 throws IOException
         {
+            if (emitLimiter != null && !emitLimiter.tryAcquire(tag)) {
+                return;
+            }
+
             try {
                 appender.append();
                 flusher.onUpdate();
@@ -186,7 +227,7 @@ public class Fluency
     public void emit(final String tag, final long timestamp, final Map<String, Object> data)
             throws IOException
     {
-        emitter.emit(new Append()
+        emitter.emit(tag, new Append()
         {
             @Override
             public void append()
@@ -206,7 +247,7 @@ public class Fluency
     public void emit(final String tag, final EventTime eventTime, final Map<String, Object> data)
             throws IOException
     {
-        emitter.emit(new Append()
+        emitter.emit(tag, new Append()
         {
             @Override
             public void append()
@@ -220,7 +261,7 @@ public class Fluency
     public void emit(final String tag, final long timestamp, final byte[] mapValue, final int offset, final int len)
             throws IOException
     {
-        emitter.emit(new Append()
+        emitter.emit(tag, new Append()
         {
             @Override
             public void append()
@@ -240,7 +281,7 @@ public class Fluency
     public void emit(final String tag, final EventTime eventTime, final byte[] mapValue, final int offset, final int len)
             throws IOException
     {
-        emitter.emit(new Append()
+        emitter.emit(tag, new Append()
         {
             @Override
             public void append()
@@ -254,7 +295,7 @@ public class Fluency
     public void emit(final String tag, final long timestamp, final ByteBuffer mapValue)
             throws IOException
     {
-        emitter.emit(new Append()
+        emitter.emit(tag, new Append()
         {
             @Override
             public void append()
@@ -274,7 +315,7 @@ public class Fluency
     public void emit(final String tag, final EventTime eventTime, final ByteBuffer mapValue)
             throws IOException
     {
-        emitter.emit(new Append()
+        emitter.emit(tag, new Append()
         {
             @Override
             public void append()
@@ -299,6 +340,13 @@ public class Fluency
         flusher.close();
     }
 
+    // Sends as much buffered data as possible until the deadline and saves the rest with the file backup if it's enabled
+    public void close(long timeout, TimeUnit unit)
+            throws IOException
+    {
+        flusher.close(timeout, unit);
+    }
+
     public void clearBackupFiles()
     {
         buffer.clearBackupFiles();
@@ -314,38 +362,70 @@ public class Fluency
         return buffer.getBufferedDataSize();
     }
 
+    // Max buffer size shrunk according to the JVM's available memory
+    public long getEffectiveMaxBufferSize()
+    {
+        return buffer.getMaxSize();
+    }
+
+    public long getFlushLagMillis()
+    {
+        return buffer.getFlushLagMillis();
+    }
+
+    public long getBacklogSize()
+    {
+        return buffer.getBacklogSize();
+    }
+
+    public long getBacklogDrainEtaMillis()
+    {
+        return buffer.getBacklogDrainEtaMillis();
+    }
+
+    public void addBufferPressureListener(BufferPressureListener listener)
+    {
+        buffer.addPressureListener(listener);
+    }
+
+    public void removeBufferPressureListener(BufferPressureListener listener)
+    {
+        buffer.removePressureListener(listener);
+    }
+
     public boolean isTerminated()
     {
         return flusher.isTerminated();
     }
 
+    // Returns a future which completes when all the events emitted before this call have been sent
+    public Future<Void> flushBarrier()
+    {
+        return buffer.createFlushBarrier();
+    }
+
     public boolean waitUntilAllBufferFlushed(int maxWaitSeconds)
             throws InterruptedException
     {
-        int intervalMilli = 500;
-        for (int i = 0; i < maxWaitSeconds * (1000 / intervalMilli); i++) {
-            long bufferedDataSize = getBufferedDataSize();
-            LOG.info("Waiting for flushing all buffer: {}", bufferedDataSize);
-            if (getBufferedDataSize() == 0) {
-                return true;
-            }
-            TimeUnit.MILLISECONDS.sleep(intervalMilli);
+        try {
+            flushBarrier().get(maxWaitSeconds, TimeUnit.SECONDS);
+            return true;
+        }
+        catch (ExecutionException e) {
+            LOG.warn("Failed to flush all buffer", e.getCause());
+            return false;
+        }
+        catch (TimeoutException e) {
+            LOG.warn("Buffered data still remains: {}", getBufferedDataSize());
+            return false;
         }
-        LOG.warn("Buffered data still remains: {}", getBufferedDataSize());
-        return false;
     }
 
     public boolean waitUntilFlusherTerminated(int maxWaitSeconds)
             throws InterruptedException
     {
-        int intervalMilli = 500;
-        for (int i = 0; i < maxWaitSeconds * (1000 / intervalMilli); i++) {
-            boolean terminated = isTerminated();
-            LOG.info("Waiting until the flusher is terminated: {}", terminated);
-            if (terminated) {
-                return true;
-            }
-            TimeUnit.MILLISECONDS.sleep(intervalMilli);
+        if (flusher.waitUntilTerminated(maxWaitSeconds, TimeUnit.SECONDS)) {
+            return true;
         }
         LOG.warn("The flusher isn't terminated");
         return false;
@@ -361,12 +441,18 @@ public class Fluency
         return flusher;
     }
 
+    public EmitLimiter getEmitLimiter()
+    {
+        return emitLimiter;
+    }
+
     @Override
     public String toString()
     {
         return "Fluency{" +
                 "buffer=" + buffer +
                 ", flusher=" + flusher +
+                ", emitLimiter=" + emitLimiter +
                 '}';
     }
 
@@ -375,6 +461,7 @@ public class Fluency
         private final Sender sender;
         private Buffer.Instantiator bufferConfig;
         private Flusher.Instantiator flusherConfig;
+        private EmitLimiter.Config emitLimiterConfig;
 
         public Builder(Sender sender)
         {
@@ -393,6 +480,12 @@ public class Fluency
             return this;
         }
 
+        public Builder setEmitLimiterConfig(EmitLimiter.Config emitLimiterConfig)
+        {
+            this.emitLimiterConfig = emitLimiterConfig;
+            return this;
+        }
+
         public Fluency build()
         {
             Buffer.Instantiator bufferConfig = this.bufferConfig != null ? this.bufferConfig : new PackedForwardBuffer.Config();
@@ -400,7 +493,9 @@ public class Fluency
             Flusher.Instantiator flusherConfig = this.flusherConfig != null ? this.flusherConfig : new AsyncFlusher.Config();
             Flusher flusher = flusherConfig.createInstance(buffer, sender);
 
-            return new Fluency(buffer, flusher);
+            EmitLimiter emitLimiter = emitLimiterConfig != null ? emitLimiterConfig.createInstance() : null;
+
+            return new Fluency(buffer, flusher, emitLimiter);
         }
     }
 
@@ -412,13 +507,22 @@ public class Fluency
 
         private Integer bufferChunkRetentionSize;
 
+        private Integer maxCoalescedWriteSize;
+
+        private List<String> messageModeTagPatterns;
+
         private Integer flushIntervalMillis;
 
+        private AdaptiveFlushPolicy.Config adaptiveFlushPolicyConfig;
+
+        private Integer flushWorkerCount;
+
         private Integer senderMaxRetryCount;
 
         private boolean ackResponseMode;
 
         private String fileBackupDir;
+        private List<String> fileBackupDirs;
 
         private Integer waitUntilBufferFlushed;
 
@@ -428,6 +532,12 @@ public class Fluency
 
         private SenderErrorHandler senderErrorHandler;
 
+        private EmitLimiter.Config emitLimiterConfig;
+
+        private SharedMemoryBudget sharedMemoryBudget;
+
+        private Long sharedMemoryReservation;
+
         public Long getMaxBufferSize()
         {
             return maxBufferSize;
@@ -472,6 +582,53 @@ public class Fluency
             return this;
         }
 
+        public AdaptiveFlushPolicy.Config getAdaptiveFlushPolicyConfig()
+        {
+            return adaptiveFlushPolicyConfig;
+        }
+
+        public Config setAdaptiveFlushPolicyConfig(AdaptiveFlushPolicy.Config adaptiveFlushPolicyConfig)
+        {
+            this.adaptiveFlushPolicyConfig = adaptiveFlushPolicyConfig;
+            return this;
+        }
+
+        public Integer getMaxCoalescedWriteSize()
+        {
+            return maxCoalescedWriteSize;
+        }
+
+        // Chunks of different tags are sent together in one write up to this size
+        public Config setMaxCoalescedWriteSize(Integer maxCoalescedWriteSize)
+        {
+            this.maxCoalescedWriteSize = maxCoalescedWriteSize;
+            return this;
+        }
+
+        public List<String> getMessageModeTagPatterns()
+        {
+            return messageModeTagPatterns;
+        }
+
+        // Events of these tags are sent one by one as soon as possible instead of being packed into chunks
+        public Config setMessageModeTagPatterns(List<String> messageModeTagPatterns)
+        {
+            this.messageModeTagPatterns = messageModeTagPatterns;
+            return this;
+        }
+
+        public Integer getFlushWorkerCount()
+        {
+            return flushWorkerCount;
+        }
+
+        // Each flush worker has its own connection
+        public Config setFlushWorkerCount(Integer flushWorkerCount)
+        {
+            this.flushWorkerCount = flushWorkerCount;
+            return this;
+        }
+
         public Integer getSenderMaxRetryCount()
         {
             return senderMaxRetryCount;
@@ -505,6 +662,17 @@ public class Fluency
             return this;
         }
 
+        public List<String> getFileBackupDirs()
+        {
+            return fileBackupDirs;
+        }
+
+        public Config setFileBackupDirs(List<String> fileBackupDirs)
+        {
+            this.fileBackupDirs = fileBackupDirs;
+            return this;
+        }
+
         public Integer getWaitUntilBufferFlushed()
         {
             return waitUntilBufferFlushed;
@@ -549,6 +717,40 @@ public class Fluency
             return this;
         }
 
+        public EmitLimiter.Config getEmitLimiterConfig()
+        {
+            return emitLimiterConfig;
+        }
+
+        public Config setEmitLimiterConfig(EmitLimiter.Config emitLimiterConfig)
+        {
+            this.emitLimiterConfig = emitLimiterConfig;
+            return this;
+        }
+
+        public SharedMemoryBudget getSharedMemoryBudget()
+        {
+            return sharedMemoryBudget;
+        }
+
+        // Share the same instance among Fluency instances in a JVM to bound their total buffer size
+        public Config setSharedMemoryBudget(SharedMemoryBudget sharedMemoryBudget)
+        {
+            this.sharedMemoryBudget = sharedMemoryBudget;
+            return this;
+        }
+
+        public Long getSharedMemoryReservation()
+        {
+            return sharedMemoryReservation;
+        }
+
+        public Config setSharedMemoryReservation(Long sharedMemoryReservation)
+        {
+            this.sharedMemoryReservation = sharedMemoryReservation;
+            return this;
+        }
+
         @Override
         public String toString()
         {
@@ -556,14 +758,22 @@ public class Fluency
                     "maxBufferSize=" + maxBufferSize +
                     ", bufferChunkInitialSize=" + bufferChunkInitialSize +
                     ", bufferChunkRetentionSize=" + bufferChunkRetentionSize +
+                    ", maxCoalescedWriteSize=" + maxCoalescedWriteSize +
+                    ", messageModeTagPatterns=" + messageModeTagPatterns +
                     ", flushIntervalMillis=" + flushIntervalMillis +
+                    ", adaptiveFlushPolicyConfig=" + adaptiveFlushPolicyConfig +
+                    ", flushWorkerCount=" + flushWorkerCount +
                     ", senderMaxRetryCount=" + senderMaxRetryCount +
                     ", ackResponseMode=" + ackResponseMode +
                     ", fileBackupDir='" + fileBackupDir + '\'' +
+                    ", fileBackupDirs=" + fileBackupDirs +
                     ", waitUntilBufferFlushed=" + waitUntilBufferFlushed +
                     ", waitUntilFlusherTerminated=" + waitUntilFlusherTerminated +
                     ", jvmHeapBufferMode=" + jvmHeapBufferMode +
                     ", senderErrorHandler=" + senderErrorHandler +
+                    ", emitLimiterConfig=" + emitLimiterConfig +
+                    ", sharedMemoryBudget=" + sharedMemoryBudget +
+                    ", sharedMemoryReservation=" + sharedMemoryReservation +
                     '}';
         }
     }
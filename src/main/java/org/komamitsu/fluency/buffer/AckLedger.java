@@ -0,0 +1,414 @@
+package org.komamitsu.fluency.buffer;
+
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorServiceUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Chunks sent in ack response mode and not settled yet, so that the ones in flight at crash are resent with
+// their original chunk ids. The ledger has only the chunk ids and the tags, and the data of each chunk is written
+// to its own file once. Both are forced to the disk periodically (group commit).
+// The ledger is truncated whenever no chunk is outstanding, so it stays small
+class AckLedger
+        implements Closeable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(AckLedger.class);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String FILENAME_PREFIX = "ack_ledger";
+    private static final String EXT_FILENAME = ".log";
+    private static final String EXT_CHUNK_FILENAME = ".chunk";
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final byte RECORD_TYPE_ADD = 1;
+    private static final byte RECORD_TYPE_REMOVE = 2;
+    private final File dir;
+    private final String chunkFilenamePrefix;
+    private final File file;
+    private final Map<String, Entry> outstandingEntries = new LinkedHashMap<String, Entry>();
+    private final List<Entry> recoveredEntries = new ArrayList<Entry>();
+    // Chunk files written since the last force
+    private List<File> unforcedChunkFiles = new ArrayList<File>();
+    private final ScheduledExecutorService executorService = ExecutorFactories.getDefault().newSingleThreadScheduledExecutor();
+    private final FileChannel channel;
+    private long size;
+    private boolean unforced;
+    private boolean closed;
+
+    AckLedger(File dir, String prefix, int forceIntervalMillis)
+            throws IOException
+    {
+        this.dir = dir;
+        String filenamePrefix = FILENAME_PREFIX + (prefix == null ? "" : "_" + prefix);
+        this.chunkFilenamePrefix = filenamePrefix + "_";
+        this.file = new File(dir, filenamePrefix + EXT_FILENAME);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        recover();
+        removeUnusedChunkFiles();
+
+        executorService.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    force();
+                }
+                catch (Throwable e) {
+                    LOG.error("Failed to force the ack ledger: ackLedger=" + AckLedger.this, e);
+                }
+            }
+        }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void recover()
+            throws IOException
+    {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        // Length and checksum of the data of each chunk
+        Map<String, int[]> chunkDigests = new LinkedHashMap<String, int[]>();
+        while (buffer.hasRemaining()) {
+            int position = buffer.position();
+            if (!readRecord(buffer, chunkDigests)) {
+                LOG.warn("Found a broken record. Skipping the rest of the ack ledger: file={}, position={}", file, position);
+                break;
+            }
+            size = buffer.position();
+        }
+        // Drop a partially written record
+        channel.truncate(size);
+        channel.position(size);
+        Iterator<Entry> iterator = outstandingEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            int[] digest = chunkDigests.get(entry.chunkId);
+            ByteBuffer data = readChunkFile(chunkFile(entry.chunkId), digest[0], digest[1]);
+            if (data == null) {
+                // The data wasn't forced before the crash. The chunk is settled when it's removed from the ledger
+                LOG.warn("Failed to read the data of an unacked chunk. Skipping it: chunk={}", entry);
+                iterator.remove();
+                continue;
+            }
+            recoveredEntries.add(new Entry(entry.chunkId, entry.tag, data));
+        }
+        if (!recoveredEntries.isEmpty()) {
+            LOG.info("Found chunks which were not acked: file={}, count={}", file, recoveredEntries.size());
+        }
+    }
+
+    private boolean readRecord(ByteBuffer buffer, Map<String, int[]> chunkDigests)
+    {
+        try {
+            int start = buffer.position();
+            byte type = buffer.get();
+            String chunkId = readString(buffer);
+            Entry entry = null;
+            if (type == RECORD_TYPE_ADD) {
+                String tag = readString(buffer);
+                int dataLength = buffer.getInt();
+                int dataChecksum = buffer.getInt();
+                if (dataLength < 0) {
+                    return false;
+                }
+                entry = new Entry(chunkId, tag, null);
+                chunkDigests.put(chunkId, new int[] {dataLength, dataChecksum});
+            }
+            else if (type != RECORD_TYPE_REMOVE) {
+                return false;
+            }
+
+            byte[] record = new byte[buffer.position() - start];
+            ByteBuffer recordBuffer = buffer.duplicate();
+            recordBuffer.position(start);
+            recordBuffer.get(record);
+            CRC32 crc32 = new CRC32();
+            crc32.update(record);
+            if ((int) crc32.getValue() != buffer.getInt()) {
+                return false;
+            }
+
+            if (entry != null) {
+                outstandingEntries.put(chunkId, entry);
+            }
+            else {
+                outstandingEntries.remove(chunkId);
+            }
+            return true;
+        }
+        catch (BufferUnderflowException e) {
+            // Partially written at crash
+            return false;
+        }
+    }
+
+    // Returns null if the file is missing or broken
+    private ByteBuffer readChunkFile(File chunkFile, int dataLength, int dataChecksum)
+    {
+        if (chunkFile.length() != dataLength) {
+            return null;
+        }
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(chunkFile, "r");
+            try {
+                byte[] data = new byte[dataLength];
+                randomAccessFile.readFully(data);
+                CRC32 crc32 = new CRC32();
+                crc32.update(data);
+                return (int) crc32.getValue() == dataChecksum ? ByteBuffer.wrap(data) : null;
+            }
+            finally {
+                randomAccessFile.close();
+            }
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to read a chunk file: file={}", chunkFile, e);
+            return null;
+        }
+    }
+
+    // Chunk files whose chunks were settled, or whose add records weren't written before the crash
+    private void removeUnusedChunkFiles()
+    {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(chunkFilenamePrefix) && name.endsWith(EXT_CHUNK_FILENAME)) {
+                String chunkId = name.substring(chunkFilenamePrefix.length(), name.length() - EXT_CHUNK_FILENAME.length());
+                if (!outstandingEntries.containsKey(chunkId) && !f.delete()) {
+                    LOG.warn("Failed to delete a chunk file: file={}", f);
+                }
+            }
+        }
+    }
+
+    private File chunkFile(String chunkId)
+    {
+        return new File(dir, chunkFilenamePrefix + chunkId + EXT_CHUNK_FILENAME);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    // Chunks which were in flight when the previous process stopped. They need to be resent with the same chunk ids
+    synchronized List<Entry> getRecoveredEntries()
+    {
+        return new ArrayList<Entry>(recoveredEntries);
+    }
+
+    // The data is written only once even if the chunk is resent after a failure. A chunk is added by one flusher
+    // at a time, and its data is written outside the lock so that the flushers don't wait for each other's writes
+    void add(String chunkId, String tag, ByteBuffer data)
+            throws IOException
+    {
+        synchronized (this) {
+            if (outstandingEntries.containsKey(chunkId)) {
+                return;
+            }
+        }
+        File chunkFile = chunkFile(chunkId);
+        CRC32 dataCrc32 = new CRC32();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(chunkFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            ByteBuffer src = data.duplicate();
+            byte[] bytes = new byte[Math.min(src.remaining(), COPY_BUFFER_SIZE)];
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), bytes.length);
+                src.get(bytes, 0, length);
+                dataCrc32.update(bytes, 0, length);
+                randomAccessFile.write(bytes, 0, length);
+            }
+        }
+        finally {
+            randomAccessFile.close();
+        }
+
+        byte[] chunkIdBytes = chunkId.getBytes(CHARSET);
+        byte[] tagBytes = tag.getBytes(CHARSET);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + chunkIdBytes.length + 2 + tagBytes.length + 4 + 4 + 4);
+        record.put(RECORD_TYPE_ADD);
+        record.putShort((short) chunkIdBytes.length).put(chunkIdBytes);
+        record.putShort((short) tagBytes.length).put(tagBytes);
+        record.putInt(data.remaining()).putInt((int) dataCrc32.getValue());
+        synchronized (this) {
+            write(record);
+            outstandingEntries.put(chunkId, new Entry(chunkId, tag, null));
+            unforcedChunkFiles.add(chunkFile);
+        }
+    }
+
+    // Called when the chunk is acked, or when the chunk leaves the buffer without being sent
+    synchronized void remove(String chunkId)
+            throws IOException
+    {
+        if (outstandingEntries.remove(chunkId) == null) {
+            return;
+        }
+        File chunkFile = chunkFile(chunkId);
+        unforcedChunkFiles.remove(chunkFile);
+        if (!chunkFile.delete()) {
+            LOG.warn("Failed to delete a chunk file: file={}", chunkFile);
+        }
+        for (int i = 0; i < recoveredEntries.size(); i++) {
+            if (recoveredEntries.get(i).chunkId.equals(chunkId)) {
+                recoveredEntries.remove(i);
+                break;
+            }
+        }
+        if (outstandingEntries.isEmpty()) {
+            channel.truncate(0);
+            channel.position(0);
+            size = 0;
+            return;
+        }
+        byte[] chunkIdBytes = chunkId.getBytes(CHARSET);
+        ByteBuffer record = ByteBuffer.allocate(1 + 2 + chunkIdBytes.length + 4);
+        record.put(RECORD_TYPE_REMOVE);
+        record.putShort((short) chunkIdBytes.length).put(chunkIdBytes);
+        write(record);
+    }
+
+    private void write(ByteBuffer record)
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("The ack ledger is already closed: ackLedger=" + this);
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(record.array(), 0, record.position());
+        record.putInt((int) crc32.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        size = channel.position();
+        unforced = true;
+    }
+
+    // The chunk files are forced before the ledger records which refer to them, outside the lock
+    void force()
+            throws IOException
+    {
+        List<File> chunkFiles;
+        synchronized (this) {
+            chunkFiles = unforcedChunkFiles;
+            unforcedChunkFiles = new ArrayList<File>();
+        }
+        for (File chunkFile : chunkFiles) {
+            try {
+                RandomAccessFile randomAccessFile = new RandomAccessFile(chunkFile, "r");
+                try {
+                    randomAccessFile.getChannel().force(false);
+                }
+                finally {
+                    randomAccessFile.close();
+                }
+            }
+            catch (FileNotFoundException e) {
+                // Already settled
+            }
+        }
+        synchronized (this) {
+            if (closed || !unforced) {
+                return;
+            }
+            channel.force(false);
+            unforced = false;
+        }
+    }
+
+    synchronized int getOutstandingCount()
+    {
+        return outstandingEntries.size();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        ExecutorServiceUtils.finishExecutorService(executorService);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            force();
+            closed = true;
+            channel.close();
+            if (outstandingEntries.isEmpty() && !file.delete()) {
+                LOG.warn("Failed to delete the ack ledger: file={}", file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "AckLedger{" +
+                "file=" + file +
+                ", outstandingEntries=" + outstandingEntries.size() +
+                ", size=" + size +
+                '}';
+    }
+
+    static class Entry
+    {
+        private final String chunkId;
+        private final String tag;
+        private final ByteBuffer data;
+
+        Entry(String chunkId, String tag, ByteBuffer data)
+        {
+            this.chunkId = chunkId;
+            this.tag = tag;
+            this.data = data;
+        }
+
+        String getChunkId()
+        {
+            return chunkId;
+        }
+
+        String getTag()
+        {
+            return tag;
+        }
+
+        ByteBuffer getData()
+        {
+            return data;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry{" +
+                    "chunkId='" + chunkId + '\'' +
+                    ", tag='" + tag + '\'' +
+                    ", data=" + data +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.komamitsu.fluency.buffer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Sizes the chunks of each tag so that a chunk holds about what the tag emits within the chunk retention time.
+// The arrival rate of each tag is measured between the chunk seals and smoothed by EWMA.
+// Not thread-safe. It's used with the lock of the retention buffers
+class AdaptiveChunkSizes
+{
+    private static final int MAX_TRACKED_TAGS = 10000;
+    private static final long MIN_RATE_WINDOW_MILLIS = 100;
+    private static final double SMOOTHING_FACTOR = 0.3;
+    private final int minChunkSize;
+    private final Map<String, TagRate> tagRates = new HashMap<String, TagRate>();
+
+    AdaptiveChunkSizes(int minChunkSize)
+    {
+        this.minChunkSize = minChunkSize;
+    }
+
+    // Called when a chunk of the tag is sealed
+    void recordChunk(String tag, int size, long firstAppendTimeMillis, long nowMillis)
+    {
+        TagRate tagRate = tagRates.get(tag);
+        if (tagRate == null) {
+            if (tagRates.size() >= MAX_TRACKED_TAGS) {
+                return;
+            }
+            tagRate = new TagRate();
+            tagRates.put(tag, tagRate);
+        }
+        // All the data since the previous seal is in this chunk
+        long startMillis = tagRate.lastSealTimeMillis > 0 ? tagRate.lastSealTimeMillis : firstAppendTimeMillis;
+        double rate = size * 1000.0 / Math.max(MIN_RATE_WINDOW_MILLIS, nowMillis - startMillis);
+        tagRate.bytesPerSecond = tagRate.bytesPerSecond < 0 ? rate : tagRate.bytesPerSecond + SMOOTHING_FACTOR * (rate - tagRate.bytesPerSecond);
+        tagRate.lastSealTimeMillis = nowMillis;
+    }
+
+    // `maxChunkSize` for tags whose rate isn't known yet
+    int getSealSize(String tag, int maxChunkSize, int chunkRetentionTimeMillis)
+    {
+        TagRate tagRate = tagRates.get(tag);
+        if (tagRate == null) {
+            return maxChunkSize;
+        }
+        long expectedSize = (long) (tagRate.bytesPerSecond * chunkRetentionTimeMillis / 1000);
+        return (int) Math.max(minChunkSize, Math.min(maxChunkSize, expectedSize));
+    }
+
+    // Leaves some room above the seal size so that the chunk isn't expanded before it's sealed.
+    // `defaultSize` for tags whose rate isn't known yet
+    int getInitialSize(String tag, int defaultSize, int maxChunkSize, int chunkRetentionTimeMillis)
+    {
+        if (!tagRates.containsKey(tag)) {
+            return defaultSize;
+        }
+        int sealSize = getSealSize(tag, maxChunkSize, chunkRetentionTimeMillis);
+        return sealSize + sealSize / 8;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "AdaptiveChunkSizes{" +
+                "minChunkSize=" + minChunkSize +
+                ", trackedTagCount=" + tagRates.size() +
+                '}';
+    }
+
+    private static class TagRate
+    {
+        private double bytesPerSecond = -1;
+        private long lastSealTimeMillis;
+    }
+}
@@ -0,0 +1,459 @@
+package org.komamitsu.fluency.buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// A large append-only data file which has many chunks and a small index file of them, so that chunks are saved
+// and loaded with sequential I/O instead of a file per chunk. Removals are appended to the index as well, and
+// both files are deleted once all the chunks are removed
+class BackupSegment
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BackupSegment.class);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final byte RECORD_TYPE_ENTRY = 1;
+    private static final byte RECORD_TYPE_REMOVAL = 2;
+    private final long id;
+    private final File dataFile;
+    private final File indexFile;
+    // Keyed by the offset in the data file
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+    private FileChannel dataChannel;
+    private FileChannel indexChannel;
+    private long dataSize;
+    private long indexSize;
+    private boolean writable;
+    private boolean deleted;
+
+    private BackupSegment(long id, File dataFile, File indexFile)
+    {
+        this.id = id;
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+    }
+
+    static BackupSegment create(long id, File dataFile, File indexFile)
+            throws IOException
+    {
+        BackupSegment segment = new BackupSegment(id, dataFile, indexFile);
+        segment.dataChannel = new RandomAccessFile(dataFile, "rw").getChannel();
+        segment.dataChannel.truncate(0);
+        segment.indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+        segment.indexChannel.truncate(0);
+        segment.writable = true;
+        return segment;
+    }
+
+    // Reads the index of a segment written by the previous process. Records after a partially written one are ignored
+    static BackupSegment load(long id, File dataFile, File indexFile)
+            throws IOException
+    {
+        BackupSegment segment = new BackupSegment(id, dataFile, indexFile);
+        segment.dataSize = dataFile.length();
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        ByteBuffer index;
+        try {
+            FileChannel channel = file.getChannel();
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        finally {
+            file.close();
+        }
+
+        while (index.hasRemaining()) {
+            try {
+                byte type = index.get();
+                if (type == RECORD_TYPE_ENTRY) {
+                    Entry entry = segment.readEntry(index);
+                    if (entry.offset + entry.storedLength > segment.dataSize) {
+                        LOG.warn("The chunk isn't in the data file. Skipping the rest of the index: file={}, offset={}", dataFile, entry.offset);
+                        break;
+                    }
+                    segment.entries.put(entry.offset, entry);
+                }
+                else if (type == RECORD_TYPE_REMOVAL) {
+                    segment.entries.remove(index.getLong());
+                }
+                else {
+                    LOG.warn("Found an unknown record. Skipping the rest of the index: file={}, position={}", indexFile, index.position());
+                    break;
+                }
+            }
+            catch (BufferUnderflowException e) {
+                // Partially written at crash
+                break;
+            }
+            segment.indexSize = index.position();
+        }
+        return segment;
+    }
+
+    private Entry readEntry(ByteBuffer index)
+    {
+        int paramCount = index.getInt();
+        List<String> params = new ArrayList<String>(paramCount);
+        for (int i = 0; i < paramCount; i++) {
+            byte[] param = new byte[index.getShort() & 0xFFFF];
+            index.get(param);
+            params.add(new String(param, CHARSET));
+        }
+        long offset = index.getLong();
+        int storedLength = index.getInt();
+        int originalLength = index.getInt();
+        int eventCount = index.getInt();
+        long timestampMillis = index.getLong();
+        boolean compressed = index.get() != 0;
+        int checksum = index.getInt();
+        return new Entry(this, params, offset, storedLength, originalLength, eventCount, timestampMillis, compressed, checksum);
+    }
+
+    synchronized Entry append(List<String> params, ByteBuffer buffer, int eventCount, boolean compression)
+            throws IOException
+    {
+        if (!writable) {
+            throw new IOException("The segment isn't writable: segment=" + this);
+        }
+        int originalLength = buffer.remaining();
+        byte[] data = new byte[originalLength];
+        buffer.duplicate().get(data);
+
+        boolean compressed = false;
+        if (compression) {
+            byte[] compressedData = compress(data);
+            if (compressedData != null) {
+                data = compressedData;
+                compressed = true;
+            }
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+
+        Entry entry = new Entry(this, new ArrayList<String>(params), dataSize, data.length, originalLength,
+                eventCount, System.currentTimeMillis(), compressed, (int) crc32.getValue());
+        writeFully(dataChannel, ByteBuffer.wrap(data));
+        dataSize += data.length;
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(record);
+        output.writeByte(RECORD_TYPE_ENTRY);
+        output.writeInt(entry.getParams().size());
+        for (String param : entry.getParams()) {
+            byte[] bytes = param.getBytes(CHARSET);
+            output.writeShort(bytes.length);
+            output.write(bytes);
+        }
+        output.writeLong(entry.offset);
+        output.writeInt(entry.storedLength);
+        output.writeInt(entry.originalLength);
+        output.writeInt(entry.eventCount);
+        output.writeLong(entry.timestampMillis);
+        output.writeByte(entry.compressed ? 1 : 0);
+        output.writeInt(entry.checksum);
+        output.close();
+        writeIndex(ByteBuffer.wrap(record.toByteArray()));
+
+        entries.put(entry.offset, entry);
+        return entry;
+    }
+
+    // Returns null unless the chunk gets smaller
+    private static byte[] compress(byte[] data)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] output = new byte[data.length];
+            int length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] compressed = new byte[length];
+            System.arraycopy(output, 0, compressed, 0, length);
+            return compressed;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeIndex(ByteBuffer record)
+            throws IOException
+    {
+        if (indexChannel == null) {
+            indexChannel = new RandomAccessFile(indexFile, "rw").getChannel();
+            // Drop a partially written record if any
+            indexChannel.truncate(indexSize);
+        }
+        indexChannel.position(indexSize);
+        int length = record.remaining();
+        writeFully(indexChannel, record);
+        indexSize += length;
+    }
+
+    ByteBuffer read(Entry entry)
+            throws IOException
+    {
+        byte[] data = new byte[entry.storedLength];
+        RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+        try {
+            file.seek(entry.offset);
+            file.readFully(data);
+        }
+        finally {
+            file.close();
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        if ((int) crc32.getValue() != entry.checksum) {
+            throw new IOException("The chunk is broken: file=" + dataFile + ", entry=" + entry);
+        }
+        if (!entry.compressed) {
+            return ByteBuffer.wrap(data);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] output = new byte[entry.originalLength];
+            int length = 0;
+            while (length < output.length && !inflater.finished()) {
+                int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != output.length) {
+                throw new IOException("The compressed chunk is truncated: file=" + dataFile + ", entry=" + entry);
+            }
+            return ByteBuffer.wrap(output);
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Failed to decompress the chunk: file=" + dataFile + ", entry=" + entry, e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    synchronized boolean contains(Entry entry)
+    {
+        return entries.get(entry.offset) == entry;
+    }
+
+    synchronized void remove(Entry entry)
+    {
+        if (entries.get(entry.offset) != entry) {
+            return;
+        }
+        entries.remove(entry.offset);
+        if (entries.isEmpty() && !writable) {
+            delete();
+            return;
+        }
+        try {
+            ByteBuffer record = ByteBuffer.allocate(1 + 8);
+            record.put(RECORD_TYPE_REMOVAL).putLong(entry.offset).flip();
+            writeIndex(record);
+        }
+        catch (IOException e) {
+            // The chunk will be loaded again at the next start up
+            LOG.warn("Failed to record the removal of the chunk: segment=" + this + ", entry=" + entry, e);
+        }
+    }
+
+    synchronized List<Entry> getEntries()
+    {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    synchronized long getDataSize()
+    {
+        return dataSize;
+    }
+
+    synchronized boolean isDeleted()
+    {
+        return deleted;
+    }
+
+    long getId()
+    {
+        return id;
+    }
+
+    // The segment is deleted here if all the chunks are already removed
+    synchronized void close()
+    {
+        writable = false;
+        closeChannels();
+        if (entries.isEmpty()) {
+            delete();
+        }
+    }
+
+    private void closeChannels()
+    {
+        for (FileChannel channel : new FileChannel[] {dataChannel, indexChannel}) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    LOG.warn("Failed to close the channel: segment=" + this, e);
+                }
+            }
+        }
+        dataChannel = null;
+        indexChannel = null;
+    }
+
+    private void delete()
+    {
+        if (deleted) {
+            return;
+        }
+        closeChannels();
+        deleted = true;
+        for (File file : new File[] {dataFile, indexFile}) {
+            if (!file.delete()) {
+                LOG.warn("Failed to delete the backup segment: file={}", file);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "BackupSegment{" +
+                "id=" + id +
+                ", dataFile=" + dataFile +
+                ", entries=" + entries.size() +
+                ", dataSize=" + dataSize +
+                ", writable=" + writable +
+                ", deleted=" + deleted +
+                '}';
+    }
+
+    static class Entry
+        extends FileBackup.SavedBuffer
+    {
+        private final BackupSegment segment;
+        private final long offset;
+        private final int storedLength;
+        private final int originalLength;
+        private final int eventCount;
+        private final long timestampMillis;
+        private final boolean compressed;
+        private final int checksum;
+
+        Entry(BackupSegment segment, List<String> params, long offset, int storedLength, int originalLength,
+                int eventCount, long timestampMillis, boolean compressed, int checksum)
+        {
+            super(segment.dataFile, params);
+            this.segment = segment;
+            this.offset = offset;
+            this.storedLength = storedLength;
+            this.originalLength = originalLength;
+            this.eventCount = eventCount;
+            this.timestampMillis = timestampMillis;
+            this.compressed = compressed;
+            this.checksum = checksum;
+        }
+
+        // The chunk is copied to a temporary file. read() is cheaper
+        @Override
+        public void open(Callback callback)
+        {
+            try {
+                FileBackup.processAsFile(getParams(), read(), callback);
+                remove();
+            }
+            catch (Exception e) {
+                LOG.error("Failed to process the chunk. Skipping it: entry=" + this, e);
+            }
+        }
+
+        @Override
+        public ByteBuffer read()
+                throws IOException
+        {
+            return segment.read(this);
+        }
+
+        @Override
+        public boolean exists()
+        {
+            return segment.contains(this);
+        }
+
+        @Override
+        public void remove()
+        {
+            segment.remove(this);
+        }
+
+        @Override
+        public long getSize()
+        {
+            return originalLength;
+        }
+
+        @Override
+        public long getLastModified()
+        {
+            return timestampMillis;
+        }
+
+        @Override
+        public int getEventCount()
+        {
+            return eventCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry{" +
+                    "params=" + getParams() +
+                    ", segmentId=" + segment.getId() +
+                    ", offset=" + offset +
+                    ", storedLength=" + storedLength +
+                    ", originalLength=" + originalLength +
+                    ", eventCount=" + eventCount +
+                    ", timestampMillis=" + timestampMillis +
+                    ", compressed=" + compressed +
+                    '}';
+        }
+    }
+}
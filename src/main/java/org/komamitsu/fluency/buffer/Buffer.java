@@ -13,9 +13,12 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class Buffer
 {
@@ -23,13 +26,25 @@ public abstract class Buffer
     protected static final Charset CHARSET = Charset.forName("ASCII");
     protected final ObjectMapper objectMapper;
     protected final FileBackup fileBackup;
+    private final BufferPressureMonitor pressureMonitor;
+    private final List<ChunkSealedListener> chunkSealedListeners = new CopyOnWriteArrayList<ChunkSealedListener>();
+    private final List<FlushBarrier> flushBarriers = new CopyOnWriteArrayList<FlushBarrier>();
     private final Config config;
 
     protected Buffer(final Config config)
     {
         this.config = config;
-        if (config.getFileBackupDir() != null) {
-            fileBackup = new FileBackup(new File(config.getFileBackupDir()), this, config.getFileBackupPrefix());
+        List<String> fileBackupDirs = config.getFileBackupDirs();
+        if (fileBackupDirs.isEmpty() && config.getFileBackupDir() != null) {
+            fileBackupDirs = Collections.singletonList(config.getFileBackupDir());
+        }
+        if (!fileBackupDirs.isEmpty()) {
+            List<File> backupDirs = new ArrayList<File>(fileBackupDirs.size());
+            for (String fileBackupDir : fileBackupDirs) {
+                backupDirs.add(new File(fileBackupDir));
+            }
+            fileBackup = new FileBackup(backupDirs, this, config.getFileBackupPrefix(),
+                    config.isFileBackupSegmentEnabled(), config.getFileBackupSegmentSize(), config.isFileBackupCompressionEnabled());
         }
         else {
             fileBackup = null;
@@ -40,11 +55,37 @@ public abstract class Buffer
         for (Module module : jacksonModules) {
             objectMapper.registerModule(module);
         }
+
+        pressureMonitor = new BufferPressureMonitor(
+                this, config.getPressureThresholds(), config.getPressureHysteresis(), config.getPressureCheckIntervalMillis());
     }
 
     public void init()
     {
-        if (fileBackup != null) {
+        if (fileBackup != null && (fileBackup.isSegmentEnabled() || fileBackup.getBackupDirs().size() > 1)) {
+            try {
+                fileBackup.readSavedBuffers(new FileBackup.ReadCallback()
+                {
+                    @Override
+                    public void process(FileBackup.SavedBuffer savedBuffer, ByteBuffer data)
+                    {
+                        try {
+                            LOG.info("Loading buffer: savedBuffer={}", savedBuffer);
+                            loadBufferFromByteBuffer(savedBuffer.getParams(), data, savedBuffer.getEventCount());
+                            savedBuffer.remove();
+                        }
+                        catch (Exception e) {
+                            LOG.error("Failed to load saved buffer. Skipping it: savedBuffer=" + savedBuffer, e);
+                        }
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                LOG.warn("Interrupted while loading saved buffers");
+                Thread.currentThread().interrupt();
+            }
+        }
+        else if (fileBackup != null) {
             for (FileBackup.SavedBuffer savedBuffer : fileBackup.getSavedFiles()) {
                 savedBuffer.open(new FileBackup.SavedBuffer.Callback() {
                     @Override
@@ -78,32 +119,113 @@ public abstract class Buffer
 
     protected abstract void loadBufferFromFile(List<String> params, FileChannel channel);
 
+    // Called for chunks in backup segments or multiple backup directories. `eventCount` is -1 if unknown.
+    // It loads the data through loadBufferFromFile() with a temporary file by default, so override it to avoid the copy
+    protected void loadBufferFromByteBuffer(List<String> params, ByteBuffer buffer, int eventCount)
+            throws IOException
+    {
+        FileBackup.processAsFile(params, buffer, new FileBackup.SavedBuffer.Callback()
+        {
+            @Override
+            public void process(List<String> params, FileChannel channel)
+            {
+                loadBufferFromFile(params, channel);
+            }
+        });
+    }
+
     protected abstract void saveAllBuffersToFile()
             throws IOException;
 
-    protected void saveBuffer(List<String> params, ByteBuffer buffer)
+    // Returns true if the buffer is saved
+    protected boolean saveBuffer(List<String> params, ByteBuffer buffer)
+    {
+        return saveBuffer(params, buffer, -1);
+    }
+
+    protected boolean saveBuffer(List<String> params, ByteBuffer buffer, int eventCount)
     {
         if (fileBackup == null) {
-            return;
+            return false;
         }
         LOG.info("Saving buffer: params={}, buffer={}", params, buffer);
-        fileBackup.saveBuffer(params, buffer);
+        return fileBackup.saveBuffer(params, buffer, eventCount) != null;
     }
 
     public void flush(Sender sender, boolean force)
             throws IOException
     {
-        LOG.trace("flush(): force={}, bufferUsage={}", force, getBufferUsage());
-        flushInternal(sender, force);
+        flush(sender, force, FlushBudget.UNLIMITED);
+    }
+
+    // Stops sending when `budget` is exhausted. The rest is sent by the next flush
+    public void flush(Sender sender, boolean force, FlushBudget budget)
+            throws IOException
+    {
+        LOG.trace("flush(): force={}, bufferUsage={}, budget={}", force, getBufferUsage(), budget);
+        try {
+            flushInternal(sender, force, budget);
+        }
+        finally {
+            completeFlushBarriers();
+        }
+    }
+
+    // The first append time of the oldest data which hasn't been sent yet. Long.MAX_VALUE if there is no such data.
+    // Buffers which don't track it are regarded as having only old data until they get empty
+    public long getOldestUnsentTimeMillis()
+    {
+        return getBufferedDataSize() == 0 ? Long.MAX_VALUE : Long.MIN_VALUE;
+    }
+
+    // The earliest time when a non-force flush has to move a retention buffer to keep its max latency.
+    // Flushers wait until then at most instead of a whole flush interval. Long.MAX_VALUE if there is no such buffer
+    public long getNextFlushDeadlineMillis()
+    {
+        return Long.MAX_VALUE;
+    }
+
+    // The barrier completes when all the data appended before this call has been sent, or acked in ack response mode
+    public FlushBarrier createFlushBarrier()
+    {
+        FlushBarrier flushBarrier = new FlushBarrier(System.currentTimeMillis());
+        // Registered before checking so that a flush which completes in between doesn't miss it
+        flushBarriers.add(flushBarrier);
+        completeFlushBarriers();
+        return flushBarrier;
+    }
+
+    // Should be called whenever some data has been sent
+    protected void completeFlushBarriers()
+    {
+        if (flushBarriers.isEmpty()) {
+            return;
+        }
+        long oldestUnsentTimeMillis = getOldestUnsentTimeMillis();
+        for (FlushBarrier flushBarrier : flushBarriers) {
+            if (flushBarrier.getBarrierTimeMillis() < oldestUnsentTimeMillis) {
+                flushBarrier.complete();
+                flushBarriers.remove(flushBarrier);
+            }
+        }
     }
 
     protected abstract void flushInternal(Sender sender, boolean force)
             throws IOException;
 
+    // Buffers which don't support the budget send all the data
+    protected void flushInternal(Sender sender, boolean force, FlushBudget budget)
+            throws IOException
+    {
+        flushInternal(sender, force);
+    }
+
     public abstract String bufferFormatType();
 
     public void close()
     {
+        pressureMonitor.close();
+        completeFlushBarriers();
         try {
             LOG.info("Saving all buffers");
             saveAllBuffersToFile();
@@ -111,8 +233,15 @@ public abstract class Buffer
         catch (Exception e) {
             LOG.warn("Failed to save all buffers", e);
         }
+        if (fileBackup != null) {
+            fileBackup.close();
+        }
         LOG.info("Closing buffers");
         closeInternal();
+        for (FlushBarrier flushBarrier : flushBarriers) {
+            flushBarrier.fail(new IOException("The buffer was closed before the data was sent: flushBarrier=" + flushBarrier));
+        }
+        flushBarriers.clear();
     }
 
     protected abstract void closeInternal();
@@ -131,6 +260,72 @@ public abstract class Buffer
 
     public abstract long getBufferedDataSize();
 
+    // The age of the oldest data which hasn't been sent yet
+    public long getFlushLagMillis()
+    {
+        return 0;
+    }
+
+    // The size of data waiting to be replayed from files
+    public long getBacklogSize()
+    {
+        return 0;
+    }
+
+    // Estimated time to send all the backlog. -1 if unknown
+    public long getBacklogDrainEtaMillis()
+    {
+        return 0;
+    }
+
+    // The total size of events appended so far
+    public long getAppendedSize()
+    {
+        return 0;
+    }
+
+    // Overrides the chunk retention at runtime, e.g. by adaptive flush policies. Ignored by default
+    public void setEffectiveChunkRetention(int chunkRetentionSize, int chunkRetentionTimeMillis)
+    {
+    }
+
+    public void addPressureListener(BufferPressureListener listener)
+    {
+        pressureMonitor.addListener(listener);
+    }
+
+    public void removePressureListener(BufferPressureListener listener)
+    {
+        pressureMonitor.removeListener(listener);
+    }
+
+    public void addChunkSealedListener(ChunkSealedListener listener)
+    {
+        chunkSealedListeners.add(listener);
+    }
+
+    public void removeChunkSealedListener(ChunkSealedListener listener)
+    {
+        chunkSealedListeners.remove(listener);
+    }
+
+    protected void notifyChunkSealed(String tag)
+    {
+        for (ChunkSealedListener listener : chunkSealedListeners) {
+            try {
+                listener.onChunkSealed(tag);
+            }
+            catch (Throwable e) {
+                LOG.warn("Failed to call the listener: listener=" + listener, e);
+            }
+        }
+    }
+
+    public int getPressureLevel()
+    {
+        return pressureMonitor.getLevel();
+    }
+
     public void clearBackupFiles()
     {
         if (fileBackup != null) {
@@ -171,6 +366,7 @@ public abstract class Buffer
         return "Buffer{" +
                 "objectMapper=" + objectMapper +
                 ", fileBackup=" + fileBackup +
+                ", pressureMonitor=" + pressureMonitor +
                 ", config=" + config +
                 '}';
     }
@@ -180,8 +376,15 @@ public abstract class Buffer
         protected long maxBufferSize = 512 * 1024 * 1024;
         protected boolean ackResponseMode = false;
         protected String fileBackupDir;
+        protected List<String> fileBackupDirs = Collections.emptyList();
         protected String fileBackupPrefix;  // Mainly for testing
+        protected boolean fileBackupSegmentEnabled = false;
+        protected long fileBackupSegmentSize = 64 * 1024 * 1024;
+        protected boolean fileBackupCompressionEnabled = false;
         protected List<Module> jacksonModules = Collections.emptyList();
+        protected List<Float> pressureThresholds = Arrays.asList(0.5f, 0.8f, 0.95f);
+        protected float pressureHysteresis = 0.05f;
+        protected int pressureCheckIntervalMillis = 100;
 
         public long getMaxBufferSize()
         {
@@ -216,6 +419,18 @@ public abstract class Buffer
             return this;
         }
 
+        public List<String> getFileBackupDirs()
+        {
+            return fileBackupDirs;
+        }
+
+        // Chunks are striped across the directories, e.g. one per disk. Overrides `fileBackupDir` unless empty
+        public Config setFileBackupDirs(List<String> fileBackupDirs)
+        {
+            this.fileBackupDirs = fileBackupDirs;
+            return this;
+        }
+
         public String getFileBackupPrefix()
         {
             return fileBackupPrefix;
@@ -227,6 +442,40 @@ public abstract class Buffer
             return this;
         }
 
+        public boolean isFileBackupSegmentEnabled()
+        {
+            return fileBackupSegmentEnabled;
+        }
+
+        // Saves chunks into a few large segment files with an index instead of a file per chunk
+        public Config setFileBackupSegmentEnabled(boolean fileBackupSegmentEnabled)
+        {
+            this.fileBackupSegmentEnabled = fileBackupSegmentEnabled;
+            return this;
+        }
+
+        public long getFileBackupSegmentSize()
+        {
+            return fileBackupSegmentSize;
+        }
+
+        public Config setFileBackupSegmentSize(long fileBackupSegmentSize)
+        {
+            this.fileBackupSegmentSize = fileBackupSegmentSize;
+            return this;
+        }
+
+        public boolean isFileBackupCompressionEnabled()
+        {
+            return fileBackupCompressionEnabled;
+        }
+
+        // Compresses each chunk in backup segments with Deflate. Only effective with `fileBackupSegmentEnabled`
+        public Config setFileBackupCompressionEnabled(boolean fileBackupCompressionEnabled)
+        {
+            this.fileBackupCompressionEnabled = fileBackupCompressionEnabled;
+            return this;
+        }
 
         public List<Module> getJacksonModules()
         {
@@ -239,6 +488,39 @@ public abstract class Buffer
             return this;
         }
 
+        public List<Float> getPressureThresholds()
+        {
+            return pressureThresholds;
+        }
+
+        public Config setPressureThresholds(List<Float> pressureThresholds)
+        {
+            this.pressureThresholds = pressureThresholds;
+            return this;
+        }
+
+        public float getPressureHysteresis()
+        {
+            return pressureHysteresis;
+        }
+
+        public Config setPressureHysteresis(float pressureHysteresis)
+        {
+            this.pressureHysteresis = pressureHysteresis;
+            return this;
+        }
+
+        public int getPressureCheckIntervalMillis()
+        {
+            return pressureCheckIntervalMillis;
+        }
+
+        public Config setPressureCheckIntervalMillis(int pressureCheckIntervalMillis)
+        {
+            this.pressureCheckIntervalMillis = pressureCheckIntervalMillis;
+            return this;
+        }
+
         @Override
         public String toString()
         {
@@ -246,8 +528,15 @@ public abstract class Buffer
                     "maxBufferSize=" + maxBufferSize +
                     ", ackResponseMode=" + ackResponseMode +
                     ", fileBackupDir='" + fileBackupDir + '\'' +
+                    ", fileBackupDirs=" + fileBackupDirs +
                     ", fileBackupPrefix='" + fileBackupPrefix + '\'' +
+                    ", fileBackupSegmentEnabled=" + fileBackupSegmentEnabled +
+                    ", fileBackupSegmentSize=" + fileBackupSegmentSize +
+                    ", fileBackupCompressionEnabled=" + fileBackupCompressionEnabled +
                     ", jacksonModules=" + jacksonModules +
+                    ", pressureThresholds=" + pressureThresholds +
+                    ", pressureHysteresis=" + pressureHysteresis +
+                    ", pressureCheckIntervalMillis=" + pressureCheckIntervalMillis +
                     '}';
         }
     }
@@ -16,6 +16,8 @@ class BufferPool
     private final int initialBufferSize;
     private final long maxBufferSize;
     private final boolean jvmHeapBufferMode;
+    private final SharedMemoryBudget.Member sharedMemoryBudgetMember;
+    private final JvmMemoryMonitor jvmMemoryMonitor;
 
     public BufferPool(int initialBufferSize, long maxBufferSize)
     {
@@ -23,10 +25,24 @@ class BufferPool
     }
 
     public BufferPool(int initialBufferSize, long maxBufferSize, boolean jvmHeapBufferMode)
+    {
+        this(initialBufferSize, maxBufferSize, jvmHeapBufferMode, null, 0);
+    }
+
+    public BufferPool(int initialBufferSize, long maxBufferSize, boolean jvmHeapBufferMode,
+            SharedMemoryBudget sharedMemoryBudget, long sharedMemoryReservation)
+    {
+        this(initialBufferSize, maxBufferSize, jvmHeapBufferMode, sharedMemoryBudget, sharedMemoryReservation, null);
+    }
+
+    public BufferPool(int initialBufferSize, long maxBufferSize, boolean jvmHeapBufferMode,
+            SharedMemoryBudget sharedMemoryBudget, long sharedMemoryReservation, JvmMemoryMonitor jvmMemoryMonitor)
     {
         this.initialBufferSize = initialBufferSize;
         this.maxBufferSize = maxBufferSize;
         this.jvmHeapBufferMode = jvmHeapBufferMode;
+        this.sharedMemoryBudgetMember = sharedMemoryBudget == null ? null : sharedMemoryBudget.register(this, sharedMemoryReservation);
+        this.jvmMemoryMonitor = jvmMemoryMonitor;
     }
 
     public ByteBuffer acquireBuffer(int bufferSize)
@@ -60,13 +76,22 @@ class BufferPool
         }
         */
 
+        long availableJvmMemorySize = jvmMemoryMonitor == null ? Long.MAX_VALUE : jvmMemoryMonitor.getAvailableSize();
         while (true) {
             long currentAllocatedSize = allocatedSize.get();
-            if (currentAllocatedSize + normalizedBufferSize > maxBufferSize) {
+            if (currentAllocatedSize + normalizedBufferSize > maxBufferSize || normalizedBufferSize > availableJvmMemorySize) {
                 releaseBuffers();
                 return null;    // `null` means the buffer is full.
             }
             if (currentAllocatedSize == allocatedSize.getAndAdd(normalizedBufferSize)) {
+                if (sharedMemoryBudgetMember != null && !sharedMemoryBudgetMember.tryAcquire(normalizedBufferSize)) {
+                    allocatedSize.getAndAdd(-normalizedBufferSize);
+                    releaseBuffers();
+                    return null;
+                }
+                if (jvmMemoryMonitor != null) {
+                    jvmMemoryMonitor.onAllocated(normalizedBufferSize);
+                }
                 ByteBuffer buf;
                 if (jvmHeapBufferMode) {
                     buf = ByteBuffer.allocate(normalizedBufferSize);
@@ -87,11 +112,38 @@ class BufferPool
             throw new IllegalStateException("`buffers` shouldn't be null");
         }
 
+        if (jvmMemoryMonitor != null && jvmMemoryMonitor.isUnderPressure()) {
+            // Trim the pool by leaving the buffer to GC
+            releaseBuffer(byteBuffer);
+            return;
+        }
+
         byteBuffer.position(0);
         byteBuffer.limit(byteBuffer.capacity());
         buffers.offer(byteBuffer);
     }
 
+    private void releaseBuffer(ByteBuffer byteBuffer)
+    {
+        allocatedSize.addAndGet(-byteBuffer.capacity());
+        if (sharedMemoryBudgetMember != null) {
+            sharedMemoryBudgetMember.release(byteBuffer.capacity());
+        }
+    }
+
+    // `maxBufferSize` shrunk by the JVM's available memory
+    public long getEffectiveMaxBufferSize()
+    {
+        if (jvmMemoryMonitor == null) {
+            return maxBufferSize;
+        }
+        long availableJvmMemorySize = jvmMemoryMonitor.getAvailableSize();
+        if (availableJvmMemorySize == Long.MAX_VALUE) {
+            return maxBufferSize;
+        }
+        return Math.max(0, Math.min(maxBufferSize, allocatedSize.get() + availableJvmMemorySize));
+    }
+
     public long getAllocatedSize()
     {
         return allocatedSize.get();
@@ -104,12 +156,20 @@ class BufferPool
             for (Map.Entry<Integer, LinkedBlockingQueue<ByteBuffer>> entry : bufferPool.entrySet()) {
                 ByteBuffer buffer;
                 while ((buffer = entry.getValue().poll()) != null) {
-                    allocatedSize.addAndGet(-buffer.capacity());
+                    releaseBuffer(buffer);
                 }
             }
         }
     }
 
+    public void close()
+    {
+        releaseBuffers();
+        if (sharedMemoryBudgetMember != null) {
+            sharedMemoryBudgetMember.getSharedMemoryBudget().unregister(sharedMemoryBudgetMember);
+        }
+    }
+
     public boolean getJvmHeapBufferMode()
     {
         return jvmHeapBufferMode;
@@ -124,6 +184,8 @@ class BufferPool
                 ", initialBufferSize=" + initialBufferSize +
                 ", maxBufferSize=" + maxBufferSize +
                 ", jvmHeapBufferMode=" + jvmHeapBufferMode +
+                ", sharedMemoryBudgetMember=" + sharedMemoryBudgetMember +
+                ", jvmMemoryMonitor=" + jvmMemoryMonitor +
                 '}';
     }
 }
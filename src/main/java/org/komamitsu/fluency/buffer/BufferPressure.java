@@ -0,0 +1,51 @@
+package org.komamitsu.fluency.buffer;
+
+public class BufferPressure
+{
+    private final int level;
+    private final float threshold;
+    private final float bufferUsage;
+    private final long flushLagMillis;
+
+    public BufferPressure(int level, float threshold, float bufferUsage, long flushLagMillis)
+    {
+        this.level = level;
+        this.threshold = threshold;
+        this.bufferUsage = bufferUsage;
+        this.flushLagMillis = flushLagMillis;
+    }
+
+    // 0 means the buffer usage is under all the thresholds. N means it has exceeded the N-th threshold
+    public int getLevel()
+    {
+        return level;
+    }
+
+    // The highest threshold the buffer usage has exceeded. 0 if `level` is 0
+    public float getThreshold()
+    {
+        return threshold;
+    }
+
+    public float getBufferUsage()
+    {
+        return bufferUsage;
+    }
+
+    // The age of the oldest unsent data
+    public long getFlushLagMillis()
+    {
+        return flushLagMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPressure{" +
+                "level=" + level +
+                ", threshold=" + threshold +
+                ", bufferUsage=" + bufferUsage +
+                ", flushLagMillis=" + flushLagMillis +
+                '}';
+    }
+}
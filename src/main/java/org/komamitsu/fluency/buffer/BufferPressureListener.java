@@ -0,0 +1,7 @@
+package org.komamitsu.fluency.buffer;
+
+public interface BufferPressureListener
+{
+    // Called on a dedicated thread when the buffer usage crosses one of `pressureThresholds`
+    void onPressureChanged(BufferPressure pressure);
+}
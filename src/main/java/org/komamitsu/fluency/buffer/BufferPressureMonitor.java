@@ -0,0 +1,109 @@
+package org.komamitsu.fluency.buffer;
+
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorServiceUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Checks the buffer usage on its own thread so that listeners are never called on the emitting threads
+class BufferPressureMonitor
+        implements Closeable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(BufferPressureMonitor.class);
+    private final Buffer buffer;
+    private final List<Float> thresholds;
+    private final float hysteresis;
+    private final int checkIntervalMillis;
+    private final List<BufferPressureListener> listeners = new CopyOnWriteArrayList<BufferPressureListener>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final ScheduledExecutorService executorService = ExecutorFactories.getDefault().newSingleThreadScheduledExecutor();
+    private volatile int level;
+
+    BufferPressureMonitor(Buffer buffer, List<Float> thresholds, float hysteresis, int checkIntervalMillis)
+    {
+        this.buffer = buffer;
+        this.thresholds = new ArrayList<Float>(thresholds);
+        Collections.sort(this.thresholds);
+        this.hysteresis = hysteresis;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    void addListener(BufferPressureListener listener)
+    {
+        listeners.add(listener);
+        if (started.compareAndSet(false, true)) {
+            executorService.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    check();
+                }
+            }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void removeListener(BufferPressureListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    int getLevel()
+    {
+        return level;
+    }
+
+    void check()
+    {
+        float bufferUsage = buffer.getBufferUsage();
+        int newLevel = level;
+        while (newLevel < thresholds.size() && bufferUsage >= thresholds.get(newLevel)) {
+            newLevel++;
+        }
+        while (newLevel > 0 && bufferUsage < thresholds.get(newLevel - 1) - hysteresis) {
+            newLevel--;
+        }
+        if (newLevel == level) {
+            return;
+        }
+        level = newLevel;
+
+        BufferPressure pressure = new BufferPressure(
+                newLevel, newLevel == 0 ? 0 : thresholds.get(newLevel - 1), bufferUsage, buffer.getFlushLagMillis());
+        LOG.debug("Buffer pressure changed: {}", pressure);
+        for (BufferPressureListener listener : listeners) {
+            try {
+                listener.onPressureChanged(pressure);
+            }
+            catch (Throwable e) {
+                LOG.warn("Failed to call the listener: listener=" + listener, e);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        ExecutorServiceUtils.finishExecutorService(executorService);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BufferPressureMonitor{" +
+                "thresholds=" + thresholds +
+                ", hysteresis=" + hysteresis +
+                ", checkIntervalMillis=" + checkIntervalMillis +
+                ", level=" + level +
+                '}';
+    }
+}
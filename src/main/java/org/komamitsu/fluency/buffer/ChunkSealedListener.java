@@ -0,0 +1,8 @@
+package org.komamitsu.fluency.buffer;
+
+public interface ChunkSealedListener
+{
+    // Called on the emitting thread when a chunk becomes ready to be sent before the flush interval.
+    // It must return immediately
+    void onChunkSealed(String tag);
+}
@@ -1,5 +1,7 @@
 package org.komamitsu.fluency.buffer;
 
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,8 +16,16 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,10 +34,18 @@ public class FileBackup
     private static final Logger LOG = LoggerFactory.getLogger(FileBackup.class);
     private static final String PARAM_DELIM_IN_FILENAME = "#";
     private static final String EXT_FILENAME = ".buf";
-    private final File backupDir;
+    private static final String EXT_SEGMENT_DATA_FILENAME = ".seg";
+    private static final String EXT_SEGMENT_INDEX_FILENAME = ".idx";
+    private static final int READ_AHEAD_COUNT = 4;
+    private final List<Stripe> stripes = new ArrayList<Stripe>();
+    private final AtomicInteger nextStripeIndex = new AtomicInteger();
     private final Buffer userBuffer;
     private final Pattern pattern;
     private final String prefix;
+    private final boolean segmentEnabled;
+    private final long segmentSize;
+    private final boolean compressionEnabled;
+    private final Pattern segmentPattern;
 
     public static class SavedBuffer
         implements Closeable
@@ -62,6 +80,50 @@ public class FileBackup
             }
         }
 
+        public List<String> getParams()
+        {
+            return params;
+        }
+
+        File getSavedFile()
+        {
+            return savedFile;
+        }
+
+        public ByteBuffer read()
+                throws IOException
+        {
+            RandomAccessFile file = new RandomAccessFile(savedFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                file.close();
+            }
+        }
+
+        public boolean exists()
+        {
+            return savedFile.exists();
+        }
+
+        public long getSize()
+        {
+            return savedFile.length();
+        }
+
+        public long getLastModified()
+        {
+            return savedFile.lastModified();
+        }
+
+        // -1 if unknown
+        public int getEventCount()
+        {
+            return -1;
+        }
+
         public void remove()
         {
             if (!savedFile.delete()) {
@@ -96,6 +158,38 @@ public class FileBackup
         {
             void process(List<String> params, FileChannel channel);
         }
+
+        @Override
+        public String toString()
+        {
+            return "SavedBuffer{" +
+                    "params=" + params +
+                    ", savedFile=" + savedFile +
+                    '}';
+        }
+    }
+
+    // Passes `data` to `callback` through a temporary file for the callers which read saved buffers as files
+    static void processAsFile(List<String> params, ByteBuffer data, SavedBuffer.Callback callback)
+            throws IOException
+    {
+        File file = File.createTempFile("fluency", EXT_FILENAME);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer src = data.duplicate();
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            channel.position(0);
+            callback.process(params, channel);
+        }
+        finally {
+            randomAccessFile.close();
+            if (!file.delete()) {
+                LOG.warn("Failed to delete file: file=" + file);
+            }
+        }
     }
 
     private String prefix()
@@ -105,16 +199,36 @@ public class FileBackup
 
     public FileBackup(File backupDir, Buffer userBuffer, String prefix)
     {
-        if (backupDir.mkdir()) {
-            LOG.info("Created backupDir: dir={}", backupDir);
+        this(backupDir, userBuffer, prefix, false, 0, false);
+    }
+
+    public FileBackup(File backupDir, Buffer userBuffer, String prefix, boolean segmentEnabled, long segmentSize, boolean compressionEnabled)
+    {
+        this(Collections.singletonList(backupDir), userBuffer, prefix, segmentEnabled, segmentSize, compressionEnabled);
+    }
+
+    // Chunks are striped across `backupDirs`. Each directory has its own writer and reader
+    public FileBackup(List<File> backupDirs, Buffer userBuffer, String prefix, boolean segmentEnabled, long segmentSize, boolean compressionEnabled)
+    {
+        if (backupDirs.isEmpty()) {
+            throw new IllegalArgumentException("backupDirs should have at least one directory");
         }
-        if (!backupDir.isDirectory() || !backupDir.canRead() || !backupDir.canWrite()) {
-            throw new IllegalArgumentException("backupDir[" + backupDir + "] needs to be a readable & writable directory");
+        for (File backupDir : backupDirs) {
+            if (backupDir.mkdir()) {
+                LOG.info("Created backupDir: dir={}", backupDir);
+            }
+            if (!backupDir.isDirectory() || !backupDir.canRead() || !backupDir.canWrite()) {
+                throw new IllegalArgumentException("backupDir[" + backupDir + "] needs to be a readable & writable directory");
+            }
+            stripes.add(new Stripe(backupDir));
         }
-        this.backupDir = backupDir;
         this.userBuffer = userBuffer;
         this.prefix = prefix;
         this.pattern = Pattern.compile(userBuffer.bufferFormatType() + prefix() + PARAM_DELIM_IN_FILENAME + "([\\w\\." + PARAM_DELIM_IN_FILENAME + "]+)" + EXT_FILENAME);
+        this.segmentEnabled = segmentEnabled;
+        this.segmentSize = segmentSize;
+        this.compressionEnabled = compressionEnabled;
+        this.segmentPattern = Pattern.compile(userBuffer.bufferFormatType() + prefix() + PARAM_DELIM_IN_FILENAME + "(\\d+)" + Pattern.quote(EXT_SEGMENT_INDEX_FILENAME));
         LOG.debug(this.toString());
     }
 
@@ -122,75 +236,371 @@ public class FileBackup
     public String toString()
     {
         return "FileBackup{" +
-                "backupDir=" + backupDir +
+                "backupDirs=" + getBackupDirs() +
                 ", userBuffer=" + userBuffer +
                 ", pattern=" + pattern +
                 ", prefix='" + prefix + '\'' +
+                ", segmentEnabled=" + segmentEnabled +
+                ", segmentSize=" + segmentSize +
+                ", compressionEnabled=" + compressionEnabled +
                 '}';
     }
 
+    public boolean isSegmentEnabled()
+    {
+        return segmentEnabled;
+    }
+
+    public List<File> getBackupDirs()
+    {
+        List<File> backupDirs = new ArrayList<File>(stripes.size());
+        for (Stripe stripe : stripes) {
+            backupDirs.add(stripe.backupDir);
+        }
+        return backupDirs;
+    }
+
+    // In each directory, chunk files are returned first, then chunks in segments in the written order
     public List<SavedBuffer> getSavedFiles()
     {
-        File[] files = backupDir.listFiles();
-        if (files == null) {
-            LOG.warn("Failed to list the backup directory. {}", backupDir);
-            return new ArrayList<SavedBuffer>();
+        List<SavedBuffer> savedBuffers = new ArrayList<SavedBuffer>();
+        for (Stripe stripe : stripes) {
+            savedBuffers.addAll(stripe.getSavedFiles());
         }
-        ArrayList<SavedBuffer> savedBuffers = new ArrayList<SavedBuffer>();
-        for (File f : files) {
-            Matcher matcher = pattern.matcher(f.getName());
-            if (matcher.find()) {
-                if (matcher.groupCount() != 1) {
-                    LOG.warn("Invalid backup filename: file={}", f.getName());
+        return savedBuffers;
+    }
+
+    public interface ReadCallback
+    {
+        void process(SavedBuffer savedBuffer, ByteBuffer data);
+    }
+
+    // Reads the saved buffers with a reader thread per directory so that the disks are read in parallel.
+    // `callback` is called in the caller thread. Saved buffers which fail to be read are skipped
+    public void readSavedBuffers(ReadCallback callback)
+            throws InterruptedException
+    {
+        final LinkedBlockingQueue<ReadResult> results = new LinkedBlockingQueue<ReadResult>(READ_AHEAD_COUNT * stripes.size());
+        ExecutorService readers = ExecutorFactories.getDefault().newFixedThreadPool(stripes.size());
+        boolean completed = false;
+        try {
+            for (final Stripe stripe : stripes) {
+                readers.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            for (SavedBuffer savedBuffer : stripe.getSavedFiles()) {
+                                ByteBuffer data;
+                                try {
+                                    data = savedBuffer.read();
+                                    if (data instanceof MappedByteBuffer) {
+                                        // Read the file here rather than in the caller thread
+                                        ((MappedByteBuffer) data).load();
+                                    }
+                                }
+                                catch (IOException e) {
+                                    LOG.error("Failed to read saved buffer. Skipping it: savedBuffer=" + savedBuffer, e);
+                                    continue;
+                                }
+                                results.put(new ReadResult(savedBuffer, data));
+                            }
+                        }
+                        catch (InterruptedException e) {
+                            LOG.warn("Interrupted while reading saved buffers: dir={}", stripe.backupDir);
+                            // The caller isn't waiting for the end anymore
+                            Thread.currentThread().interrupt();
+                        }
+                        catch (RuntimeException e) {
+                            LOG.error("Failed to read saved buffers. Skipping the rest of the directory: dir=" + stripe.backupDir, e);
+                        }
+                        finally {
+                            // The caller waits for the end of each reader unless it has given up
+                            try {
+                                if (!Thread.currentThread().isInterrupted()) {
+                                    results.put(ReadResult.END);
+                                }
+                            }
+                            catch (InterruptedException e) {
+                                LOG.warn("Interrupted while reading saved buffers: dir={}", stripe.backupDir);
+                            }
+                        }
+                    }
+                });
+            }
+
+            int finishedReaders = 0;
+            while (finishedReaders < stripes.size()) {
+                ReadResult result = results.take();
+                if (result == ReadResult.END) {
+                    finishedReaders++;
                 }
                 else {
-                    String concatParams = matcher.group(1);
-                    String[] params = concatParams.split(PARAM_DELIM_IN_FILENAME);
-                    LinkedList<String> paramList = new LinkedList<String>(Arrays.asList(params));
-                    LOG.debug("Saved buffer params={}", paramList);
-                    paramList.removeLast();
-                    savedBuffers.add(new SavedBuffer(f, paramList));
+                    callback.process(result.savedBuffer, result.data);
                 }
             }
+            completed = true;
+        }
+        finally {
+            if (completed) {
+                ExecutorServiceUtils.finishExecutorService(readers);
+            }
+            else {
+                // The readers can be blocked on the full queue since nobody takes the results anymore
+                readers.shutdownNow();
+            }
+        }
+    }
+
+    // Closes the segments and waits for the writers. Remaining chunks in segments are loaded at the next start up
+    public void close()
+    {
+        for (Stripe stripe : stripes) {
+            stripe.close();
+        }
+    }
+
+    private Stripe nextStripe()
+    {
+        return stripes.get((nextStripeIndex.getAndIncrement() & Integer.MAX_VALUE) % stripes.size());
+    }
+
+    // Returns null if it failed to save the buffer
+    public SavedBuffer saveBuffer(List<String> params, ByteBuffer buffer)
+    {
+        return saveBuffer(params, buffer, -1);
+    }
+
+    // `eventCount` is recorded in the index of the segment. -1 if unknown
+    public SavedBuffer saveBuffer(List<String> params, ByteBuffer buffer, int eventCount)
+    {
+        return nextStripe().saveBuffer(params, buffer, eventCount);
+    }
+
+    // Saves the buffer with the writer thread of the next directory. The result is null if it failed to save the buffer
+    public Future<SavedBuffer> saveBufferAsync(List<String> params, ByteBuffer buffer, int eventCount)
+    {
+        return nextStripe().saveBufferAsync(params, buffer, eventCount, null);
+    }
+
+    public interface SaveCallback
+    {
+        // `savedBuffer` is null if it failed to save the buffer
+        void onSaved(SavedBuffer savedBuffer);
+    }
+
+    // `callback` is called in the writer thread once the buffer is saved
+    public Future<SavedBuffer> saveBufferAsync(List<String> params, ByteBuffer buffer, int eventCount, SaveCallback callback)
+    {
+        return nextStripe().saveBufferAsync(params, buffer, eventCount, callback);
+    }
+
+    private static class ReadResult
+    {
+        private static final ReadResult END = new ReadResult(null, null);
+        private final SavedBuffer savedBuffer;
+        private final ByteBuffer data;
+
+        ReadResult(SavedBuffer savedBuffer, ByteBuffer data)
+        {
+            this.savedBuffer = savedBuffer;
+            this.data = data;
         }
-        return savedBuffers;
     }
 
-    public void saveBuffer(List<String> params, ByteBuffer buffer)
+    private class Stripe
     {
-        List<String> copiedParams = new ArrayList<String>(params);
-        copiedParams.add(String.valueOf(System.nanoTime()));
+        private final File backupDir;
+        private final TreeMap<Long, BackupSegment> segments = new TreeMap<Long, BackupSegment>();
+        private BackupSegment activeSegment;
+        private ExecutorService writer;
 
-        boolean isFirst = true;
-        StringBuilder sb = new StringBuilder();
-        for (String param : copiedParams) {
-            if (isFirst) {
-                isFirst = false;
+        Stripe(File backupDir)
+        {
+            this.backupDir = backupDir;
+        }
+
+        List<SavedBuffer> getSavedFiles()
+        {
+            File[] files = backupDir.listFiles();
+            if (files == null) {
+                LOG.warn("Failed to list the backup directory. {}", backupDir);
+                return new ArrayList<SavedBuffer>();
             }
-            else {
-                sb.append(PARAM_DELIM_IN_FILENAME);
+            ArrayList<SavedBuffer> savedBuffers = new ArrayList<SavedBuffer>();
+            for (File f : files) {
+                Matcher matcher = pattern.matcher(f.getName());
+                if (matcher.find()) {
+                    if (matcher.groupCount() != 1) {
+                        LOG.warn("Invalid backup filename: file={}", f.getName());
+                    }
+                    else {
+                        String concatParams = matcher.group(1);
+                        String[] params = concatParams.split(PARAM_DELIM_IN_FILENAME);
+                        LinkedList<String> paramList = new LinkedList<String>(Arrays.asList(params));
+                        LOG.debug("Saved buffer params={}", paramList);
+                        paramList.removeLast();
+                        savedBuffers.add(new SavedBuffer(f, paramList));
+                    }
+                }
+            }
+            if (segmentEnabled) {
+                synchronized (this) {
+                    loadSegments(files);
+                    for (BackupSegment segment : segments.values()) {
+                        savedBuffers.addAll(segment.getEntries());
+                    }
+                }
             }
-            sb.append(param);
+            return savedBuffers;
         }
-        String filename = this.userBuffer.bufferFormatType() + prefix() + PARAM_DELIM_IN_FILENAME + sb.toString() + EXT_FILENAME;
 
-        File file = new File(backupDir, filename);
-        FileChannel channel = null;
-        try {
-            channel = new FileOutputStream(file).getChannel();
-            channel.write(buffer);
-        }
-        catch (Exception e) {
-            LOG.error("Failed to save buffer to file: params=" + copiedParams + ", path=" + file.getAbsolutePath() + ", buffer=" + buffer, e);
+        private File segmentFile(long segmentId, String ext)
+        {
+            return new File(backupDir, String.format("%s%s%s%020d%s", userBuffer.bufferFormatType(), prefix(), PARAM_DELIM_IN_FILENAME, segmentId, ext));
         }
-        finally {
-            if (channel != null) {
+
+        // Segments written by the previous process are loaded only once
+        private void loadSegments(File[] files)
+        {
+            Iterator<BackupSegment> iterator = segments.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isDeleted()) {
+                    iterator.remove();
+                }
+            }
+            for (File f : files) {
+                Matcher matcher = segmentPattern.matcher(f.getName());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                long segmentId = Long.parseLong(matcher.group(1));
+                if (segments.containsKey(segmentId)) {
+                    continue;
+                }
                 try {
-                    channel.close();
+                    BackupSegment segment = BackupSegment.load(segmentId,
+                            segmentFile(segmentId, EXT_SEGMENT_DATA_FILENAME), segmentFile(segmentId, EXT_SEGMENT_INDEX_FILENAME));
+                    LOG.info("Loaded backup segment: segment={}", segment);
+                    if (segment.getEntries().isEmpty()) {
+                        segment.close();
+                    }
+                    else {
+                        segments.put(segmentId, segment);
+                    }
                 }
                 catch (IOException e) {
-                    LOG.warn("Failed to close Channel: channel=" + channel);
+                    LOG.error("Failed to load the backup segment. Skipping it: file=" + f, e);
+                }
+            }
+        }
+
+        private synchronized SavedBuffer saveBufferToSegment(List<String> params, ByteBuffer buffer, int eventCount)
+        {
+            try {
+                if (activeSegment == null) {
+                    File[] files = backupDir.listFiles();
+                    loadSegments(files == null ? new File[0] : files);
+                }
+                else if (activeSegment.getDataSize() > 0 && activeSegment.getDataSize() + buffer.remaining() > segmentSize) {
+                    activeSegment.close();
+                    activeSegment = null;
+                }
+                if (activeSegment == null) {
+                    long segmentId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+                    activeSegment = BackupSegment.create(segmentId,
+                            segmentFile(segmentId, EXT_SEGMENT_DATA_FILENAME), segmentFile(segmentId, EXT_SEGMENT_INDEX_FILENAME));
+                    segments.put(segmentId, activeSegment);
+                }
+                return activeSegment.append(params, buffer, eventCount, compressionEnabled);
+            }
+            catch (Exception e) {
+                LOG.error("Failed to save buffer to segment: params=" + params + ", segment=" + activeSegment + ", buffer=" + buffer, e);
+                return null;
+            }
+        }
+
+        SavedBuffer saveBuffer(List<String> params, ByteBuffer buffer, int eventCount)
+        {
+            if (segmentEnabled) {
+                return saveBufferToSegment(params, buffer, eventCount);
+            }
+
+            List<String> copiedParams = new ArrayList<String>(params);
+            copiedParams.add(String.valueOf(System.nanoTime()));
+
+            boolean isFirst = true;
+            StringBuilder sb = new StringBuilder();
+            for (String param : copiedParams) {
+                if (isFirst) {
+                    isFirst = false;
+                }
+                else {
+                    sb.append(PARAM_DELIM_IN_FILENAME);
+                }
+                sb.append(param);
+            }
+            String filename = userBuffer.bufferFormatType() + prefix() + PARAM_DELIM_IN_FILENAME + sb.toString() + EXT_FILENAME;
+
+            File file = new File(backupDir, filename);
+            FileChannel channel = null;
+            try {
+                channel = new FileOutputStream(file).getChannel();
+                channel.write(buffer);
+                return new SavedBuffer(file, params);
+            }
+            catch (Exception e) {
+                LOG.error("Failed to save buffer to file: params=" + copiedParams + ", path=" + file.getAbsolutePath() + ", buffer=" + buffer, e);
+                return null;
+            }
+            finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    }
+                    catch (IOException e) {
+                        LOG.warn("Failed to close Channel: channel=" + channel);
+                    }
+                }
+            }
+        }
+
+        synchronized Future<SavedBuffer> saveBufferAsync(final List<String> params, final ByteBuffer buffer, final int eventCount, final SaveCallback callback)
+        {
+            if (writer == null) {
+                writer = ExecutorFactories.getDefault().newSingleThreadExecutor();
+            }
+            return writer.submit(new Callable<SavedBuffer>()
+            {
+                @Override
+                public SavedBuffer call()
+                {
+                    SavedBuffer savedBuffer = saveBuffer(params, buffer, eventCount);
+                    if (callback != null) {
+                        callback.onSaved(savedBuffer);
+                    }
+                    return savedBuffer;
+                }
+            });
+        }
+
+        void close()
+        {
+            ExecutorService writer;
+            synchronized (this) {
+                writer = this.writer;
+                this.writer = null;
+            }
+            if (writer != null) {
+                ExecutorServiceUtils.finishExecutorService(writer);
+            }
+            synchronized (this) {
+                for (BackupSegment segment : segments.values()) {
+                    segment.close();
                 }
+                segments.clear();
+                activeSegment = null;
             }
         }
     }
@@ -0,0 +1,96 @@
+package org.komamitsu.fluency.buffer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Completes when all the data appended to the buffer before `barrierTimeMillis` has been sent
+public class FlushBarrier
+        implements Future<Void>
+{
+    private final long barrierTimeMillis;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile Throwable failure;
+
+    FlushBarrier(long barrierTimeMillis)
+    {
+        this.barrierTimeMillis = barrierTimeMillis;
+    }
+
+    long getBarrierTimeMillis()
+    {
+        return barrierTimeMillis;
+    }
+
+    void complete()
+    {
+        latch.countDown();
+    }
+
+    void fail(Throwable failure)
+    {
+        this.failure = failure;
+        latch.countDown();
+    }
+
+    // Returns false if it isn't completed within the timeout
+    public boolean await(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        return latch.await(timeout, unit) && failure == null;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return latch.getCount() == 0;
+    }
+
+    @Override
+    public Void get()
+            throws InterruptedException, ExecutionException
+    {
+        latch.await();
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("The flush barrier isn't completed: barrier=" + this);
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FlushBarrier{" +
+                "barrierTimeMillis=" + barrierTimeMillis +
+                ", done=" + isDone() +
+                ", failure=" + failure +
+                '}';
+    }
+}
@@ -0,0 +1,54 @@
+package org.komamitsu.fluency.buffer;
+
+// Limits the data sent by one flush. Chunks are sent as a whole, so a flush can exceed it by one chunk
+public class FlushBudget
+{
+    public static final FlushBudget UNLIMITED = new FlushBudget(0, 0);
+    private final long maxBytes;
+    private final long maxMillis;
+    private final long startNanos = System.nanoTime();
+    private long sentBytes;
+
+    // 0 means unlimited
+    public FlushBudget(long maxBytes, long maxMillis)
+    {
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+    }
+
+    void consume(long bytes)
+    {
+        if (this != UNLIMITED) {
+            sentBytes += bytes;
+        }
+    }
+
+    public boolean isExhausted()
+    {
+        return (maxBytes > 0 && sentBytes >= maxBytes) || (maxMillis > 0 && System.nanoTime() - startNanos >= maxMillis * 1000000L);
+    }
+
+    // Long.MAX_VALUE if the time isn't limited
+    long getRemainingMillis()
+    {
+        if (maxMillis <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, maxMillis - (System.nanoTime() - startNanos) / 1000000L);
+    }
+
+    public long getSentBytes()
+    {
+        return sentBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FlushBudget{" +
+                "maxBytes=" + maxBytes +
+                ", maxMillis=" + maxMillis +
+                ", sentBytes=" + sentBytes +
+                '}';
+    }
+}
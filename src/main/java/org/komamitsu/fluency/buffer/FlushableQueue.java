@@ -0,0 +1,253 @@
+package org.komamitsu.fluency.buffer;
+
+import org.komamitsu.fluency.util.TagMatcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+
+// Flushable chunks split into priority lanes. Lanes are drained with smooth weighted round-robin
+class FlushableQueue
+    implements Iterable<TaggableBuffer>
+{
+    static final String DEFAULT_LANE_NAME = "default";
+    private final List<Lane> lanes = new ArrayList<Lane>();
+    private final TagMatcher<Lane> laneMatcher;
+    private final Lane defaultLane;
+    // Integer.MAX_VALUE if no priority class has its own max latency
+    private final int minMaxLatencyMillis;
+
+    FlushableQueue(List<PriorityClass> priorityClasses, int defaultWeight)
+    {
+        Map<String, Lane> patterns = new LinkedHashMap<String, Lane>();
+        int minMaxLatencyMillis = Integer.MAX_VALUE;
+        for (PriorityClass priorityClass : priorityClasses) {
+            if (priorityClass.getMaxLatencyMillis() != null) {
+                minMaxLatencyMillis = Math.min(minMaxLatencyMillis, priorityClass.getMaxLatencyMillis());
+            }
+            Lane lane = new Lane(priorityClass.getName(), priorityClass.getWeight(), priorityClass.getMaxLatencyMillis());
+            lanes.add(lane);
+            for (String tagPattern : priorityClass.getTagPatterns()) {
+                if (!patterns.containsKey(tagPattern)) {
+                    patterns.put(tagPattern, lane);
+                }
+            }
+        }
+        if (defaultWeight <= 0) {
+            throw new IllegalArgumentException("`defaultWeight` should be positive: " + defaultWeight);
+        }
+        defaultLane = new Lane(DEFAULT_LANE_NAME, defaultWeight, null);
+        lanes.add(defaultLane);
+        laneMatcher = new TagMatcher<Lane>(patterns);
+        this.minMaxLatencyMillis = minMaxLatencyMillis;
+    }
+
+    int getMinMaxLatencyMillis()
+    {
+        return minMaxLatencyMillis;
+    }
+
+    private Lane getLane(String tag)
+    {
+        return laneMatcher.match(tag, defaultLane);
+    }
+
+    // Returns `defaultValue` if the priority class of the tag doesn't have its own max latency
+    int getMaxLatencyMillis(String tag, int defaultValue)
+    {
+        Integer maxLatencyMillis = getLane(tag).maxLatencyMillis;
+        return maxLatencyMillis == null ? defaultValue : maxLatencyMillis;
+    }
+
+    void put(TaggableBuffer buffer)
+            throws InterruptedException
+    {
+        getLane(buffer.getTag()).queue.put(buffer);
+    }
+
+    // Put back a chunk which failed to be sent so that it's sent before the later chunks of the tag
+    void putFirst(TaggableBuffer buffer)
+            throws InterruptedException
+    {
+        getLane(buffer.getTag()).queue.putFirst(buffer);
+    }
+
+    TaggableBuffer poll()
+    {
+        return poll(Collections.<String>emptySet());
+    }
+
+    // Skips the chunks of `excludedTags`, e.g. the tags being sent by other flushers
+    synchronized TaggableBuffer poll(Set<String> excludedTags)
+    {
+        List<Lane> candidates = lanes;
+        while (true) {
+            int totalWeight = 0;
+            Lane selected = null;
+            for (Lane lane : candidates) {
+                if (lane.queue.isEmpty()) {
+                    continue;
+                }
+                lane.currentWeight += lane.weight;
+                totalWeight += lane.weight;
+                // Earlier lanes have higher priority on a tie
+                if (selected == null || lane.currentWeight > selected.currentWeight) {
+                    selected = lane;
+                }
+            }
+            if (selected == null) {
+                return null;
+            }
+            selected.currentWeight -= totalWeight;
+
+            TaggableBuffer buffer = excludedTags.isEmpty() ? selected.queue.poll() : pollFirstOf(selected, excludedTags);
+            if (buffer != null) {
+                return buffer;
+            }
+            if (!excludedTags.isEmpty()) {
+                // All the chunks in the lane are excluded
+                if (candidates == lanes) {
+                    candidates = new ArrayList<Lane>(lanes);
+                }
+                candidates.remove(selected);
+            }
+            // Otherwise, the chunk was evicted concurrently. Try again
+        }
+    }
+
+    private TaggableBuffer pollFirstOf(Lane lane, Set<String> excludedTags)
+    {
+        for (TaggableBuffer buffer : lane.queue) {
+            if (!excludedTags.contains(buffer.getTag()) && lane.queue.remove(buffer)) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    // Takes the oldest chunk regardless of the priority
+    TaggableBuffer pollOldest()
+    {
+        Lane oldestLane = null;
+        long oldest = Long.MAX_VALUE;
+        for (Lane lane : lanes) {
+            TaggableBuffer buffer = lane.queue.peek();
+            if (buffer != null && buffer.getFirstAppendTimeMillis() < oldest) {
+                oldest = buffer.getFirstAppendTimeMillis();
+                oldestLane = lane;
+            }
+        }
+        return oldestLane == null ? null : oldestLane.queue.poll();
+    }
+
+    // Only the chunks in the same lane as the tag, oldest first
+    Iterable<TaggableBuffer> chunksOf(String tag)
+    {
+        return getLane(tag).queue;
+    }
+
+    boolean remove(TaggableBuffer buffer)
+    {
+        return getLane(buffer.getTag()).queue.remove(buffer);
+    }
+
+    long getOldestFirstAppendTimeMillis()
+    {
+        long oldest = Long.MAX_VALUE;
+        for (Lane lane : lanes) {
+            TaggableBuffer buffer = lane.queue.peek();
+            if (buffer != null) {
+                oldest = Math.min(oldest, buffer.getFirstAppendTimeMillis());
+            }
+        }
+        return oldest;
+    }
+
+    int size(String laneName)
+    {
+        for (Lane lane : lanes) {
+            if (lane.name.equals(laneName)) {
+                return lane.queue.size();
+            }
+        }
+        throw new IllegalArgumentException("Unknown priority class: " + laneName);
+    }
+
+    @Override
+    public Iterator<TaggableBuffer> iterator()
+    {
+        return new Iterator<TaggableBuffer>()
+        {
+            private final Iterator<Lane> laneIterator = lanes.iterator();
+            private Iterator<TaggableBuffer> bufferIterator = Collections.<TaggableBuffer>emptyList().iterator();
+
+            @Override
+            public boolean hasNext()
+            {
+                while (!bufferIterator.hasNext()) {
+                    if (!laneIterator.hasNext()) {
+                        return false;
+                    }
+                    bufferIterator = laneIterator.next().queue.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public TaggableBuffer next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return bufferIterator.next();
+            }
+
+            @Override
+            public void remove()
+            {
+                bufferIterator.remove();
+            }
+        };
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FlushableQueue{" +
+                "lanes=" + lanes +
+                '}';
+    }
+
+    private static class Lane
+    {
+        private final String name;
+        private final int weight;
+        private final Integer maxLatencyMillis;
+        private final LinkedBlockingDeque<TaggableBuffer> queue = new LinkedBlockingDeque<TaggableBuffer>();
+        private int currentWeight;
+
+        Lane(String name, int weight, Integer maxLatencyMillis)
+        {
+            this.name = name;
+            this.weight = weight;
+            this.maxLatencyMillis = maxLatencyMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Lane{" +
+                    "name='" + name + '\'' +
+                    ", weight=" + weight +
+                    ", maxLatencyMillis=" + maxLatencyMillis +
+                    ", queue=" + queue +
+                    '}';
+        }
+    }
+}
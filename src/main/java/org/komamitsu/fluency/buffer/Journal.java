@@ -0,0 +1,476 @@
+package org.komamitsu.fluency.buffer;
+
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorServiceUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+// Append-only log of events split into segments. Writes are batched and forced to the disk together (group commit).
+// Appenders only stage records, and the committer thread writes and forces them, so appends don't wait for the disk.
+// A segment is removed once all the chunks that have its events are sent
+class Journal
+        implements Closeable
+{
+    private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String FILENAME_PREFIX = "journal";
+    private static final String EXT_FILENAME = ".log";
+    private static final int STAGING_BUFFER_SIZE = 64 * 1024;
+    static final long RECOVERY_COMMIT_TIMEOUT_MILLIS = 10000;
+    // tag length + data length + CRC32
+    private static final int RECORD_OVERHEAD = 4 + 4 + 4;
+    private final File dir;
+    private final String prefix;
+    private final long segmentSize;
+    private final long forceBytes;
+    private final Pattern pattern;
+    private final Map<Long, Integer> segmentRefCounts = new HashMap<Long, Integer>();
+    private final List<Long> recoverableSegmentIds = new ArrayList<Long>();
+    private final CRC32 crc32 = new CRC32();
+    // Serializes commits so that the records are written in order even if close() commits while the committer does
+    private final Object commitLock = new Object();
+    // Holds at most one wakeup so that commit requests are coalesced
+    private final BlockingQueue<Boolean> commitRequests = new ArrayBlockingQueue<Boolean>(1);
+    private final ExecutorService executorService = ExecutorFactories.getDefault().newSingleThreadExecutor();
+    private final int forceIntervalMillis;
+    // Staged records which the committer writes in this order
+    private List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+    private ByteBuffer stagingBuffer = ByteBuffer.allocate(STAGING_BUFFER_SIZE);
+    private long activeSegmentId;
+    private FileChannel activeChannel;
+    private long activeSegmentWrittenSize;
+    private long unforcedSize;
+    // The sequence number of the last appended record and the last one forced to the disk
+    private long appendedSequence;
+    private long committedSequence;
+    private volatile boolean closing;
+    private boolean closed;
+
+    Journal(File dir, String prefix, long segmentSize, int forceIntervalMillis, long forceBytes)
+            throws IOException
+    {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.forceBytes = forceBytes;
+        this.forceIntervalMillis = forceIntervalMillis;
+        this.pattern = Pattern.compile(Pattern.quote(FILENAME_PREFIX + prefix()) + "#(\\d+)" + Pattern.quote(EXT_FILENAME));
+
+        long maxSegmentId = 0;
+        for (long segmentId : listSegmentIds()) {
+            recoverableSegmentIds.add(segmentId);
+            maxSegmentId = Math.max(maxSegmentId, segmentId);
+        }
+        openSegment(maxSegmentId + 1);
+
+        executorService.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runCommitter();
+            }
+        });
+    }
+
+    // Commits every `forceIntervalMillis`, or when `forceBytes` of records are staged
+    private void runCommitter()
+    {
+        while (!closing) {
+            try {
+                commitRequests.poll(forceIntervalMillis, TimeUnit.MILLISECONDS);
+                commit();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Throwable e) {
+                LOG.error("Failed to commit the journal: journal=" + Journal.this, e);
+            }
+        }
+    }
+
+    private String prefix()
+    {
+        return prefix == null ? "" : "_" + prefix;
+    }
+
+    private File segmentFile(long segmentId)
+    {
+        return new File(dir, String.format("%s%s#%020d%s", FILENAME_PREFIX, prefix(), segmentId, EXT_FILENAME));
+    }
+
+    private List<Long> listSegmentIds()
+    {
+        List<Long> segmentIds = new ArrayList<Long>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            LOG.warn("Failed to list the journal directory. {}", dir);
+            return segmentIds;
+        }
+        for (File file : files) {
+            Matcher matcher = pattern.matcher(file.getName());
+            if (matcher.matches()) {
+                segmentIds.add(Long.parseLong(matcher.group(1)));
+            }
+        }
+        Collections.sort(segmentIds);
+        return segmentIds;
+    }
+
+    private void openSegment(long segmentId)
+            throws IOException
+    {
+        activeSegmentId = segmentId;
+        activeChannel = new RandomAccessFile(segmentFile(segmentId), "rw").getChannel();
+        activeSegmentWrittenSize = 0;
+        segmentRefCounts.put(segmentId, 0);
+    }
+
+    // The committer closes the old segment after writing the rest of its records
+    private void rotateSegment()
+            throws IOException
+    {
+        stageBuffer(activeChannel, true);
+        long oldSegmentId = activeSegmentId;
+        openSegment(activeSegmentId + 1);
+        if (segmentRefCounts.get(oldSegmentId) == 0) {
+            removeSegment(oldSegmentId);
+        }
+    }
+
+    private void removeSegment(long segmentId)
+    {
+        segmentRefCounts.remove(segmentId);
+        File file = segmentFile(segmentId);
+        if (!file.delete()) {
+            LOG.warn("Failed to delete journal segment: file={}", file);
+        }
+    }
+
+    // The segment the event is written to is retained and added to `retainedSegmentIds` unless it's already there.
+    // Returns the sequence number of the record to wait for its commit with awaitCommit()
+    synchronized long append(String tag, ByteBuffer data, List<Long> retainedSegmentIds)
+            throws IOException
+    {
+        if (closed) {
+            throw new IOException("The journal is already closed: journal=" + this);
+        }
+        byte[] tagBytes = tag.getBytes(CHARSET);
+        int recordSize = RECORD_OVERHEAD + tagBytes.length + data.remaining();
+        if (activeSegmentWrittenSize > 0 && activeSegmentWrittenSize + recordSize > segmentSize) {
+            rotateSegment();
+        }
+
+        crc32.reset();
+        crc32.update(tagBytes);
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(tagBytes.length).put(tagBytes).putInt(data.remaining());
+        int dataPosition = record.position();
+        record.put(data);
+        crc32.update(record.array(), dataPosition, record.position() - dataPosition);
+        record.putInt((int) crc32.getValue());
+        record.flip();
+
+        if (stagingBuffer.remaining() < recordSize) {
+            stageBuffer(activeChannel, false);
+        }
+        if (stagingBuffer.remaining() < recordSize) {
+            // Too large to stage together with others
+            pendingWrites.add(new PendingWrite(activeChannel, record, false));
+        }
+        else {
+            stagingBuffer.put(record);
+        }
+        activeSegmentWrittenSize += recordSize;
+        unforcedSize += recordSize;
+
+        if (retainedSegmentIds.isEmpty() || retainedSegmentIds.get(retainedSegmentIds.size() - 1) != activeSegmentId) {
+            segmentRefCounts.put(activeSegmentId, segmentRefCounts.get(activeSegmentId) + 1);
+            retainedSegmentIds.add(activeSegmentId);
+        }
+
+        if (unforcedSize >= forceBytes) {
+            commitRequests.offer(true);
+        }
+        return ++appendedSequence;
+    }
+
+    // Hands the staging buffer to the committer. `closeChannel` is true if no more records are written to the channel
+    private void stageBuffer(FileChannel channel, boolean closeChannel)
+    {
+        if (stagingBuffer.position() > 0 || closeChannel) {
+            stagingBuffer.flip();
+            pendingWrites.add(new PendingWrite(channel, stagingBuffer, closeChannel));
+            stagingBuffer = ByteBuffer.allocate(STAGING_BUFFER_SIZE);
+        }
+    }
+
+    // Writes the staged records and forces them to the disk. The committer thread calls it until close
+    private void commit()
+            throws IOException
+    {
+        synchronized (commitLock) {
+            List<PendingWrite> writes;
+            FileChannel channel;
+            long sequence;
+            synchronized (this) {
+                if (unforcedSize == 0 && pendingWrites.isEmpty()) {
+                    return;
+                }
+                stageBuffer(activeChannel, false);
+                writes = pendingWrites;
+                pendingWrites = new ArrayList<PendingWrite>();
+                channel = activeChannel;
+                sequence = appendedSequence;
+                unforcedSize = 0;
+            }
+
+            // Appenders can stage records while these are written
+            boolean activeChannelWritten = false;
+            for (PendingWrite write : writes) {
+                while (write.buffer.hasRemaining()) {
+                    write.channel.write(write.buffer);
+                }
+                if (write.closeChannel) {
+                    write.channel.force(false);
+                    write.channel.close();
+                }
+                else if (write.channel == channel) {
+                    activeChannelWritten = true;
+                }
+            }
+            if (activeChannelWritten) {
+                channel.force(false);
+            }
+
+            synchronized (this) {
+                committedSequence = Math.max(committedSequence, sequence);
+                notifyAll();
+            }
+        }
+    }
+
+    // Returns false if the record isn't forced to the disk within the timeout
+    synchronized boolean awaitCommit(long sequence, long timeoutMillis)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (committedSequence < sequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            commitRequests.offer(true);
+            wait(remaining);
+        }
+        return true;
+    }
+
+    synchronized long getAppendedSequence()
+    {
+        return appendedSequence;
+    }
+
+    synchronized void release(List<Long> segmentIds)
+    {
+        for (long segmentId : segmentIds) {
+            Integer refCount = segmentRefCounts.get(segmentId);
+            if (refCount == null) {
+                // Already removed at close
+                continue;
+            }
+            refCount--;
+            segmentRefCounts.put(segmentId, refCount);
+            if (refCount == 0 && segmentId != activeSegmentId) {
+                removeSegment(segmentId);
+            }
+        }
+    }
+
+    interface RecoveryCallback
+    {
+        void process(String tag, ByteBuffer data)
+                throws IOException;
+    }
+
+    // Replays the events in the segments left by the previous process and removes the segments
+    void recover(RecoveryCallback callback)
+            throws IOException
+    {
+        List<Long> segmentIds;
+        synchronized (this) {
+            segmentIds = new ArrayList<Long>(recoverableSegmentIds);
+            recoverableSegmentIds.clear();
+        }
+        for (long segmentId : segmentIds) {
+            File file = segmentFile(segmentId);
+            LOG.info("Recovering journal segment: file={}", file);
+            RandomAccessFile segment = new RandomAccessFile(file, "r");
+            ByteBuffer buffer;
+            try {
+                FileChannel channel = segment.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                segment.close();
+            }
+
+            while (buffer.hasRemaining()) {
+                Record record = readRecord(buffer);
+                if (record == null) {
+                    LOG.warn("Found a broken record. Skipping the rest of the segment: file={}, position={}", file, buffer.position());
+                    break;
+                }
+                callback.process(record.tag, record.data);
+            }
+            // The replayed events are appended to the active segment again. The old one is kept until they're forced
+            boolean committed;
+            try {
+                committed = awaitCommit(getAppendedSequence(), RECOVERY_COMMIT_TIMEOUT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while recovering the journal: file=" + file, e);
+            }
+            if (!committed) {
+                LOG.warn("The recovered events weren't forced in time. Keeping the journal segment: file={}", file);
+            }
+            else if (!file.delete()) {
+                LOG.warn("Failed to delete journal segment: file={}", file);
+            }
+        }
+    }
+
+    private Record readRecord(ByteBuffer buffer)
+    {
+        try {
+            int tagLength = buffer.getInt();
+            if (tagLength < 0 || tagLength > buffer.remaining()) {
+                return null;
+            }
+            byte[] tagBytes = new byte[tagLength];
+            buffer.get(tagBytes);
+            int dataLength = buffer.getInt();
+            if (dataLength < 0 || dataLength > buffer.remaining()) {
+                return null;
+            }
+            byte[] data = new byte[dataLength];
+            buffer.get(data);
+            int checksum = buffer.getInt();
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(tagBytes);
+            crc32.update(data);
+            if ((int) crc32.getValue() != checksum) {
+                return null;
+            }
+            return new Record(new String(tagBytes, CHARSET), ByteBuffer.wrap(data));
+        }
+        catch (BufferUnderflowException e) {
+            // Partially written at crash
+            return null;
+        }
+    }
+
+    synchronized int getSegmentCount()
+    {
+        return segmentRefCounts.size();
+    }
+
+    // `removeSegments` should be true only when all the events are saved in other ways
+    void close(boolean removeSegments)
+            throws IOException
+    {
+        closing = true;
+        commitRequests.offer(true);
+        ExecutorServiceUtils.finishExecutorService(executorService);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        // No more records are appended
+        commit();
+        synchronized (this) {
+            activeChannel.close();
+            if (removeSegments) {
+                for (long segmentId : new ArrayList<Long>(segmentRefCounts.keySet())) {
+                    removeSegment(segmentId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        close(false);
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "Journal{" +
+                "dir=" + dir +
+                ", prefix='" + prefix + '\'' +
+                ", segmentSize=" + segmentSize +
+                ", forceBytes=" + forceBytes +
+                ", segmentRefCounts=" + segmentRefCounts +
+                ", activeSegmentId=" + activeSegmentId +
+                ", unforcedSize=" + unforcedSize +
+                ", appendedSequence=" + appendedSequence +
+                ", committedSequence=" + committedSequence +
+                '}';
+    }
+
+    private static class PendingWrite
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean closeChannel;
+
+        PendingWrite(FileChannel channel, ByteBuffer buffer, boolean closeChannel)
+        {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.closeChannel = closeChannel;
+        }
+    }
+
+    private static class Record
+    {
+        private final String tag;
+        private final ByteBuffer data;
+
+        Record(String tag, ByteBuffer data)
+        {
+            this.tag = tag;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.komamitsu.fluency.buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tracks how much more memory the JVM can give to buffers. The direct buffer pool is looked up by its
+// ObjectName since BufferPoolMXBean isn't available on Java 6
+class JvmMemoryMonitor
+{
+    private static final Logger LOG = LoggerFactory.getLogger(JvmMemoryMonitor.class);
+    private static final String DIRECT_BUFFER_POOL_NAME = "java.nio:type=BufferPool,name=direct";
+    private static final String MAX_DIRECT_MEMORY_SIZE_OPTION = "-XX:MaxDirectMemorySize=";
+    private final boolean jvmHeapBufferMode;
+    private final float usageLimitRatio;
+    private final long checkIntervalMillis;
+    private final AtomicLong availableSize = new AtomicLong(Long.MAX_VALUE);
+    private volatile long lastCheckedTimeMillis;
+    private long maxDirectMemorySize = -1;
+    private volatile ObjectName directBufferPoolName;
+
+    JvmMemoryMonitor(boolean jvmHeapBufferMode, float usageLimitRatio, long checkIntervalMillis)
+    {
+        this.jvmHeapBufferMode = jvmHeapBufferMode;
+        this.usageLimitRatio = usageLimitRatio;
+        this.checkIntervalMillis = checkIntervalMillis;
+        if (!jvmHeapBufferMode) {
+            maxDirectMemorySize = detectMaxDirectMemorySize();
+            try {
+                directBufferPoolName = new ObjectName(DIRECT_BUFFER_POOL_NAME);
+            }
+            catch (Exception e) {
+                LOG.warn("Failed to create ObjectName: name={}", DIRECT_BUFFER_POOL_NAME, e);
+            }
+        }
+    }
+
+    private static long detectMaxDirectMemorySize()
+    {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith(MAX_DIRECT_MEMORY_SIZE_OPTION)) {
+                try {
+                    return parseSize(arg.substring(MAX_DIRECT_MEMORY_SIZE_OPTION.length()));
+                }
+                catch (NumberFormatException e) {
+                    LOG.warn("Failed to parse JVM option: {}", arg);
+                }
+            }
+        }
+        // The JVM's default limit of direct memory
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    static long parseSize(String size)
+    {
+        String s = size.trim().toLowerCase();
+        long unit = 1;
+        switch (s.charAt(s.length() - 1)) {
+            case 'k':
+                unit = 1024L;
+                break;
+            case 'm':
+                unit = 1024L * 1024;
+                break;
+            case 'g':
+                unit = 1024L * 1024 * 1024;
+                break;
+            case 't':
+                unit = 1024L * 1024 * 1024 * 1024;
+                break;
+        }
+        if (unit != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
+    }
+
+    // Negative value means the JVM is already over the limit. Long.MAX_VALUE means unknown
+    long getAvailableSize()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckedTimeMillis >= checkIntervalMillis) {
+            lastCheckedTimeMillis = now;
+            availableSize.set(computeAvailableSize());
+        }
+        return availableSize.get();
+    }
+
+    // Reflects allocations until the next check
+    void onAllocated(long size)
+    {
+        if (availableSize.get() != Long.MAX_VALUE) {
+            availableSize.addAndGet(-size);
+        }
+    }
+
+    boolean isUnderPressure()
+    {
+        return getAvailableSize() < 0;
+    }
+
+    private long computeAvailableSize()
+    {
+        long maxSize = getMaxMemorySize();
+        long usedSize = getUsedMemorySize();
+        if (maxSize < 0 || maxSize == Long.MAX_VALUE || usedSize < 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) (maxSize * usageLimitRatio) - usedSize;
+    }
+
+    protected long getMaxMemorySize()
+    {
+        return jvmHeapBufferMode ? Runtime.getRuntime().maxMemory() : maxDirectMemorySize;
+    }
+
+    protected long getUsedMemorySize()
+    {
+        if (jvmHeapBufferMode) {
+            return getHeapUsedSizeAfterGc();
+        }
+
+        if (directBufferPoolName == null) {
+            return -1;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(directBufferPoolName)) {
+                return -1;
+            }
+            return ((Number) server.getAttribute(directBufferPoolName, "MemoryUsed")).longValue();
+        }
+        catch (Exception e) {
+            LOG.warn("Failed to get the usage of direct memory", e);
+            directBufferPoolName = null;
+            return -1;
+        }
+    }
+
+    // The current usage includes garbage which the next GC collects, so the usage after the last GC is used.
+    // Pools which don't support it, or haven't been collected yet, fall back to the current usage
+    private static long getHeapUsedSizeAfterGc()
+    {
+        long usedSize = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isValid()) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage == null || usage.getCommitted() == 0) {
+                usage = pool.getUsage();
+            }
+            if (usage != null) {
+                usedSize += usage.getUsed();
+            }
+        }
+        return usedSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "JvmMemoryMonitor{" +
+                "jvmHeapBufferMode=" + jvmHeapBufferMode +
+                ", usageLimitRatio=" + usageLimitRatio +
+                ", checkIntervalMillis=" + checkIntervalMillis +
+                ", availableSize=" + availableSize +
+                ", maxDirectMemorySize=" + maxDirectMemorySize +
+                '}';
+    }
+}
@@ -0,0 +1,186 @@
+package org.komamitsu.fluency.buffer;
+
+import org.komamitsu.fluency.sender.Sender;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Holds events of low-latency tags as Forward protocol Messages ([tag, time, record]) which are sent as they are.
+// Appenders write to the active buffer while a flusher sends the other one, and the two buffers are reused
+class MessageLane
+{
+    private static final int MAX_CACHED_TAGS = 10000;
+    private static final int FIXARRAY_2 = 0x92;
+    private static final int FIXARRAY_3 = 0x93;
+    private final ConcurrentHashMap<String, byte[]> packedTags = new ConcurrentHashMap<String, byte[]>();
+    private final Object sendLock = new Object();
+    // Guarded by this
+    private ByteBuffer activeBuffer;
+    private long activeFirstAppendTimeMillis = Long.MAX_VALUE;
+    // Guarded by `sendLock`. Flipped, and has remaining data while it's being sent or after a failed send
+    private ByteBuffer sendingBuffer;
+    private volatile long sendingFirstAppendTimeMillis = Long.MAX_VALUE;
+
+    interface MessageConsumer
+    {
+        // `entry` is a PackedForward entry ([time, record])
+        void accept(String tag, ByteBuffer entry)
+                throws IOException;
+    }
+
+    MessageLane(int bufferSize)
+    {
+        activeBuffer = ByteBuffer.allocate(bufferSize);
+        sendingBuffer = ByteBuffer.allocate(bufferSize);
+        sendingBuffer.limit(0);
+    }
+
+    private byte[] packTag(String tag)
+            throws IOException
+    {
+        byte[] packedTag = packedTags.get(tag);
+        if (packedTag == null) {
+            MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
+            packer.packString(tag);
+            packer.close();
+            packedTag = packer.toByteArray();
+            if (packedTags.size() < MAX_CACHED_TAGS) {
+                packedTags.put(tag, packedTag);
+            }
+        }
+        return packedTag;
+    }
+
+    // `entry` is a PackedForward entry ([time, record]). Returns false if the active buffer doesn't have enough room
+    synchronized boolean append(String tag, ByteBuffer entry)
+            throws IOException
+    {
+        byte[] packedTag = packTag(tag);
+        // The array header of the entry is replaced with the one of the message
+        if (activeBuffer.remaining() < 1 + packedTag.length + entry.remaining() - 1) {
+            return false;
+        }
+        activeBuffer.put((byte) FIXARRAY_3);
+        activeBuffer.put(packedTag);
+        ByteBuffer body = entry.duplicate();
+        body.position(body.position() + 1);
+        activeBuffer.put(body);
+        if (activeFirstAppendTimeMillis == Long.MAX_VALUE) {
+            activeFirstAppendTimeMillis = System.currentTimeMillis();
+        }
+        return true;
+    }
+
+    // Sends the messages left by a failed send first. Returns the number of sent bytes
+    int send(Sender sender)
+            throws IOException
+    {
+        synchronized (sendLock) {
+            if (!sendingBuffer.hasRemaining()) {
+                synchronized (this) {
+                    if (activeBuffer.position() == 0) {
+                        return 0;
+                    }
+                    ByteBuffer buffer = sendingBuffer;
+                    sendingBuffer = activeBuffer;
+                    sendingFirstAppendTimeMillis = activeFirstAppendTimeMillis;
+                    activeBuffer = buffer;
+                    activeBuffer.clear();
+                    activeFirstAppendTimeMillis = Long.MAX_VALUE;
+                }
+                sendingBuffer.flip();
+            }
+            int size = sendingBuffer.remaining();
+            sender.send(sendingBuffer.duplicate());
+            sendingBuffer.position(sendingBuffer.limit());
+            sendingFirstAppendTimeMillis = Long.MAX_VALUE;
+            return size;
+        }
+    }
+
+    // Takes the messages in the active buffer out in the appended order
+    synchronized void drainActiveBuffer(MessageConsumer consumer)
+            throws IOException
+    {
+        activeBuffer.flip();
+        try {
+            drain(activeBuffer, consumer);
+        }
+        finally {
+            activeBuffer.clear();
+            activeFirstAppendTimeMillis = Long.MAX_VALUE;
+        }
+    }
+
+    // Takes all the unsent messages out in the appended order
+    void drainAll(MessageConsumer consumer)
+            throws IOException
+    {
+        synchronized (sendLock) {
+            try {
+                drain(sendingBuffer, consumer);
+            }
+            finally {
+                sendingBuffer.position(sendingBuffer.limit());
+                sendingFirstAppendTimeMillis = Long.MAX_VALUE;
+            }
+            drainActiveBuffer(consumer);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, MessageConsumer consumer)
+            throws IOException
+    {
+        if (!buffer.hasRemaining()) {
+            return;
+        }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(data);
+        try {
+            while (unpacker.hasNext()) {
+                unpacker.unpackArrayHeader();
+                String tag = unpacker.unpackString();
+                int start = (int) unpacker.getTotalReadBytes();
+                // Time and record
+                unpacker.skipValue();
+                unpacker.skipValue();
+                int end = (int) unpacker.getTotalReadBytes();
+                ByteBuffer entry = ByteBuffer.allocate(1 + end - start);
+                entry.put((byte) FIXARRAY_2);
+                entry.put(data, start, end - start);
+                entry.flip();
+                consumer.accept(tag, entry);
+            }
+        }
+        finally {
+            unpacker.close();
+        }
+    }
+
+    // Both are read in the lock since they're swapped in it
+    synchronized long getOldestUnsentTimeMillis()
+    {
+        return Math.min(sendingFirstAppendTimeMillis, activeFirstAppendTimeMillis);
+    }
+
+    // Without the messages being sent
+    synchronized int getSize()
+    {
+        return activeBuffer.position();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "MessageLane{" +
+                "size=" + getSize() +
+                ", activeFirstAppendTimeMillis=" + activeFirstAppendTimeMillis +
+                ", sendingFirstAppendTimeMillis=" + sendingFirstAppendTimeMillis +
+                '}';
+    }
+}
@@ -0,0 +1,13 @@
+package org.komamitsu.fluency.buffer;
+
+public enum OverflowPolicy
+{
+    // Throw BufferFullException
+    REJECT,
+    // Silently drop the event
+    DROP_NEWEST,
+    // Evict the oldest flushable chunk of the same tag to make room for the event
+    DROP_OLDEST,
+    // Keep events with a probability once the buffer usage exceeds a threshold and drop them when the buffer is full
+    SAMPLE,
+}
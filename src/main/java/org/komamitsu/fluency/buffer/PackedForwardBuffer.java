@@ -4,51 +4,265 @@ import com.fasterxml.jackson.databind.Module;
 import org.komamitsu.fluency.BufferFullException;
 import org.komamitsu.fluency.EventTime;
 import org.komamitsu.fluency.sender.Sender;
+import org.komamitsu.fluency.util.TagMatcher;
+import org.komamitsu.fluency.util.TokenBucket;
 import org.msgpack.core.MessagePack;
 import org.msgpack.core.MessagePacker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class PackedForwardBuffer
     extends Buffer
 {
     public static final String FORMAT_TYPE = "packed_forward";
     private static final Logger LOG = LoggerFactory.getLogger(PackedForwardBuffer.class);
+    private static final long COALESCING_POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    // Flushes without a time budget, including the ones on close, wait for the tags of other flushers at most this long
+    private static final long MAX_IN_FLIGHT_WAIT_MILLIS = 1000;
     private final Map<String, RetentionBuffer> retentionBuffers = new HashMap<String, RetentionBuffer>();
-    private final LinkedBlockingQueue<TaggableBuffer> flushableBuffers = new LinkedBlockingQueue<TaggableBuffer>();
+    private final FlushableQueue flushableBuffers;
     private final Queue<TaggableBuffer> backupBuffers = new ConcurrentLinkedQueue<TaggableBuffer>();
+    private final LinkedBlockingDeque<SpilledChunk> spilledChunks = new LinkedBlockingDeque<SpilledChunk>();
+    private final AtomicLong spilledSize = new AtomicLong();
+    // The capacity of chunks being written by the writer threads of FileBackup
+    private final AtomicLong spillingSize = new AtomicLong();
+    private final AtomicLong inUseSize = new AtomicLong();
+    private final AtomicLong appendedSize = new AtomicLong();
     private final BufferPool bufferPool;
+    private final TagMatcher<OverflowPolicy> overflowPolicies;
+    private final TagMatcher<Boolean> messageModeTags;
+    private final MessageLane messageLane;
+    private final TagQuotas tagQuotas;
+    // Guarded by `retentionBuffers`
+    private final AdaptiveChunkSizes adaptiveChunkSizes;
+    private final Journal journal;
+    private final AckLedger ackLedger;
+    private final LinkedBlockingDeque<AckLedger.Entry> unackedChunks = new LinkedBlockingDeque<AckLedger.Entry>();
+    private final Set<String> inFlightTags = new HashSet<String>();
+    // Chunks taken out of the queues and not settled yet, with their first append time. Guarded by `inFlightTags`
+    private final Map<Object, Long> inFlightChunks = new IdentityHashMap<Object, Long>();
+    private volatile boolean allBuffersSaved;
+    private final Map<OverflowPolicy, AtomicLong> overflowCounts = new EnumMap<OverflowPolicy, AtomicLong>(OverflowPolicy.class);
+    private final AtomicLong unevictableDropCount = new AtomicLong();
+    private final Random random = new Random();
+    private final TokenBucket backlogReplayLimiter;
+    private double backlogReplayCredit;
+    private long backlogReplayStartMillis;
+    private long backlogReplayedSize;
+    private volatile int effectiveChunkRetentionSize;
+    private volatile int effectiveChunkRetentionTimeMillis;
     private final Config config;
+    // Guarded by `messageLane`. Tags whose messages were moved to chunks. Their events go through chunks until
+    // the chunks are flushed so that the messages don't overtake them
+    private final Set<String> chunkRoutedTags = new HashSet<String>();
+    private final MessageLane.MessageConsumer messageLaneOverflowConsumer = new MessageLane.MessageConsumer()
+    {
+        @Override
+        public void accept(String tag, ByteBuffer entry)
+                throws IOException
+        {
+            synchronized (messageLane) {
+                chunkRoutedTags.add(tag);
+            }
+            loadDataToRetentionBuffers(tag, entry, 1, true);
+        }
+    };
 
     protected PackedForwardBuffer(PackedForwardBuffer.Config config)
     {
         super(config.getBaseConfig());
         this.config = config;
+        effectiveChunkRetentionSize = config.getChunkRetentionSize();
+        effectiveChunkRetentionTimeMillis = config.getChunkRetentionTimeMillis();
         if (config.getChunkInitialSize() > config.getChunkRetentionSize()) {
             LOG.warn("Initial Buffer Chunk Size ({}) shouldn't be more than Buffer Chunk Retention Size ({}) for better performance.",
                     config.getChunkInitialSize(), config.getChunkRetentionSize());
         }
+        validate(config);
+        if (config.isAdaptiveChunkSizingEnabled()) {
+            adaptiveChunkSizes = new AdaptiveChunkSizes(config.getMinAdaptiveChunkSize());
+        }
+        else {
+            adaptiveChunkSizes = null;
+        }
+        // The pool sizes buffers in powers of 2 of this size
+        int minBufferSize = adaptiveChunkSizes == null ? config.getChunkInitialSize() :
+                Math.min(config.getChunkInitialSize(), config.getMinAdaptiveChunkSize());
         bufferPool = new BufferPool(
-                config.getChunkInitialSize(), config.getMaxBufferSize(), config.jvmHeapBufferMode);
+                minBufferSize, config.getMaxBufferSize(), config.jvmHeapBufferMode,
+                config.getSharedMemoryBudget(), config.getSharedMemoryReservation(),
+                config.isJvmMemoryAware() ?
+                        new JvmMemoryMonitor(config.getJvmHeapBufferMode(), config.getJvmMemoryUsageLimitRatio(), config.getJvmMemoryCheckIntervalMillis()) : null);
+        flushableBuffers = new FlushableQueue(config.getPriorityClasses(), config.getDefaultPriorityWeight());
+        overflowPolicies = new TagMatcher<OverflowPolicy>(config.getOverflowPolicies());
+        Map<String, Boolean> messageModeTagPatterns = new LinkedHashMap<String, Boolean>();
+        for (String tagPattern : config.getMessageModeTagPatterns()) {
+            messageModeTagPatterns.put(tagPattern, Boolean.TRUE);
+        }
+        messageModeTags = new TagMatcher<Boolean>(messageModeTagPatterns);
+        tagQuotas = config.getTagQuotas().isEmpty() ? null : new TagQuotas(config.getTagQuotas(), config.getMaxBufferSize());
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            overflowCounts.put(policy, new AtomicLong());
+        }
+        if (!messageModeTags.isEmpty()) {
+            messageLane = new MessageLane(config.getMessageModeBufferSize());
+        }
+        else {
+            messageLane = null;
+        }
+        backlogReplayLimiter = config.getBacklogReplayBytesPerSecond() > 0 ? new TokenBucket(config.getBacklogReplayBytesPerSecond()) : null;
+        if (config.isJournalEnabled()) {
+            try {
+                // The journal is written only to the first backup directory
+                journal = new Journal(fileBackup.getBackupDirs().get(0), config.getFileBackupPrefix(),
+                        config.getJournalSegmentSize(), config.getJournalForceIntervalMillis(), config.getJournalForceBytes());
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Failed to open the journal: config=" + config, e);
+            }
+        }
+        else {
+            journal = null;
+        }
+        if (config.isAckLedgerEnabled()) {
+            try {
+                ackLedger = new AckLedger(fileBackup.getBackupDirs().get(0), config.getFileBackupPrefix(), config.getAckLedgerForceIntervalMillis());
+            }
+            catch (IOException e) {
+                throw new IllegalStateException("Failed to open the ack ledger: config=" + config, e);
+            }
+        }
+        else {
+            ackLedger = null;
+        }
+    }
+
+    // All the combinations are checked before the journal and the ack ledger open their files and threads
+    private void validate(Config config)
+    {
+        if (config.isAdaptiveChunkSizingEnabled()
+                && (config.getMinAdaptiveChunkSize() <= 0 || config.getMinAdaptiveChunkSize() > config.getChunkRetentionSize())) {
+            throw new IllegalArgumentException("`minAdaptiveChunkSize` should be in (0, chunkRetentionSize]: config=" + config);
+        }
+        if (config.getBacklogReplayShare() <= 0 || config.getBacklogReplayShare() > 1) {
+            throw new IllegalArgumentException("`backlogReplayShare` should be in (0, 1]: config=" + config);
+        }
+        if (config.getMaxCoalescedWriteSize() < 0 || config.getCoalescingWindowMicros() < 0) {
+            throw new IllegalArgumentException("`maxCoalescedWriteSize` and `coalescingWindowMicros` shouldn't be negative: config=" + config);
+        }
+        if (!config.getMessageModeTagPatterns().isEmpty()) {
+            if (config.getMessageModeBufferSize() <= 0) {
+                throw new IllegalArgumentException("`messageModeBufferSize` should be positive: config=" + config);
+            }
+            // Messages aren't acked one by one nor journaled
+            if (config.isAckResponseMode() || config.isJournalEnabled()) {
+                throw new IllegalArgumentException("The message mode can't be used with `ackResponseMode` or the journal: config=" + config);
+            }
+        }
+        if (config.isSpillEnabled() && fileBackup == null) {
+            throw new IllegalArgumentException("`fileBackupDir` is required to spill chunks: config=" + config);
+        }
+        if (config.isJournalEnabled() && fileBackup == null) {
+            throw new IllegalArgumentException("`fileBackupDir` is required for the journal: config=" + config);
+        }
+        if (config.isAckLedgerEnabled()) {
+            if (!config.isAckResponseMode() || fileBackup == null) {
+                throw new IllegalArgumentException("`ackResponseMode` and `fileBackupDir` are required for the ack ledger: config=" + config);
+            }
+            if (config.isJournalEnabled()) {
+                // Chunks in flight at crash would be replayed from both
+                throw new IllegalArgumentException("The ack ledger can't be used with the journal: config=" + config);
+            }
+        }
+    }
+
+    @Override
+    public void init()
+    {
+        if (config.isLazyBackupRecovery() && fileBackup != null) {
+            registerBackupFiles();
+        }
+        else {
+            super.init();
+        }
+        if (journal != null) {
+            try {
+                journal.recover(new Journal.RecoveryCallback()
+                {
+                    @Override
+                    public void process(String tag, ByteBuffer data)
+                            throws IOException
+                    {
+                        // A record can be a whole chunk loaded from a backup file
+                        loadDataToRetentionBuffers(tag, data, -1, true);
+                    }
+                });
+            }
+            catch (IOException e) {
+                LOG.error("Failed to recover the journal: journal=" + journal, e);
+            }
+        }
+        if (ackLedger != null) {
+            unackedChunks.addAll(ackLedger.getRecoveredEntries());
+        }
+    }
+
+    // Backup files are sent by the flusher directly from the files instead of being loaded into memory here
+    private void registerBackupFiles()
+    {
+        List<FileBackup.SavedBuffer> savedBuffers = fileBackup.getSavedFiles();
+        Collections.sort(savedBuffers, new Comparator<FileBackup.SavedBuffer>()
+        {
+            @Override
+            public int compare(FileBackup.SavedBuffer o1, FileBackup.SavedBuffer o2)
+            {
+                long diff = o1.getLastModified() - o2.getLastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (FileBackup.SavedBuffer savedBuffer : savedBuffers) {
+            if (savedBuffer.getParams().size() != 1) {
+                LOG.warn("The number of params should be 1. Skipping the file: savedBuffer={}", savedBuffer);
+                continue;
+            }
+            LOG.info("Registering backup file: savedBuffer={}", savedBuffer);
+            spilledChunks.addLast(new SpilledChunk(savedBuffer.getParams().get(0), (int) savedBuffer.getSize(), savedBuffer.getLastModified(), savedBuffer));
+            spilledSize.addAndGet(savedBuffer.getSize());
+        }
     }
 
-    private RetentionBuffer prepareBuffer(String tag, int writeSize)
+    // `overflowPolicy` is null for data which was accepted before. It's rejected without counting when the buffer is full
+    private RetentionBuffer prepareBuffer(String tag, int writeSize, OverflowPolicy overflowPolicy)
             throws BufferFullException
     {
         RetentionBuffer retentionBuffer = retentionBuffers.get(tag);
@@ -59,7 +273,8 @@ public class PackedForwardBuffer
         int existingDataSize = 0;
         int newBufferChunkRetentionSize;
         if (retentionBuffer == null) {
-            newBufferChunkRetentionSize = config.getChunkInitialSize();
+            newBufferChunkRetentionSize = adaptiveChunkSizes == null ? config.getChunkInitialSize() :
+                    adaptiveChunkSizes.getInitialSize(tag, config.getChunkInitialSize(), effectiveChunkRetentionSize, effectiveChunkRetentionTimeMillis);
         }
         else{
             existingDataSize = retentionBuffer.getByteBuffer().position();
@@ -70,17 +285,30 @@ public class PackedForwardBuffer
             newBufferChunkRetentionSize *= config.getChunkExpandRatio();
         }
 
-        ByteBuffer acquiredBuffer = bufferPool.acquireBuffer(newBufferChunkRetentionSize);
+        ByteBuffer acquiredBuffer = acquireBuffer(tag, newBufferChunkRetentionSize);
+        if (acquiredBuffer == null && overflowPolicy == null) {
+            throw new BufferFullException("Buffer is full. tag=" + tag + ", allocatedSize=" + bufferPool.getAllocatedSize());
+        }
         if (acquiredBuffer == null) {
-            throw new BufferFullException("Buffer is full. config=" + config + ", bufferPool=" + bufferPool);
+            acquiredBuffer = handleOverflow(tag, newBufferChunkRetentionSize, overflowPolicy);
+            if (acquiredBuffer == null) {
+                return null;
+            }
         }
 
-        RetentionBuffer newBuffer = new RetentionBuffer(acquiredBuffer);
+        RetentionBuffer newBuffer;
+        if (retentionBuffer != null) {
+            newBuffer = new RetentionBuffer(acquiredBuffer, retentionBuffer.getFirstAppendTimeMillis(), retentionBuffer.getJournalSegmentIds());
+            newBuffer.addEventCount(retentionBuffer.getEventCount());
+        }
+        else {
+            newBuffer = new RetentionBuffer(acquiredBuffer, System.currentTimeMillis(), journal != null ? new ArrayList<Long>() : null);
+        }
         if (retentionBuffer != null) {
             retentionBuffer.getByteBuffer().flip();
             newBuffer.getByteBuffer().put(retentionBuffer.getByteBuffer());
             newBuffer.getCreatedTimeMillis().set(System.currentTimeMillis());
-            bufferPool.returnBuffer(retentionBuffer.getByteBuffer());
+            returnBuffer(tag, retentionBuffer.getByteBuffer());
         }
         LOG.trace("prepareBuffer(): allocate a new buffer. tag={}, buffer={}", tag, newBuffer);
 
@@ -88,18 +316,242 @@ public class PackedForwardBuffer
         return newBuffer;
     }
 
-    private void loadDataToRetentionBuffers(String tag, ByteBuffer src)
+    private ByteBuffer acquireBuffer(String tag, int bufferSize)
+    {
+        if (config.isSpillEnabled()) {
+            spillFlushableBuffersIfNeeded(bufferSize);
+        }
+        ByteBuffer buffer = bufferPool.acquireBuffer(bufferSize);
+        if (buffer == null && (tagQuotas != null || config.getSharedMemoryBudget() != null || config.isSpillEnabled())) {
+            // BufferPool releases its pooled buffers when it fails. Retry since the tag quotas and
+            // the shared memory budget can guarantee the reserved size, and spilling may have freed memory
+            buffer = bufferPool.acquireBuffer(bufferSize);
+        }
+        if (buffer != null && tagQuotas != null && !tagQuotas.tryAcquire(tag, buffer.capacity(), getMaxSize())) {
+            LOG.trace("acquireBuffer(): exceeded the tag quota. tag={}, tagQuotas={}", tag, tagQuotas);
+            bufferPool.returnBuffer(buffer);
+            return null;
+        }
+        if (buffer != null) {
+            inUseSize.addAndGet(buffer.capacity());
+        }
+        return buffer;
+    }
+
+    private void returnBuffer(String tag, ByteBuffer buffer)
+    {
+        inUseSize.addAndGet(-buffer.capacity());
+        if (tagQuotas != null) {
+            tagQuotas.release(tag, buffer.capacity());
+        }
+        bufferPool.returnBuffer(buffer);
+    }
+
+    // Called when a chunk kept in the ack ledger after a failed send leaves the buffer without being sent
+    private void removeFromAckLedger(TaggableBuffer buffer)
+    {
+        if (ackLedger != null) {
+            try {
+                ackLedger.remove(buffer.getChunkId());
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to remove the chunk from the ack ledger: chunk={}", buffer, e);
+            }
+        }
+    }
+
+    // Called when the events in the chunk don't need to be recovered from the journal anymore
+    private void releaseJournal(TaggableBuffer buffer)
+    {
+        if (journal != null) {
+            journal.release(buffer.getJournalSegmentIds());
+        }
+    }
+
+    // Only picks the chunks to spill since it's called with the lock of the retention buffers.
+    // The writer threads of FileBackup write them, and their memory is returned after that
+    private void spillFlushableBuffersIfNeeded(int bufferSize)
+    {
+        // Relative to the limit shrunk by the JVM's available memory, so chunks are spilled before allocations fail
+        long threshold = (long) (getMaxSize() * config.getSpillThreshold());
+        while (true) {
+            TaggableBuffer flushableBuffer;
+            // The sizes are updated together in the lock when a write finishes
+            synchronized (inFlightTags) {
+                if (inUseSize.get() - spillingSize.get() + bufferSize <= threshold) {
+                    return;
+                }
+                flushableBuffer = flushableBuffers.pollOldest();
+                if (flushableBuffer == null) {
+                    return;
+                }
+                inFlightChunks.put(flushableBuffer, flushableBuffer.getFirstAppendTimeMillis());
+                spillingSize.addAndGet(flushableBuffer.getByteBuffer().capacity());
+            }
+            spillFlushableBufferAsync(flushableBuffer);
+        }
+    }
+
+    private void spillFlushableBufferAsync(final TaggableBuffer flushableBuffer)
+    {
+        final int size = flushableBuffer.getByteBuffer().remaining();
+        final int capacity = flushableBuffer.getByteBuffer().capacity();
+        fileBackup.saveBufferAsync(Collections.singletonList(flushableBuffer.getTag()), flushableBuffer.getByteBuffer(), flushableBuffer.getEventCount(),
+                new FileBackup.SaveCallback()
+                {
+                    @Override
+                    public void onSaved(FileBackup.SavedBuffer savedBuffer)
+                    {
+                        synchronized (inFlightTags) {
+                            try {
+                                onSpilled(flushableBuffer, size, savedBuffer);
+                            }
+                            finally {
+                                spillingSize.addAndGet(-capacity);
+                                inFlightChunks.remove(flushableBuffer);
+                                inFlightTags.notifyAll();
+                            }
+                        }
+                    }
+                });
+    }
+
+    // Called in a writer thread of FileBackup. `savedBuffer` is null if it failed to write the chunk
+    private void onSpilled(TaggableBuffer flushableBuffer, int size, FileBackup.SavedBuffer savedBuffer)
+    {
+        if (savedBuffer == null) {
+            // Failed to write it. Keep it in memory
+            flushableBuffer.getByteBuffer().rewind();
+            try {
+                flushableBuffers.putFirst(flushableBuffer);
+            }
+            catch (InterruptedException e) {
+                LOG.warn("Failed to put back the chunk. Trying to save it in extra buffer: chunk={}", flushableBuffer);
+                backupBuffers.add(flushableBuffer);
+            }
+            return;
+        }
+        LOG.debug("Spilled the oldest flushable buffer to disk: tag={}, buffer={}", flushableBuffer.getTag(), flushableBuffer);
+        spilledChunks.addLast(new SpilledChunk(flushableBuffer.getTag(), size, flushableBuffer.getFirstAppendTimeMillis(), savedBuffer));
+        spilledSize.addAndGet(size);
+        // The spilled chunk is sent with another chunk id
+        removeFromAckLedger(flushableBuffer);
+        releaseJournal(flushableBuffer);
+        returnBuffer(flushableBuffer.getTag(), flushableBuffer.getByteBuffer());
+    }
+
+    private ByteBuffer handleOverflow(String tag, int bufferSize, OverflowPolicy overflowPolicy)
+            throws BufferFullException
+    {
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                ByteBuffer acquiredBuffer;
+                while ((acquiredBuffer = acquireBuffer(tag, bufferSize)) == null) {
+                    if (!evictOldestFlushableBuffer(tag)) {
+                        // BufferPool may have released pooled buffers in the last failed acquisition
+                        acquiredBuffer = acquireBuffer(tag, bufferSize);
+                        break;
+                    }
+                    overflowCounts.get(OverflowPolicy.DROP_OLDEST).incrementAndGet();
+                }
+                if (acquiredBuffer == null) {
+                    unevictableDropCount.incrementAndGet();
+                }
+                return acquiredBuffer;
+            case DROP_NEWEST:
+            case SAMPLE:
+                overflowCounts.get(overflowPolicy).incrementAndGet();
+                return null;
+            default:
+                overflowCounts.get(OverflowPolicy.REJECT).incrementAndGet();
+                throw new BufferFullException("Buffer is full. tag=" + tag + ", allocatedSize=" + bufferPool.getAllocatedSize());
+        }
+    }
+
+    private boolean evictOldestFlushableBuffer(String tag)
+    {
+        for (TaggableBuffer flushableBuffer : flushableBuffers.chunksOf(tag)) {
+            // The flusher can take the chunk concurrently, so only the thread that removed it returns it to the pool
+            if (flushableBuffer.getTag().equals(tag) && flushableBuffers.remove(flushableBuffer)) {
+                LOG.debug("Evicted the oldest flushable buffer due to buffer full: tag={}, buffer={}", tag, flushableBuffer);
+                removeFromAckLedger(flushableBuffer);
+                releaseJournal(flushableBuffer);
+                returnBuffer(tag, flushableBuffer.getByteBuffer());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean sampledOut(OverflowPolicy overflowPolicy)
+    {
+        if (overflowPolicy != OverflowPolicy.SAMPLE || getBufferUsage() < config.getOverflowSamplingThreshold()) {
+            return false;
+        }
+        synchronized (random) {
+            if (random.nextFloat() < config.getOverflowSamplingRate()) {
+                return false;
+            }
+        }
+        overflowCounts.get(OverflowPolicy.SAMPLE).incrementAndGet();
+        return true;
+    }
+
+    // `eventCount` is -1 if unknown. Reloaded data, such as recovered backups and journal, was accepted before,
+    // so it isn't sampled out or dropped by the overflow policies
+    private void loadDataToRetentionBuffers(String tag, ByteBuffer src, int eventCount, boolean reloaded)
             throws IOException
     {
+        OverflowPolicy overflowPolicy = null;
+        if (!reloaded) {
+            overflowPolicy = overflowPolicies.match(tag, config.getDefaultOverflowPolicy());
+            if (sampledOut(overflowPolicy)) {
+                return;
+            }
+        }
+
         synchronized (retentionBuffers) {
-            RetentionBuffer buffer = prepareBuffer(tag, src.remaining());
+            RetentionBuffer buffer = prepareBuffer(tag, src.remaining(), overflowPolicy);
+            if (buffer == null) {
+                // Dropped according to the overflow policy
+                return;
+            }
+            if (journal != null) {
+                journal.append(tag, src.duplicate(), buffer.getJournalSegmentIds());
+            }
+            if (!reloaded) {
+                appendedSize.addAndGet(src.remaining());
+            }
             buffer.getByteBuffer().put(src);
+            buffer.addEventCount(eventCount);
             moveRetentionBufferIfNeeded(tag, buffer);
         }
     }
 
     @Override
     protected void loadBufferFromFile(List<String> params, FileChannel channel)
+    {
+        MappedByteBuffer src;
+        try {
+            src = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+        }
+        catch (Exception e) {
+            LOG.error("Failed to load data to flushableBuffers: params={}, channel={}", params, channel);
+            return;
+        }
+        try {
+            loadBufferFromByteBuffer(params, src, -1);
+        }
+        catch (IOException e) {
+            // FileBackup keeps the file when loading it fails
+            throw new IllegalStateException("Failed to load data durably: params=" + params + ", channel=" + channel, e);
+        }
+    }
+
+    // Throws IOException if the loaded data isn't forced to the journal in time, so that the caller keeps the file
+    @Override
+    protected void loadBufferFromByteBuffer(List<String> params, ByteBuffer buffer, int eventCount)
+            throws IOException
     {
         if (params.size() != 1) {
             throw new IllegalArgumentException("The number of params should be 1: params=" + params);
@@ -107,32 +559,90 @@ public class PackedForwardBuffer
         String tag = params.get(0);
 
         try {
-            MappedByteBuffer src = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
-            loadDataToRetentionBuffers(tag, src);
+            loadDataToRetentionBuffers(tag, buffer, eventCount, true);
         }
         catch (Exception e) {
-            LOG.error("Failed to load data to flushableBuffers: params={}, channel={}", params, channel);
+            LOG.error("Failed to load data to flushableBuffers: params={}, buffer={}", params, buffer);
+            return;
+        }
+        try {
+            if (!waitForJournalCommit(Journal.RECOVERY_COMMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("The loaded data wasn't forced to the journal in time: params=" + params);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the journal: params=" + params, e);
         }
-    }
-
-    private void saveBuffer(TaggableBuffer buffer)
-    {
-        saveBuffer(Collections.singletonList(buffer.getTag()), buffer.getByteBuffer());
     }
 
     @Override
     protected void saveAllBuffersToFile()
             throws IOException
     {
+        if (messageLane != null) {
+            // The messages are saved in chunks
+            messageLane.drainAll(messageLaneOverflowConsumer);
+        }
         moveRetentionBuffersToFlushable(true);  // Just in case
 
+        // Chunks that failed to be spilled or sent are put back to the flushable buffers. The flushers interrupted
+        // on a deadline close can still be sending them
+        synchronized (inFlightTags) {
+            while (spillingSize.get() > 0 || hasInFlightLiveChunks()) {
+                try {
+                    inFlightTags.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for chunks in flight", e);
+                }
+            }
+        }
+
+        // Spilled chunks are already in files and they're loaded at the next start up
+        spilledChunks.clear();
+        spilledSize.set(0);
+
+        List<TaggableBuffer> chunks = new ArrayList<TaggableBuffer>();
         TaggableBuffer flushableBuffer;
         while ((flushableBuffer = flushableBuffers.poll()) != null) {
-            saveBuffer(flushableBuffer);
+            chunks.add(flushableBuffer);
         }
         while ((flushableBuffer = backupBuffers.poll()) != null) {
-            saveBuffer(flushableBuffer);
+            chunks.add(flushableBuffer);
+        }
+        if (fileBackup == null) {
+            allBuffersSaved = chunks.isEmpty();
+            return;
+        }
+
+        // Chunks are saved in parallel by the writer of each backup directory
+        List<Future<FileBackup.SavedBuffer>> savedBuffers = new ArrayList<Future<FileBackup.SavedBuffer>>(chunks.size());
+        for (TaggableBuffer chunk : chunks) {
+            LOG.info("Saving buffer: tag={}, buffer={}", chunk.getTag(), chunk.getByteBuffer());
+            savedBuffers.add(fileBackup.saveBufferAsync(Collections.singletonList(chunk.getTag()), chunk.getByteBuffer(), chunk.getEventCount()));
+        }
+        boolean allSaved = true;
+        for (int i = 0; i < savedBuffers.size(); i++) {
+            try {
+                if (savedBuffers.get(i).get() != null) {
+                    removeFromAckLedger(chunks.get(i));
+                }
+                else {
+                    allSaved = false;
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while saving buffers", e);
+            }
+            catch (ExecutionException e) {
+                LOG.error("Failed to save buffer", e);
+                allSaved = false;
+            }
         }
+        allBuffersSaved = allSaved;
     }
 
     private void appendMapInternal(String tag, Object timestamp, Map<String, Object> data)
@@ -142,7 +652,7 @@ public class PackedForwardBuffer
         objectMapper.writeValue(outputStream, Arrays.asList(timestamp, data));
         outputStream.close();
 
-        loadDataToRetentionBuffers(tag, ByteBuffer.wrap(outputStream.toByteArray()));
+        appendEntry(tag, ByteBuffer.wrap(outputStream.toByteArray()));
     }
 
     private void appendMessagePackMapValueInternal(String tag, Object timestamp, byte[] mapValue, int offset, int len)
@@ -155,7 +665,7 @@ public class PackedForwardBuffer
         outputStream.write(mapValue, offset, len);
         outputStream.close();
 
-        loadDataToRetentionBuffers(tag, ByteBuffer.wrap(outputStream.toByteArray()));
+        appendEntry(tag, ByteBuffer.wrap(outputStream.toByteArray()));
     }
 
     private void appendMessagePackMapValueInternal(String tag, Object timestamp, ByteBuffer mapValue)
@@ -171,7 +681,33 @@ public class PackedForwardBuffer
         }
         outputStream.close();
 
-        loadDataToRetentionBuffers(tag, ByteBuffer.wrap(outputStream.toByteArray()));
+        appendEntry(tag, ByteBuffer.wrap(outputStream.toByteArray()));
+    }
+
+    private void appendEntry(String tag, ByteBuffer entry)
+            throws IOException
+    {
+        if (messageLane == null || messageModeTags.match(tag) == null) {
+            loadDataToRetentionBuffers(tag, entry, 1, false);
+            return;
+        }
+        int size = entry.remaining();
+        synchronized (messageLane) {
+            if (chunkRoutedTags.contains(tag)) {
+                loadDataToRetentionBuffers(tag, entry, 1, false);
+                return;
+            }
+            if (!messageLane.append(tag, entry)) {
+                // The flusher can't keep up. The messages go through chunks instead, keeping their order
+                LOG.debug("The message lane is full. Moving the messages to chunks: tag={}, messageLane={}", tag, messageLane);
+                messageLane.drainActiveBuffer(messageLaneOverflowConsumer);
+                chunkRoutedTags.add(tag);
+                loadDataToRetentionBuffers(tag, entry, 1, false);
+                return;
+            }
+        }
+        appendedSize.addAndGet(size);
+        notifyChunkSealed(tag);
     }
 
     @Override
@@ -220,20 +756,22 @@ public class PackedForwardBuffer
     private void moveRetentionBufferIfNeeded(String tag, RetentionBuffer buffer)
             throws IOException
     {
-        if (buffer.getByteBuffer().position() > config.getChunkRetentionSize()) {
+        if (buffer.getByteBuffer().position() > getChunkSealSize(tag)) {
             moveRetentionBufferToFlushable(tag, buffer);
+            notifyChunkSealed(tag);
         }
     }
 
     private void moveRetentionBuffersToFlushable(boolean force)
             throws IOException
     {
-        long expiredThreshold = System.currentTimeMillis() - config.getChunkRetentionTimeMillis();
+        long now = System.currentTimeMillis();
 
         synchronized (retentionBuffers) {
             for (Map.Entry<String, RetentionBuffer> entry : retentionBuffers.entrySet()) {
                 // it can be null because moveRetentionBufferToFlushable() can set null
                 if (entry.getValue() != null) {
+                    long expiredThreshold = now - flushableBuffers.getMaxLatencyMillis(entry.getKey(), effectiveChunkRetentionTimeMillis);
                     if (force || entry.getValue().getCreatedTimeMillis().get() < expiredThreshold) {
                         moveRetentionBufferToFlushable(entry.getKey(), entry.getValue());
                     }
@@ -247,8 +785,11 @@ public class PackedForwardBuffer
     {
         try {
             LOG.trace("moveRetentionBufferToFlushable(): tag={}, buffer={}", tag, buffer);
+            if (adaptiveChunkSizes != null) {
+                adaptiveChunkSizes.recordChunk(tag, buffer.getByteBuffer().position(), buffer.getFirstAppendTimeMillis(), System.currentTimeMillis());
+            }
             buffer.getByteBuffer().flip();
-            flushableBuffers.put(new TaggableBuffer(tag, buffer.getByteBuffer()));
+            flushableBuffers.put(new TaggableBuffer(tag, buffer.getByteBuffer(), buffer.getFirstAppendTimeMillis(), buffer.getJournalSegmentIds(), buffer.getEventCount()));
             retentionBuffers.put(tag, null);
         }
         catch (InterruptedException e) {
@@ -266,119 +807,695 @@ public class PackedForwardBuffer
     public void flushInternal(Sender sender, boolean force)
             throws IOException
     {
+        flushInternal(sender, force, FlushBudget.UNLIMITED);
+    }
+
+    @Override
+    protected void flushInternal(Sender sender, boolean force, FlushBudget budget)
+            throws IOException
+    {
+        if (messageLane != null) {
+            // Messages of low-latency tags go ahead of chunks
+            budget.consume(messageLane.send(sender));
+        }
         moveRetentionBuffersToFlushable(force);
 
-        TaggableBuffer flushableBuffer;
         ByteArrayOutputStream header = new ByteArrayOutputStream();
         MessagePacker messagePacker = MessagePack.newDefaultPacker(header);
-        while (!Thread.currentThread().isInterrupted() &&
-                (flushableBuffer = flushableBuffers.poll()) != null) {
-            boolean keepBuffer = false;
-            try {
-                LOG.trace("flushInternal(): bufferUsage={}, flushableBuffer={}", getBufferUsage(), flushableBuffer);
-                String tag = flushableBuffer.getTag();
-                ByteBuffer byteBuffer = flushableBuffer.getByteBuffer();
-                if (config.isAckResponseMode()) {
-                    messagePacker.packArrayHeader(3);
-                }
-                else {
-                    messagePacker.packArrayHeader(2);
-                }
-                messagePacker.packString(tag);
-                messagePacker.packRawStringHeader(byteBuffer.limit());
-                messagePacker.flush();
-
-                try {
-                    ByteBuffer headerBuffer = ByteBuffer.wrap(header.toByteArray());
-                    List<ByteBuffer> dataList = Arrays.asList(headerBuffer, byteBuffer);
-                    if (config.isAckResponseMode()) {
-                        String uuid = UUID.randomUUID().toString();
-                        byte[] uuidBytes = uuid.getBytes(CHARSET);
-                        synchronized (sender) {
-                            sender.sendWithAck(dataList, uuidBytes);
-                        }
-                    } else {
-                        synchronized (sender) {
-                            sender.send(dataList);
-                        }
-                    }
-                }
-                catch (IOException e) {
-                    LOG.warn("Failed to send data. The data is going to be saved into the buffer again: data={}", flushableBuffer);
-                    keepBuffer = true;
-                    throw e;
-                }
+        resendUnackedChunks(sender, messagePacker, header, budget);
+        while (!Thread.currentThread().isInterrupted() && !budget.isExhausted()) {
+            // Spilled chunks and backup files are older than the ones in memory, but they share the flusher with
+            // live chunks according to `backlogReplayShare`
+            boolean flushed;
+            if (nextIsBacklog()) {
+                flushed = replayBacklogChunk(sender, messagePacker, header, budget) || flushLiveChunk(sender, messagePacker, header, budget);
             }
-            finally {
-                header.reset();
-                if (keepBuffer) {
-                    try {
-                        flushableBuffers.put(flushableBuffer);
-                    }
-                    catch (InterruptedException e1) {
-                        LOG.warn("Failed to save the data into the buffer. Trying to save it in extra buffer: chunk={}", flushableBuffer);
-                        backupBuffers.add(flushableBuffer);
-                    }
-                }
-                else {
-                    bufferPool.returnBuffer(flushableBuffer.getByteBuffer());
-                }
+            else {
+                flushed = flushLiveChunk(sender, messagePacker, header, budget) || replayBacklogChunk(sender, messagePacker, header, budget);
+            }
+            if (!flushed) {
+                break;
             }
         }
+        releaseChunkRoutedTags();
     }
 
-    @Override
-    protected synchronized void closeInternal()
+    // Called with the lock of `inFlightTags`. Spilled chunks being replayed are still in their files
+    private boolean hasInFlightLiveChunks()
     {
-        retentionBuffers.clear();
-        bufferPool.releaseBuffers();
+        for (Object chunk : inFlightChunks.keySet()) {
+            if (chunk instanceof TaggableBuffer) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    @Override
-    public long getAllocatedSize()
+    // The tags go back to the message lane once their chunks are flushed
+    private void releaseChunkRoutedTags()
     {
-        return bufferPool.getAllocatedSize();
+        if (messageLane == null) {
+            return;
+        }
+        synchronized (messageLane) {
+            Iterator<String> iterator = chunkRoutedTags.iterator();
+            while (iterator.hasNext()) {
+                if (!hasChunks(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+        }
     }
 
-    @Override
-    public long getBufferedDataSize()
+    // Reads the stages in the order chunks move through so that a moving chunk isn't missed
+    private boolean hasChunks(String tag)
     {
-        long size = 0;
         synchronized (retentionBuffers) {
-            for (Map.Entry<String, RetentionBuffer> buffer : retentionBuffers.entrySet()) {
-                if (buffer.getValue() != null && buffer.getValue().getByteBuffer() != null) {
-                    size += buffer.getValue().getByteBuffer().position();
-                }
+            if (retentionBuffers.get(tag) != null) {
+                return true;
             }
         }
-        for (TaggableBuffer buffer : flushableBuffers) {
-            if (buffer.getByteBuffer() != null) {
-                size += buffer.getByteBuffer().remaining();
+        synchronized (inFlightTags) {
+            if (inFlightTags.contains(tag)) {
+                return true;
+            }
+            for (TaggableBuffer buffer : flushableBuffers.chunksOf(tag)) {
+                if (buffer.getTag().equals(tag)) {
+                    return true;
+                }
+            }
+            for (TaggableBuffer buffer : backupBuffers) {
+                if (buffer.getTag().equals(tag)) {
+                    return true;
+                }
+            }
+            // Chunks being spilled or replayed
+            for (Object chunk : inFlightChunks.keySet()) {
+                if ((chunk instanceof TaggableBuffer && ((TaggableBuffer) chunk).getTag().equals(tag))
+                        || (chunk instanceof SpilledChunk && ((SpilledChunk) chunk).tag.equals(tag))) {
+                    return true;
+                }
+            }
+            for (SpilledChunk spilledChunk : spilledChunks) {
+                if (spilledChunk.tag.equals(tag)) {
+                    return true;
+                }
             }
         }
-        return size;
+        return false;
     }
 
-    public boolean getJvmHeapBufferMode()
+    // Chunks which were in flight when the previous process stopped are resent with their original ids
+    private void resendUnackedChunks(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, FlushBudget budget)
+            throws IOException
     {
-        return bufferPool.getJvmHeapBufferMode();
+        while (!Thread.currentThread().isInterrupted() && !budget.isExhausted()) {
+            AckLedger.Entry entry;
+            synchronized (inFlightTags) {
+                entry = unackedChunks.pollFirst();
+                if (entry == null) {
+                    return;
+                }
+                // When they were appended isn't known
+                inFlightChunks.put(entry, Long.MIN_VALUE);
+            }
+            LOG.trace("resendUnackedChunks(): entry={}", entry);
+            int size = entry.getData().remaining();
+            try {
+                sendChunk(sender, messagePacker, header, entry.getTag(), entry.getData(), entry.getChunkId());
+                budget.consume(size);
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to resend an unacked chunk. The chunk is going to be kept in the ack ledger: entry={}", entry);
+                unackedChunks.addFirst(entry);
+                throw e;
+            }
+            finally {
+                synchronized (inFlightTags) {
+                    inFlightChunks.remove(entry);
+                }
+            }
+            ackLedger.remove(entry.getChunkId());
+        }
     }
 
-    private static class RetentionBuffer
+    private synchronized boolean nextIsBacklog()
     {
-        private final AtomicLong createdTimeMillis = new AtomicLong();
-        private final ByteBuffer byteBuffer;
-
-        public RetentionBuffer(ByteBuffer byteBuffer)
-        {
-            this.byteBuffer = byteBuffer;
+        backlogReplayCredit = Math.min(1, backlogReplayCredit + config.getBacklogReplayShare());
+        if (backlogReplayCredit >= 1) {
+            backlogReplayCredit -= 1;
+            return true;
         }
+        return false;
+    }
 
-        public AtomicLong getCreatedTimeMillis()
-        {
+    // Returns false if there is no flushable chunk
+    private boolean flushLiveChunk(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, FlushBudget budget)
+            throws IOException
+    {
+        TaggableBuffer flushableBuffer;
+        List<TaggableBuffer> flushableBufferList;
+        synchronized (inFlightTags) {
+            // Chunks of a tag are sent one by one even with multiple flushers so that their order is kept
+            long waitDeadline = System.currentTimeMillis() + Math.min(budget.getRemainingMillis(), MAX_IN_FLIGHT_WAIT_MILLIS);
+            while ((flushableBuffer = flushableBuffers.poll(inFlightTags)) == null) {
+                if (inFlightTags.isEmpty() || !flushableBuffers.iterator().hasNext()) {
+                    return false;
+                }
+                // The rest are the chunks of the tags being sent by other flushers. Giving up doesn't leave them
+                // behind since those flushers keep sending the rest of the tags
+                long waitMillis = waitDeadline - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    return false;
+                }
+                try {
+                    inFlightTags.wait(waitMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            flushableBufferList = Collections.singletonList(flushableBuffer);
+            inFlightTags.add(flushableBuffer.getTag());
+            inFlightChunks.put(flushableBuffer, flushableBuffer.getFirstAppendTimeMillis());
+        }
+        try {
+            if (config.getMaxCoalescedWriteSize() > 0 && !config.isAckResponseMode()) {
+                flushableBufferList = pollCoalescedChunks(flushableBuffer);
+            }
+            long size = 0;
+            for (TaggableBuffer buffer : flushableBufferList) {
+                size += buffer.getByteBuffer().remaining();
+            }
+            if (flushableBufferList.size() == 1) {
+                sendLiveChunk(sender, messagePacker, header, flushableBuffer);
+            }
+            else {
+                sendCoalescedLiveChunks(sender, messagePacker, header, flushableBufferList);
+            }
+            budget.consume(size);
+        }
+        finally {
+            synchronized (inFlightTags) {
+                for (TaggableBuffer buffer : flushableBufferList) {
+                    inFlightTags.remove(buffer.getTag());
+                    inFlightChunks.remove(buffer);
+                }
+                inFlightTags.notifyAll();
+            }
+        }
+        completeFlushBarriers();
+        return true;
+    }
+
+    // Takes more chunks of other tags until `maxCoalescedWriteSize` is reached, waiting `coalescingWindowMicros`
+    // at most for the chunks of tags sent by other flushers. It doesn't wait on an empty queue so that flushes on
+    // the emitting threads don't spin. Each tag has one chunk in a write at most, which keeps their order
+    private List<TaggableBuffer> pollCoalescedChunks(TaggableBuffer firstBuffer)
+    {
+        List<TaggableBuffer> buffers = new ArrayList<TaggableBuffer>();
+        buffers.add(firstBuffer);
+        long size = firstBuffer.getByteBuffer().remaining();
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(config.getCoalescingWindowMicros());
+        while (size < config.getMaxCoalescedWriteSize()) {
+            TaggableBuffer buffer;
+            synchronized (inFlightTags) {
+                buffer = flushableBuffers.poll(inFlightTags);
+                if (buffer != null) {
+                    inFlightTags.add(buffer.getTag());
+                    inFlightChunks.put(buffer, buffer.getFirstAppendTimeMillis());
+                }
+                else if (!flushableBuffers.iterator().hasNext()) {
+                    break;
+                }
+            }
+            if (buffer != null) {
+                buffers.add(buffer);
+                size += buffer.getByteBuffer().remaining();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            LockSupport.parkNanos(Math.min(remaining, COALESCING_POLL_INTERVAL_NANOS));
+        }
+        return buffers;
+    }
+
+    private void sendCoalescedLiveChunks(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, List<TaggableBuffer> flushableBufferList)
+            throws IOException
+    {
+        LOG.trace("sendCoalescedLiveChunks(): bufferUsage={}, flushableBufferList={}", getBufferUsage(), flushableBufferList);
+        boolean keepBuffers = false;
+        try {
+            // The headers are packed into one array and each chunk refers to its own part
+            int[] headerEnds = new int[flushableBufferList.size()];
+            for (int i = 0; i < flushableBufferList.size(); i++) {
+                TaggableBuffer flushableBuffer = flushableBufferList.get(i);
+                messagePacker.packArrayHeader(2);
+                messagePacker.packString(flushableBuffer.getTag());
+                messagePacker.packRawStringHeader(flushableBuffer.getByteBuffer().limit());
+                messagePacker.flush();
+                headerEnds[i] = header.size();
+            }
+            byte[] headers = header.toByteArray();
+            List<ByteBuffer> dataList = new ArrayList<ByteBuffer>(flushableBufferList.size() * 2);
+            for (int i = 0; i < flushableBufferList.size(); i++) {
+                int headerStart = i == 0 ? 0 : headerEnds[i - 1];
+                dataList.add(ByteBuffer.wrap(headers, headerStart, headerEnds[i] - headerStart).slice());
+                dataList.add(flushableBufferList.get(i).getByteBuffer());
+            }
+            sender.send(dataList);
+        }
+        catch (IOException e) {
+            LOG.warn("Failed to send data. The data is going to be saved into the buffer again: data={}", flushableBufferList);
+            keepBuffers = true;
+            throw e;
+        }
+        finally {
+            header.reset();
+            // Put back in the reverse order so that the chunks of a lane keep their order
+            for (int i = flushableBufferList.size() - 1; i >= 0; i--) {
+                TaggableBuffer flushableBuffer = flushableBufferList.get(i);
+                if (keepBuffers) {
+                    try {
+                        flushableBuffers.putFirst(flushableBuffer);
+                    }
+                    catch (InterruptedException e1) {
+                        LOG.warn("Failed to save the data into the buffer. Trying to save it in extra buffer: chunk={}", flushableBuffer);
+                        backupBuffers.add(flushableBuffer);
+                    }
+                }
+                else {
+                    releaseJournal(flushableBuffer);
+                    returnBuffer(flushableBuffer.getTag(), flushableBuffer.getByteBuffer());
+                }
+            }
+        }
+    }
+
+    private void sendLiveChunk(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, TaggableBuffer flushableBuffer)
+            throws IOException
+    {
+        boolean keepBuffer = false;
+        try {
+            LOG.trace("flushLiveChunk(): bufferUsage={}, flushableBuffer={}", getBufferUsage(), flushableBuffer);
+            String chunkId = config.isAckResponseMode() ? flushableBuffer.getChunkId() : null;
+            try {
+                if (ackLedger != null) {
+                    ackLedger.add(chunkId, flushableBuffer.getTag(), flushableBuffer.getByteBuffer());
+                }
+                sendChunk(sender, messagePacker, header, flushableBuffer.getTag(), flushableBuffer.getByteBuffer(), chunkId);
+            }
+            catch (IOException e) {
+                // The ledger keeps the chunk since it's resent later with the same chunk id
+                LOG.warn("Failed to send data. The data is going to be saved into the buffer again: data={}", flushableBuffer);
+                keepBuffer = true;
+                throw e;
+            }
+            if (ackLedger != null) {
+                ackLedger.remove(chunkId);
+            }
+        }
+        finally {
+            if (keepBuffer) {
+                try {
+                    flushableBuffers.putFirst(flushableBuffer);
+                }
+                catch (InterruptedException e1) {
+                    LOG.warn("Failed to save the data into the buffer. Trying to save it in extra buffer: chunk={}", flushableBuffer);
+                    backupBuffers.add(flushableBuffer);
+                }
+            }
+            else {
+                releaseJournal(flushableBuffer);
+                returnBuffer(flushableBuffer.getTag(), flushableBuffer.getByteBuffer());
+            }
+        }
+    }
+
+    // Returns false if there is no spilled chunk or the replay rate limit is reached
+    private boolean replayBacklogChunk(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, FlushBudget budget)
+            throws IOException
+    {
+        SpilledChunk spilledChunk;
+        synchronized (inFlightTags) {
+            spilledChunk = spilledChunks.pollFirst();
+            if (spilledChunk == null) {
+                return false;
+            }
+            if (backlogReplayLimiter != null && !backlogReplayLimiter.tryAcquireWithDebt(spilledChunk.size)) {
+                spilledChunks.addFirst(spilledChunk);
+                return false;
+            }
+            inFlightChunks.put(spilledChunk, spilledChunk.firstAppendTimeMillis);
+        }
+        try {
+            sendSpilledChunk(sender, messagePacker, header, spilledChunk);
+            budget.consume(spilledChunk.size);
+        }
+        finally {
+            synchronized (inFlightTags) {
+                inFlightChunks.remove(spilledChunk);
+            }
+        }
+        completeFlushBarriers();
+        return true;
+    }
+
+    private void sendSpilledChunk(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, SpilledChunk spilledChunk)
+            throws IOException
+    {
+        boolean keepChunk = false;
+        try {
+            LOG.trace("replayBacklogChunk(): spilledChunk={}", spilledChunk);
+            if (!spilledChunk.savedBuffer.exists()) {
+                LOG.warn("The spilled chunk was removed: spilledChunk={}", spilledChunk);
+                return;
+            }
+            ByteBuffer byteBuffer = spilledChunk.savedBuffer.read();
+
+            try {
+                sendChunk(sender, messagePacker, header, spilledChunk.tag, byteBuffer,
+                        config.isAckResponseMode() ? spilledChunk.getChunkId() : null);
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to send spilled data. The data is going to be kept in the file: data={}", spilledChunk);
+                keepChunk = true;
+                throw e;
+            }
+        }
+        finally {
+            if (keepChunk) {
+                spilledChunks.addFirst(spilledChunk);
+            }
+            else {
+                spilledSize.addAndGet(-spilledChunk.size);
+                spilledChunk.savedBuffer.remove();
+                recordBacklogReplay(spilledChunk.size);
+            }
+        }
+    }
+
+    private synchronized void recordBacklogReplay(int size)
+    {
+        if (spilledChunks.isEmpty()) {
+            // Drained. The next backlog is measured from scratch
+            backlogReplayStartMillis = 0;
+            backlogReplayedSize = 0;
+            return;
+        }
+        if (backlogReplayStartMillis == 0) {
+            backlogReplayStartMillis = System.currentTimeMillis();
+        }
+        backlogReplayedSize += size;
+    }
+
+    // `chunkId` is used as the ack token in ack response mode
+    private void sendChunk(Sender sender, MessagePacker messagePacker, ByteArrayOutputStream header, String tag, ByteBuffer byteBuffer, String chunkId)
+            throws IOException
+    {
+        try {
+            if (config.isAckResponseMode()) {
+                messagePacker.packArrayHeader(3);
+            }
+            else {
+                messagePacker.packArrayHeader(2);
+            }
+            messagePacker.packString(tag);
+            messagePacker.packRawStringHeader(byteBuffer.limit());
+            messagePacker.flush();
+
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header.toByteArray());
+            List<ByteBuffer> dataList = Arrays.asList(headerBuffer, byteBuffer);
+            if (config.isAckResponseMode()) {
+                byte[] chunkIdBytes = chunkId.getBytes(CHARSET);
+                sender.sendWithAck(dataList, chunkIdBytes);
+            } else {
+                sender.send(dataList);
+            }
+        }
+        finally {
+            header.reset();
+        }
+    }
+
+    @Override
+    protected synchronized void closeInternal()
+    {
+        if (ackLedger != null) {
+            try {
+                // Unacked chunks are kept in the ack ledger and resent at the next start up
+                ackLedger.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to close the ack ledger: ackLedger=" + ackLedger, e);
+            }
+        }
+        if (journal != null) {
+            try {
+                // The journal isn't needed anymore if all the chunks are saved in backup files
+                journal.close(allBuffersSaved);
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to close the journal: journal=" + journal, e);
+            }
+        }
+        retentionBuffers.clear();
+        inUseSize.set(0);
+        if (tagQuotas != null) {
+            tagQuotas.clear();
+        }
+        bufferPool.close();
+    }
+
+    @Override
+    public long getAllocatedSize()
+    {
+        return bufferPool.getAllocatedSize();
+    }
+
+    @Override
+    public long getBufferedDataSize()
+    {
+        long size = 0;
+        synchronized (retentionBuffers) {
+            for (Map.Entry<String, RetentionBuffer> buffer : retentionBuffers.entrySet()) {
+                if (buffer.getValue() != null && buffer.getValue().getByteBuffer() != null) {
+                    size += buffer.getValue().getByteBuffer().position();
+                }
+            }
+        }
+        for (TaggableBuffer buffer : flushableBuffers) {
+            if (buffer.getByteBuffer() != null) {
+                size += buffer.getByteBuffer().remaining();
+            }
+        }
+        for (AckLedger.Entry entry : unackedChunks) {
+            size += entry.getData().remaining();
+        }
+        if (messageLane != null) {
+            size += messageLane.getSize();
+        }
+        return size + spilledSize.get();
+    }
+
+    @Override
+    public long getFlushLagMillis()
+    {
+        long oldest = getOldestUnsentTimeMillis(false);
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    @Override
+    public long getOldestUnsentTimeMillis()
+    {
+        return getOldestUnsentTimeMillis(true);
+    }
+
+    // Only tags whose priority class has its own max latency. The others are moved on flush interval ticks
+    @Override
+    public long getNextFlushDeadlineMillis()
+    {
+        int minMaxLatencyMillis = flushableBuffers.getMinMaxLatencyMillis();
+        if (minMaxLatencyMillis == Integer.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        // A retention buffer created after this call can't expire before this
+        long deadline = System.currentTimeMillis() + minMaxLatencyMillis + 1;
+        synchronized (retentionBuffers) {
+            for (Map.Entry<String, RetentionBuffer> entry : retentionBuffers.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                int maxLatencyMillis = flushableBuffers.getMaxLatencyMillis(entry.getKey(), -1);
+                if (maxLatencyMillis >= 0) {
+                    // The first time when moveRetentionBuffersToFlushable() regards the buffer as expired
+                    deadline = Math.min(deadline, entry.getValue().getCreatedTimeMillis().get() + maxLatencyMillis + 1);
+                }
+            }
+        }
+        return deadline;
+    }
+
+    // Reads the stages in the order chunks move through so that a moving chunk isn't missed
+    private long getOldestUnsentTimeMillis(boolean includeUnackedChunks)
+    {
+        // The lane moves messages to the retention buffers on overflow
+        long oldest = messageLane == null ? Long.MAX_VALUE : messageLane.getOldestUnsentTimeMillis();
+        synchronized (retentionBuffers) {
+            for (RetentionBuffer buffer : retentionBuffers.values()) {
+                if (buffer != null) {
+                    oldest = Math.min(oldest, buffer.getFirstAppendTimeMillis());
+                }
+            }
+        }
+        synchronized (inFlightTags) {
+            oldest = Math.min(oldest, flushableBuffers.getOldestFirstAppendTimeMillis());
+            for (TaggableBuffer buffer : backupBuffers) {
+                oldest = Math.min(oldest, buffer.getFirstAppendTimeMillis());
+            }
+            for (Map.Entry<Object, Long> entry : inFlightChunks.entrySet()) {
+                if (includeUnackedChunks || !(entry.getKey() instanceof AckLedger.Entry)) {
+                    oldest = Math.min(oldest, entry.getValue());
+                }
+            }
+            if (includeUnackedChunks && !unackedChunks.isEmpty()) {
+                oldest = Long.MIN_VALUE;
+            }
+        }
+        for (SpilledChunk spilledChunk : spilledChunks) {
+            oldest = Math.min(oldest, spilledChunk.firstAppendTimeMillis);
+        }
+        return oldest;
+    }
+
+    public boolean getJvmHeapBufferMode()
+    {
+        return bufferPool.getJvmHeapBufferMode();
+    }
+
+    // The buffer usage is calculated against this size
+    @Override
+    public long getMaxSize()
+    {
+        return bufferPool.getEffectiveMaxBufferSize();
+    }
+
+    public long getTagQuotaUsedSize(String tag)
+    {
+        return tagQuotas == null ? 0 : tagQuotas.getUsedSize(tag);
+    }
+
+    // The number of flushable chunks waiting in the priority class. Use "default" for tags not assigned to any class
+    public int getFlushableChunkCount(String priorityClass)
+    {
+        return flushableBuffers.size(priorityClass);
+    }
+
+    public int getJournalSegmentCount()
+    {
+        return journal == null ? 0 : journal.getSegmentCount();
+    }
+
+    // Waits until the events appended so far are forced to the journal. Returns false if it times out.
+    // Appending events doesn't wait for it, so call this outside of any lock when the events need to be durable
+    public boolean waitForJournalCommit(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        if (journal == null) {
+            return true;
+        }
+        return journal.awaitCommit(journal.getAppendedSequence(), unit.toMillis(timeout));
+    }
+
+    // Including backup files registered by `lazyBackupRecovery`
+    public int getSpilledChunkCount()
+    {
+        return spilledChunks.size();
+    }
+
+    // The size of spilled chunks and backup files registered by `lazyBackupRecovery`
+    @Override
+    public long getBacklogSize()
+    {
+        return spilledSize.get();
+    }
+
+    // Estimated from the replay rate so far, or `backlogReplayBytesPerSecond` before any replay. -1 if unknown
+    @Override
+    public synchronized long getBacklogDrainEtaMillis()
+    {
+        long backlogSize = spilledSize.get();
+        if (backlogSize == 0) {
+            return 0;
+        }
+        double bytesPerSecond = 0;
+        long elapsedMillis = System.currentTimeMillis() - backlogReplayStartMillis;
+        if (backlogReplayStartMillis > 0 && elapsedMillis > 0 && backlogReplayedSize > 0) {
+            bytesPerSecond = backlogReplayedSize * 1000.0 / elapsedMillis;
+        }
+        else if (backlogReplayLimiter != null) {
+            bytesPerSecond = backlogReplayLimiter.getRate();
+        }
+        return bytesPerSecond > 0 ? (long) (backlogSize * 1000 / bytesPerSecond) : -1;
+    }
+
+    // The number of rejected, dropped or sampled out events. As for DROP_OLDEST, it's the number of evicted chunks
+    public long getOverflowCount(OverflowPolicy overflowPolicy)
+    {
+        return overflowCounts.get(overflowPolicy).get();
+    }
+
+    // The number of events dropped by DROP_OLDEST since the tag had no flushable chunk to evict
+    public long getUnevictableDropCount()
+    {
+        return unevictableDropCount.get();
+    }
+
+    private static class RetentionBuffer
+    {
+        private final AtomicLong createdTimeMillis = new AtomicLong();
+        private final ByteBuffer byteBuffer;
+        private final long firstAppendTimeMillis;
+        private final List<Long> journalSegmentIds;
+        private int eventCount;
+
+        public RetentionBuffer(ByteBuffer byteBuffer, long firstAppendTimeMillis, List<Long> journalSegmentIds)
+        {
+            this.byteBuffer = byteBuffer;
+            this.firstAppendTimeMillis = firstAppendTimeMillis;
+            this.journalSegmentIds = journalSegmentIds;
+        }
+
+        public List<Long> getJournalSegmentIds()
+        {
+            return journalSegmentIds;
+        }
+
+        // Once an unknown count is added, the count becomes unknown (-1)
+        public void addEventCount(int count)
+        {
+            eventCount = eventCount < 0 || count < 0 ? -1 : eventCount + count;
+        }
+
+        public int getEventCount()
+        {
+            return eventCount;
+        }
+
+        public AtomicLong getCreatedTimeMillis()
+        {
             return createdTimeMillis;
         }
 
+        public long getFirstAppendTimeMillis()
+        {
+            return firstAppendTimeMillis;
+        }
+
         public ByteBuffer getByteBuffer()
         {
             return byteBuffer;
@@ -390,37 +1507,46 @@ public class PackedForwardBuffer
             return "RetentionBuffer{" +
                     "createdTimeMillis=" + createdTimeMillis+
                     ", byteBuffer=" + byteBuffer +
+                    ", firstAppendTimeMillis=" + firstAppendTimeMillis +
+                    ", journalSegmentIds=" + journalSegmentIds +
+                    ", eventCount=" + eventCount +
                     '}';
         }
     }
 
-    private static class TaggableBuffer
+    private static class SpilledChunk
     {
         private final String tag;
-        private final ByteBuffer byteBuffer;
+        private final int size;
+        private final long firstAppendTimeMillis;
+        private final FileBackup.SavedBuffer savedBuffer;
+        private String chunkId;
 
-        public TaggableBuffer(String tag, ByteBuffer byteBuffer)
+        SpilledChunk(String tag, int size, long firstAppendTimeMillis, FileBackup.SavedBuffer savedBuffer)
         {
             this.tag = tag;
-            this.byteBuffer = byteBuffer;
+            this.size = size;
+            this.firstAppendTimeMillis = firstAppendTimeMillis;
+            this.savedBuffer = savedBuffer;
         }
 
-        public String getTag()
+        // Assigned at the first send so that resending after a failure uses the same id
+        synchronized String getChunkId()
         {
-            return tag;
-        }
-
-        public ByteBuffer getByteBuffer()
-        {
-            return byteBuffer;
+            if (chunkId == null) {
+                chunkId = UUID.randomUUID().toString();
+            }
+            return chunkId;
         }
 
         @Override
         public String toString()
         {
-            return "TaggableBuffer{" +
+            return "SpilledChunk{" +
                     "tag='" + tag + '\'' +
-                    ", byteBuffer=" + byteBuffer +
+                    ", size=" + size +
+                    ", firstAppendTimeMillis=" + firstAppendTimeMillis +
+                    ", savedBuffer=" + savedBuffer +
                     '}';
         }
     }
@@ -442,7 +1568,41 @@ public class PackedForwardBuffer
 
     public int getChunkRetentionTimeMillis()
     {
-        return config.getChunkRetentionTimeMillis();
+        return config.getChunkRetentionTimeMillis();
+    }
+
+    @Override
+    public long getAppendedSize()
+    {
+        return appendedSize.get();
+    }
+
+    @Override
+    public void setEffectiveChunkRetention(int chunkRetentionSize, int chunkRetentionTimeMillis)
+    {
+        effectiveChunkRetentionSize = chunkRetentionSize;
+        effectiveChunkRetentionTimeMillis = chunkRetentionTimeMillis;
+    }
+
+    public int getEffectiveChunkRetentionSize()
+    {
+        return effectiveChunkRetentionSize;
+    }
+
+    public int getEffectiveChunkRetentionTimeMillis()
+    {
+        return effectiveChunkRetentionTimeMillis;
+    }
+
+    // The size a chunk of the tag is sealed at. It's adapted to the arrival rate of the tag with `adaptiveChunkSizingEnabled`
+    public int getChunkSealSize(String tag)
+    {
+        if (adaptiveChunkSizes == null) {
+            return effectiveChunkRetentionSize;
+        }
+        synchronized (retentionBuffers) {
+            return adaptiveChunkSizes.getSealSize(tag, effectiveChunkRetentionSize, effectiveChunkRetentionTimeMillis);
+        }
     }
 
     @Override
@@ -452,7 +1612,12 @@ public class PackedForwardBuffer
                 "retentionBuffers=" + retentionBuffers +
                 ", flushableBuffers=" + flushableBuffers +
                 ", backupBuffers=" + backupBuffers +
+                ", spilledChunks=" + spilledChunks +
+                ", messageLane=" + messageLane +
                 ", bufferPool=" + bufferPool +
+                ", tagQuotas=" + tagQuotas +
+                ", adaptiveChunkSizes=" + adaptiveChunkSizes +
+                ", journal=" + journal +
                 ", config=" + config +
                 "} " + super.toString();
     }
@@ -466,6 +1631,35 @@ public class PackedForwardBuffer
         private int chunkRetentionSize = 4 * 1024 * 1024;
         private int chunkRetentionTimeMillis = 1000;
         private boolean jvmHeapBufferMode = false;
+        private OverflowPolicy defaultOverflowPolicy = OverflowPolicy.REJECT;
+        private Map<String, OverflowPolicy> overflowPolicies = Collections.emptyMap();
+        private float overflowSamplingThreshold = 0.8f;
+        private float overflowSamplingRate = 0.1f;
+        private Map<String, TagQuota> tagQuotas = Collections.emptyMap();
+        private List<PriorityClass> priorityClasses = Collections.emptyList();
+        private int defaultPriorityWeight = 1;
+        private SharedMemoryBudget sharedMemoryBudget;
+        private long sharedMemoryReservation = 0;
+        private boolean jvmMemoryAware = false;
+        private float jvmMemoryUsageLimitRatio = 0.9f;
+        private int jvmMemoryCheckIntervalMillis = 1000;
+        private boolean spillEnabled = false;
+        private float spillThreshold = 0.8f;
+        private boolean journalEnabled = false;
+        private long journalSegmentSize = 64 * 1024 * 1024;
+        private int journalForceIntervalMillis = 100;
+        private long journalForceBytes = 1024 * 1024;
+        private boolean lazyBackupRecovery = false;
+        private long backlogReplayBytesPerSecond = 0;
+        private float backlogReplayShare = 1.0f;
+        private boolean ackLedgerEnabled = false;
+        private int ackLedgerForceIntervalMillis = 100;
+        private int maxCoalescedWriteSize = 0;
+        private int coalescingWindowMicros = 200;
+        private List<String> messageModeTagPatterns = Collections.emptyList();
+        private boolean adaptiveChunkSizingEnabled = false;
+        private int minAdaptiveChunkSize = 16 * 1024;
+        private int messageModeBufferSize = 64 * 1024;
 
         public Buffer.Config getBaseConfig()
         {
@@ -495,6 +1689,39 @@ public class PackedForwardBuffer
             return this;
         }
 
+        public boolean isFileBackupSegmentEnabled()
+        {
+            return baseConfig.isFileBackupSegmentEnabled();
+        }
+
+        public Config setFileBackupSegmentEnabled(boolean fileBackupSegmentEnabled)
+        {
+            baseConfig.setFileBackupSegmentEnabled(fileBackupSegmentEnabled);
+            return this;
+        }
+
+        public long getFileBackupSegmentSize()
+        {
+            return baseConfig.getFileBackupSegmentSize();
+        }
+
+        public Config setFileBackupSegmentSize(long fileBackupSegmentSize)
+        {
+            baseConfig.setFileBackupSegmentSize(fileBackupSegmentSize);
+            return this;
+        }
+
+        public boolean isFileBackupCompressionEnabled()
+        {
+            return baseConfig.isFileBackupCompressionEnabled();
+        }
+
+        public Config setFileBackupCompressionEnabled(boolean fileBackupCompressionEnabled)
+        {
+            baseConfig.setFileBackupCompressionEnabled(fileBackupCompressionEnabled);
+            return this;
+        }
+
         public Config setAckResponseMode(boolean ackResponseMode)
         {
             baseConfig.setAckResponseMode(ackResponseMode);
@@ -521,12 +1748,56 @@ public class PackedForwardBuffer
             return baseConfig.getFileBackupDir();
         }
 
+        public List<String> getFileBackupDirs()
+        {
+            return baseConfig.getFileBackupDirs();
+        }
+
+        public Config setFileBackupDirs(List<String> fileBackupDirs)
+        {
+            baseConfig.setFileBackupDirs(fileBackupDirs);
+            return this;
+        }
+
         public Config setJacksonModules(List<Module> jacksonModules)
         {
             baseConfig.setJacksonModules(jacksonModules);
             return this;
         }
 
+        public List<Float> getPressureThresholds()
+        {
+            return baseConfig.getPressureThresholds();
+        }
+
+        public Config setPressureThresholds(List<Float> pressureThresholds)
+        {
+            baseConfig.setPressureThresholds(pressureThresholds);
+            return this;
+        }
+
+        public float getPressureHysteresis()
+        {
+            return baseConfig.getPressureHysteresis();
+        }
+
+        public Config setPressureHysteresis(float pressureHysteresis)
+        {
+            baseConfig.setPressureHysteresis(pressureHysteresis);
+            return this;
+        }
+
+        public int getPressureCheckIntervalMillis()
+        {
+            return baseConfig.getPressureCheckIntervalMillis();
+        }
+
+        public Config setPressureCheckIntervalMillis(int pressureCheckIntervalMillis)
+        {
+            baseConfig.setPressureCheckIntervalMillis(pressureCheckIntervalMillis);
+            return this;
+        }
+
         public int getChunkInitialSize()
         {
             return chunkInitialSize;
@@ -582,6 +1853,358 @@ public class PackedForwardBuffer
             return this;
         }
 
+        public OverflowPolicy getDefaultOverflowPolicy()
+        {
+            return defaultOverflowPolicy;
+        }
+
+        public Config setDefaultOverflowPolicy(OverflowPolicy defaultOverflowPolicy)
+        {
+            this.defaultOverflowPolicy = defaultOverflowPolicy;
+            return this;
+        }
+
+        public Map<String, OverflowPolicy> getOverflowPolicies()
+        {
+            return overflowPolicies;
+        }
+
+        // Key: tag pattern (e.g. "debug.**"), Value: overflow policy for tags matching the pattern
+        public Config setOverflowPolicies(Map<String, OverflowPolicy> overflowPolicies)
+        {
+            this.overflowPolicies = overflowPolicies;
+            return this;
+        }
+
+        public float getOverflowSamplingThreshold()
+        {
+            return overflowSamplingThreshold;
+        }
+
+        public Config setOverflowSamplingThreshold(float overflowSamplingThreshold)
+        {
+            this.overflowSamplingThreshold = overflowSamplingThreshold;
+            return this;
+        }
+
+        public float getOverflowSamplingRate()
+        {
+            return overflowSamplingRate;
+        }
+
+        public Config setOverflowSamplingRate(float overflowSamplingRate)
+        {
+            this.overflowSamplingRate = overflowSamplingRate;
+            return this;
+        }
+
+        public Map<String, TagQuota> getTagQuotas()
+        {
+            return tagQuotas;
+        }
+
+        // Key: tag pattern (e.g. "debug.**"), Value: quota shared by tags matching the pattern
+        public Config setTagQuotas(Map<String, TagQuota> tagQuotas)
+        {
+            this.tagQuotas = tagQuotas;
+            return this;
+        }
+
+        public List<PriorityClass> getPriorityClasses()
+        {
+            return priorityClasses;
+        }
+
+        // Tags not matching any class go to the "default" class. Earlier classes win on a tie
+        public Config setPriorityClasses(List<PriorityClass> priorityClasses)
+        {
+            this.priorityClasses = priorityClasses;
+            return this;
+        }
+
+        public int getDefaultPriorityWeight()
+        {
+            return defaultPriorityWeight;
+        }
+
+        public Config setDefaultPriorityWeight(int defaultPriorityWeight)
+        {
+            this.defaultPriorityWeight = defaultPriorityWeight;
+            return this;
+        }
+
+        public SharedMemoryBudget getSharedMemoryBudget()
+        {
+            return sharedMemoryBudget;
+        }
+
+        // `maxBufferSize` is still applied as the upper limit of this buffer
+        public Config setSharedMemoryBudget(SharedMemoryBudget sharedMemoryBudget)
+        {
+            this.sharedMemoryBudget = sharedMemoryBudget;
+            return this;
+        }
+
+        public long getSharedMemoryReservation()
+        {
+            return sharedMemoryReservation;
+        }
+
+        // The size this buffer can always use out of the shared memory budget
+        public Config setSharedMemoryReservation(long sharedMemoryReservation)
+        {
+            this.sharedMemoryReservation = sharedMemoryReservation;
+            return this;
+        }
+
+        public boolean isJvmMemoryAware()
+        {
+            return jvmMemoryAware;
+        }
+
+        // Shrinks the buffer capacity according to the JVM's direct memory limit (or heap in jvmHeapBufferMode).
+        // The heap usage is the one after the last GC so that garbage waiting for collection doesn't shrink it
+        public Config setJvmMemoryAware(boolean jvmMemoryAware)
+        {
+            this.jvmMemoryAware = jvmMemoryAware;
+            return this;
+        }
+
+        public float getJvmMemoryUsageLimitRatio()
+        {
+            return jvmMemoryUsageLimitRatio;
+        }
+
+        // The ratio of the JVM's memory limit that the buffers don't allocate over
+        public Config setJvmMemoryUsageLimitRatio(float jvmMemoryUsageLimitRatio)
+        {
+            this.jvmMemoryUsageLimitRatio = jvmMemoryUsageLimitRatio;
+            return this;
+        }
+
+        public int getJvmMemoryCheckIntervalMillis()
+        {
+            return jvmMemoryCheckIntervalMillis;
+        }
+
+        public Config setJvmMemoryCheckIntervalMillis(int jvmMemoryCheckIntervalMillis)
+        {
+            this.jvmMemoryCheckIntervalMillis = jvmMemoryCheckIntervalMillis;
+            return this;
+        }
+
+        public boolean isSpillEnabled()
+        {
+            return spillEnabled;
+        }
+
+        // Writes the oldest flushable chunks to `fileBackupDir` instead of keeping them in memory when the buffer is filling up
+        public Config setSpillEnabled(boolean spillEnabled)
+        {
+            this.spillEnabled = spillEnabled;
+            return this;
+        }
+
+        public float getSpillThreshold()
+        {
+            return spillThreshold;
+        }
+
+        // The ratio of the effective `maxBufferSize`, which `jvmMemoryAware` shrinks, used by chunks in memory to start spilling
+        public Config setSpillThreshold(float spillThreshold)
+        {
+            this.spillThreshold = spillThreshold;
+            return this;
+        }
+
+        public boolean isJournalEnabled()
+        {
+            return journalEnabled;
+        }
+
+        // Writes appended events to a journal in `fileBackupDir` to recover them after a crash
+        public Config setJournalEnabled(boolean journalEnabled)
+        {
+            this.journalEnabled = journalEnabled;
+            return this;
+        }
+
+        public long getJournalSegmentSize()
+        {
+            return journalSegmentSize;
+        }
+
+        public Config setJournalSegmentSize(long journalSegmentSize)
+        {
+            this.journalSegmentSize = journalSegmentSize;
+            return this;
+        }
+
+        public int getJournalForceIntervalMillis()
+        {
+            return journalForceIntervalMillis;
+        }
+
+        // Events appended in this interval can be lost at a crash
+        public Config setJournalForceIntervalMillis(int journalForceIntervalMillis)
+        {
+            this.journalForceIntervalMillis = journalForceIntervalMillis;
+            return this;
+        }
+
+        public long getJournalForceBytes()
+        {
+            return journalForceBytes;
+        }
+
+        // The journal is forced to the disk without waiting for the interval once this size of events are appended.
+        // The committer thread forces it, so appending events doesn't wait for the disk
+        public Config setJournalForceBytes(long journalForceBytes)
+        {
+            this.journalForceBytes = journalForceBytes;
+            return this;
+        }
+
+        public boolean isLazyBackupRecovery()
+        {
+            return lazyBackupRecovery;
+        }
+
+        // Sends backup files left by the previous process directly from the files in the background
+        // instead of loading them into the buffer at start up
+        public Config setLazyBackupRecovery(boolean lazyBackupRecovery)
+        {
+            this.lazyBackupRecovery = lazyBackupRecovery;
+            return this;
+        }
+
+        public long getBacklogReplayBytesPerSecond()
+        {
+            return backlogReplayBytesPerSecond;
+        }
+
+        // Limits the bandwidth to send spilled chunks and lazily recovered backup files. 0 means unlimited
+        public Config setBacklogReplayBytesPerSecond(long backlogReplayBytesPerSecond)
+        {
+            this.backlogReplayBytesPerSecond = backlogReplayBytesPerSecond;
+            return this;
+        }
+
+        public float getBacklogReplayShare()
+        {
+            return backlogReplayShare;
+        }
+
+        // The share of chunks sent from the backlog while live chunks are also waiting. 1.0 sends the backlog first
+        public Config setBacklogReplayShare(float backlogReplayShare)
+        {
+            this.backlogReplayShare = backlogReplayShare;
+            return this;
+        }
+
+        public boolean isAckLedgerEnabled()
+        {
+            return ackLedgerEnabled;
+        }
+
+        // Persists chunks in flight until they're acked, and resends them with the same chunk ids after a crash
+        // so that receivers can dedupe them. Requires `ackResponseMode`.
+        // The data of each chunk is written once to its own file outside the ledger lock, which roughly doubles
+        // the disk writes of sent data. The ledger itself only records chunk ids and tags
+        public Config setAckLedgerEnabled(boolean ackLedgerEnabled)
+        {
+            this.ackLedgerEnabled = ackLedgerEnabled;
+            return this;
+        }
+
+        public int getAckLedgerForceIntervalMillis()
+        {
+            return ackLedgerForceIntervalMillis;
+        }
+
+        public Config setAckLedgerForceIntervalMillis(int ackLedgerForceIntervalMillis)
+        {
+            this.ackLedgerForceIntervalMillis = ackLedgerForceIntervalMillis;
+            return this;
+        }
+
+        public int getMaxCoalescedWriteSize()
+        {
+            return maxCoalescedWriteSize;
+        }
+
+        // Sends chunks of different tags together in one vectored write until their total size reaches this.
+        // 0 sends chunks one by one. It isn't applied in ack response mode since each chunk is acked separately
+        public Config setMaxCoalescedWriteSize(int maxCoalescedWriteSize)
+        {
+            this.maxCoalescedWriteSize = maxCoalescedWriteSize;
+            return this;
+        }
+
+        public int getCoalescingWindowMicros()
+        {
+            return coalescingWindowMicros;
+        }
+
+        // How long a coalesced write waits for the chunks of tags being sent by other flushers.
+        // It doesn't wait when there is no flushable chunk
+        public Config setCoalescingWindowMicros(int coalescingWindowMicros)
+        {
+            this.coalescingWindowMicros = coalescingWindowMicros;
+            return this;
+        }
+
+        public List<String> getMessageModeTagPatterns()
+        {
+            return messageModeTagPatterns;
+        }
+
+        // Events of these tags are sent as Forward protocol Messages without being packed into chunks.
+        // Each of them wakes up the flusher as a sealed chunk does
+        public Config setMessageModeTagPatterns(List<String> messageModeTagPatterns)
+        {
+            this.messageModeTagPatterns = messageModeTagPatterns;
+            return this;
+        }
+
+        public int getMessageModeBufferSize()
+        {
+            return messageModeBufferSize;
+        }
+
+        // Two buffers of this size are allocated on heap outside `maxBufferSize`. When the messages don't fit
+        // because the flusher can't keep up, they're moved to chunks, and the events of their tags go through chunks
+        // until the chunks are flushed
+        public Config setMessageModeBufferSize(int messageModeBufferSize)
+        {
+            this.messageModeBufferSize = messageModeBufferSize;
+            return this;
+        }
+
+        public boolean isAdaptiveChunkSizingEnabled()
+        {
+            return adaptiveChunkSizingEnabled;
+        }
+
+        // Sizes the chunks of each tag to what the tag emits within the chunk retention time, between
+        // `minAdaptiveChunkSize` and `chunkRetentionSize`. The first chunk of a tag starts with `chunkInitialSize`
+        public Config setAdaptiveChunkSizingEnabled(boolean adaptiveChunkSizingEnabled)
+        {
+            this.adaptiveChunkSizingEnabled = adaptiveChunkSizingEnabled;
+            return this;
+        }
+
+        public int getMinAdaptiveChunkSize()
+        {
+            return minAdaptiveChunkSize;
+        }
+
+        public Config setMinAdaptiveChunkSize(int minAdaptiveChunkSize)
+        {
+            this.minAdaptiveChunkSize = minAdaptiveChunkSize;
+            return this;
+        }
+
         @Override
         public String toString()
         {
@@ -592,6 +2215,35 @@ public class PackedForwardBuffer
                     ", chunkRetentionSize=" + chunkRetentionSize +
                     ", chunkRetentionTimeMillis=" + chunkRetentionTimeMillis +
                     ", jvmHeapBufferMode=" + jvmHeapBufferMode +
+                    ", defaultOverflowPolicy=" + defaultOverflowPolicy +
+                    ", overflowPolicies=" + overflowPolicies +
+                    ", overflowSamplingThreshold=" + overflowSamplingThreshold +
+                    ", overflowSamplingRate=" + overflowSamplingRate +
+                    ", tagQuotas=" + tagQuotas +
+                    ", priorityClasses=" + priorityClasses +
+                    ", defaultPriorityWeight=" + defaultPriorityWeight +
+                    ", sharedMemoryBudget=" + sharedMemoryBudget +
+                    ", sharedMemoryReservation=" + sharedMemoryReservation +
+                    ", jvmMemoryAware=" + jvmMemoryAware +
+                    ", jvmMemoryUsageLimitRatio=" + jvmMemoryUsageLimitRatio +
+                    ", jvmMemoryCheckIntervalMillis=" + jvmMemoryCheckIntervalMillis +
+                    ", spillEnabled=" + spillEnabled +
+                    ", spillThreshold=" + spillThreshold +
+                    ", journalEnabled=" + journalEnabled +
+                    ", journalSegmentSize=" + journalSegmentSize +
+                    ", journalForceIntervalMillis=" + journalForceIntervalMillis +
+                    ", journalForceBytes=" + journalForceBytes +
+                    ", lazyBackupRecovery=" + lazyBackupRecovery +
+                    ", backlogReplayBytesPerSecond=" + backlogReplayBytesPerSecond +
+                    ", backlogReplayShare=" + backlogReplayShare +
+                    ", ackLedgerEnabled=" + ackLedgerEnabled +
+                    ", ackLedgerForceIntervalMillis=" + ackLedgerForceIntervalMillis +
+                    ", maxCoalescedWriteSize=" + maxCoalescedWriteSize +
+                    ", coalescingWindowMicros=" + coalescingWindowMicros +
+                    ", messageModeTagPatterns=" + messageModeTagPatterns +
+                    ", messageModeBufferSize=" + messageModeBufferSize +
+                    ", adaptiveChunkSizingEnabled=" + adaptiveChunkSizingEnabled +
+                    ", minAdaptiveChunkSize=" + minAdaptiveChunkSize +
                     '}';
         }
 
@@ -0,0 +1,75 @@
+package org.komamitsu.fluency.buffer;
+
+import java.util.Collections;
+import java.util.List;
+
+public class PriorityClass
+{
+    private final String name;
+    private List<String> tagPatterns = Collections.emptyList();
+    private int weight = 1;
+    private Integer maxLatencyMillis;
+
+    public PriorityClass(String name)
+    {
+        this.name = name;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public List<String> getTagPatterns()
+    {
+        return tagPatterns;
+    }
+
+    public PriorityClass setTagPatterns(List<String> tagPatterns)
+    {
+        this.tagPatterns = tagPatterns;
+        return this;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    // The share of chunks taken from this class while other classes also have flushable chunks
+    public PriorityClass setWeight(int weight)
+    {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("`weight` should be positive: " + weight);
+        }
+        this.weight = weight;
+        return this;
+    }
+
+    public Integer getMaxLatencyMillis()
+    {
+        return maxLatencyMillis;
+    }
+
+    // Overrides `chunkRetentionTimeMillis` for tags in this class.
+    // Flushers wake up at the deadline of these tags, so they don't wait for a flush interval tick
+    public PriorityClass setMaxLatencyMillis(Integer maxLatencyMillis)
+    {
+        if (maxLatencyMillis != null && maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("`maxLatencyMillis` shouldn't be negative: " + maxLatencyMillis);
+        }
+        this.maxLatencyMillis = maxLatencyMillis;
+        return this;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PriorityClass{" +
+                "name='" + name + '\'' +
+                ", tagPatterns=" + tagPatterns +
+                ", weight=" + weight +
+                ", maxLatencyMillis=" + maxLatencyMillis +
+                '}';
+    }
+}
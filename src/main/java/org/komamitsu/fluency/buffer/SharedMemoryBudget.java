@@ -0,0 +1,182 @@
+package org.komamitsu.fluency.buffer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Memory budget shared by multiple PackedForwardBuffers in a JVM. Each buffer can always use its reserved size
+// and borrows from the rest. When the rest runs out, a buffer below its fair share makes the buffers over
+// their fair share release their pooled chunks
+public class SharedMemoryBudget
+{
+    private final long maxSize;
+    private final List<Member> members = new ArrayList<Member>();
+    private long reservedSize;
+    private long borrowedSize;
+
+    public SharedMemoryBudget(long maxSize)
+    {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("`maxSize` should be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    synchronized Member register(BufferPool bufferPool, long reservedSize)
+    {
+        if (this.reservedSize + reservedSize > maxSize) {
+            throw new IllegalArgumentException("The total reserved size shouldn't be more than maxSize: reservedSize=" + reservedSize + ", sharedMemoryBudget=" + this);
+        }
+        Member member = new Member(bufferPool, reservedSize);
+        members.add(member);
+        this.reservedSize += reservedSize;
+        return member;
+    }
+
+    synchronized void unregister(Member member)
+    {
+        if (members.remove(member)) {
+            reservedSize -= member.reservedSize;
+            borrowedSize -= member.getBorrowedSize();
+            member.usedSize = 0;
+            member.registered = false;
+        }
+    }
+
+    private synchronized long getFairShare()
+    {
+        return members.isEmpty() ? 0 : (maxSize - reservedSize) / members.size();
+    }
+
+    private synchronized boolean tryAcquire(Member member, long size)
+    {
+        if (!member.registered) {
+            return false;
+        }
+        long borrowedSizeDelta = Math.max(0, member.usedSize + size - member.reservedSize) - member.getBorrowedSize();
+        if (borrowedSize + borrowedSizeDelta > maxSize - reservedSize) {
+            return false;
+        }
+        borrowedSize += borrowedSizeDelta;
+        member.usedSize += size;
+        return true;
+    }
+
+    private synchronized List<BufferPool> getReclaimablePools(Member member)
+    {
+        List<BufferPool> pools = new ArrayList<BufferPool>();
+        long fairShare = getFairShare();
+        if (member.getBorrowedSize() >= fairShare) {
+            return pools;
+        }
+        for (Member m : members) {
+            if (m != member && m.getBorrowedSize() > fairShare) {
+                pools.add(m.bufferPool);
+            }
+        }
+        return pools;
+    }
+
+    private synchronized void release(Member member, long size)
+    {
+        // Chunks can be returned after the buffer is closed
+        if (!member.registered) {
+            return;
+        }
+        long borrowedSizeBefore = member.getBorrowedSize();
+        member.usedSize -= size;
+        borrowedSize -= borrowedSizeBefore - member.getBorrowedSize();
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized long getReservedSize()
+    {
+        return reservedSize;
+    }
+
+    public synchronized long getUsedSize()
+    {
+        long usedSize = 0;
+        for (Member member : members) {
+            usedSize += member.usedSize;
+        }
+        return usedSize;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "SharedMemoryBudget{" +
+                "maxSize=" + maxSize +
+                ", members=" + members +
+                ", reservedSize=" + reservedSize +
+                ", borrowedSize=" + borrowedSize +
+                '}';
+    }
+
+    class Member
+    {
+        private final BufferPool bufferPool;
+        private final long reservedSize;
+        private long usedSize;
+        private boolean registered = true;
+
+        private Member(BufferPool bufferPool, long reservedSize)
+        {
+            this.bufferPool = bufferPool;
+            this.reservedSize = reservedSize;
+        }
+
+        private long getBorrowedSize()
+        {
+            return Math.max(0, usedSize - reservedSize);
+        }
+
+        boolean tryAcquire(long size)
+        {
+            if (SharedMemoryBudget.this.tryAcquire(this, size)) {
+                return true;
+            }
+            // Releasing pooled chunks takes the pool's lock, so it's done without holding this budget's lock
+            List<BufferPool> reclaimablePools = getReclaimablePools(this);
+            if (reclaimablePools.isEmpty()) {
+                return false;
+            }
+            for (BufferPool pool : reclaimablePools) {
+                pool.releaseBuffers();
+            }
+            return SharedMemoryBudget.this.tryAcquire(this, size);
+        }
+
+        void release(long size)
+        {
+            SharedMemoryBudget.this.release(this, size);
+        }
+
+        SharedMemoryBudget getSharedMemoryBudget()
+        {
+            return SharedMemoryBudget.this;
+        }
+
+        long getUsedSize()
+        {
+            synchronized (SharedMemoryBudget.this) {
+                return usedSize;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            synchronized (SharedMemoryBudget.this) {
+                return "Member{" +
+                        "reservedSize=" + reservedSize +
+                        ", usedSize=" + usedSize +
+                        '}';
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.komamitsu.fluency.buffer;
+
+public class TagQuota
+{
+    private final long maxSize;
+    private final long reservedSize;
+
+    public TagQuota(long maxSize)
+    {
+        this(maxSize, 0);
+    }
+
+    // `reservedSize` is kept available for the tags even if other tags fill up the buffer
+    public TagQuota(long maxSize, long reservedSize)
+    {
+        if (reservedSize > maxSize) {
+            throw new IllegalArgumentException("`reservedSize` shouldn't be more than `maxSize`: maxSize=" + maxSize + ", reservedSize=" + reservedSize);
+        }
+        this.maxSize = maxSize;
+        this.reservedSize = reservedSize;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public long getReservedSize()
+    {
+        return reservedSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TagQuota{" +
+                "maxSize=" + maxSize +
+                ", reservedSize=" + reservedSize +
+                '}';
+    }
+}
@@ -0,0 +1,119 @@
+package org.komamitsu.fluency.buffer;
+
+import org.komamitsu.fluency.util.TagMatcher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Byte accounting of chunks per tag pattern. All the tags matching a pattern share the pattern's quota
+class TagQuotas
+{
+    private final TagMatcher<Usage> usages;
+    private final List<Usage> allUsages;
+    private final long maxBufferSize;
+    private long totalUsedSize;
+
+    TagQuotas(Map<String, TagQuota> quotas, long maxBufferSize)
+    {
+        Map<String, Usage> usages = new LinkedHashMap<String, Usage>();
+        long totalReservedSize = 0;
+        for (Map.Entry<String, TagQuota> entry : quotas.entrySet()) {
+            usages.put(entry.getKey(), new Usage(entry.getKey(), entry.getValue()));
+            totalReservedSize += entry.getValue().getReservedSize();
+        }
+        if (totalReservedSize > maxBufferSize) {
+            throw new IllegalArgumentException("The total reserved size shouldn't be more than maxBufferSize: totalReservedSize=" + totalReservedSize + ", maxBufferSize=" + maxBufferSize);
+        }
+        this.usages = new TagMatcher<Usage>(usages);
+        this.allUsages = new ArrayList<Usage>(usages.values());
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    synchronized boolean tryAcquire(String tag, long size)
+    {
+        return tryAcquire(tag, size, maxBufferSize);
+    }
+
+    // `currentMaxBufferSize` is the buffer pool's current limit, which can be smaller than `maxBufferSize`.
+    // The unused reserved sizes are kept out of it so that the headroom of other tags shrinks with it
+    synchronized boolean tryAcquire(String tag, long size, long currentMaxBufferSize)
+    {
+        Usage usage = usages.match(tag);
+        if (usage != null && usage.usedSize + size > usage.quota.getMaxSize()) {
+            return false;
+        }
+
+        long unusedReservedSize = 0;
+        for (Usage u : allUsages) {
+            long usedSize = u == usage ? u.usedSize + size : u.usedSize;
+            unusedReservedSize += Math.max(0, u.quota.getReservedSize() - usedSize);
+        }
+        if (totalUsedSize + size + unusedReservedSize > Math.min(maxBufferSize, currentMaxBufferSize)) {
+            return false;
+        }
+
+        if (usage != null) {
+            usage.usedSize += size;
+        }
+        totalUsedSize += size;
+        return true;
+    }
+
+    synchronized void release(String tag, long size)
+    {
+        Usage usage = usages.match(tag);
+        if (usage != null) {
+            usage.usedSize -= size;
+        }
+        totalUsedSize -= size;
+    }
+
+    synchronized long getUsedSize(String tag)
+    {
+        Usage usage = usages.match(tag);
+        return usage == null ? 0 : usage.usedSize;
+    }
+
+    synchronized void clear()
+    {
+        for (Usage usage : allUsages) {
+            usage.usedSize = 0;
+        }
+        totalUsedSize = 0;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "TagQuotas{" +
+                "usages=" + allUsages +
+                ", maxBufferSize=" + maxBufferSize +
+                ", totalUsedSize=" + totalUsedSize +
+                '}';
+    }
+
+    private static class Usage
+    {
+        private final String pattern;
+        private final TagQuota quota;
+        private long usedSize;
+
+        Usage(String pattern, TagQuota quota)
+        {
+            this.pattern = pattern;
+            this.quota = quota;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Usage{" +
+                    "pattern='" + pattern + '\'' +
+                    ", quota=" + quota +
+                    ", usedSize=" + usedSize +
+                    '}';
+        }
+    }
+}
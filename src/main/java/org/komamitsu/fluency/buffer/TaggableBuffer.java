@@ -0,0 +1,77 @@
+package org.komamitsu.fluency.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+class TaggableBuffer
+{
+    private final String tag;
+    private final ByteBuffer byteBuffer;
+    private final long firstAppendTimeMillis;
+    private final List<Long> journalSegmentIds;
+    private final int eventCount;
+    private String chunkId;
+
+    public TaggableBuffer(String tag, ByteBuffer byteBuffer, long firstAppendTimeMillis)
+    {
+        this(tag, byteBuffer, firstAppendTimeMillis, null, -1);
+    }
+
+    public TaggableBuffer(String tag, ByteBuffer byteBuffer, long firstAppendTimeMillis, List<Long> journalSegmentIds, int eventCount)
+    {
+        this.tag = tag;
+        this.byteBuffer = byteBuffer;
+        this.firstAppendTimeMillis = firstAppendTimeMillis;
+        this.journalSegmentIds = journalSegmentIds;
+        this.eventCount = eventCount;
+    }
+
+    public String getTag()
+    {
+        return tag;
+    }
+
+    public ByteBuffer getByteBuffer()
+    {
+        return byteBuffer;
+    }
+
+    public long getFirstAppendTimeMillis()
+    {
+        return firstAppendTimeMillis;
+    }
+
+    // The journal segments which have the events in this chunk. null if the journal is disabled
+    public List<Long> getJournalSegmentIds()
+    {
+        return journalSegmentIds;
+    }
+
+    // -1 if unknown
+    public int getEventCount()
+    {
+        return eventCount;
+    }
+
+    // Assigned at the first send so that resending after a failure uses the same id
+    public synchronized String getChunkId()
+    {
+        if (chunkId == null) {
+            chunkId = UUID.randomUUID().toString();
+        }
+        return chunkId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TaggableBuffer{" +
+                "tag='" + tag + '\'' +
+                ", byteBuffer=" + byteBuffer +
+                ", firstAppendTimeMillis=" + firstAppendTimeMillis +
+                ", journalSegmentIds=" + journalSegmentIds +
+                ", eventCount=" + eventCount +
+                '}';
+    }
+}
@@ -0,0 +1,225 @@
+package org.komamitsu.fluency.flusher;
+
+// Tunes the flush interval and the chunk retention of the buffer from the observed emit rate and send latency,
+// aiming at `targetLatencyMillis` from emit to send and chunks of `targetChunkSize`.
+// The rate and the latency are smoothed by EWMA with `smoothingFactor`
+public class AdaptiveFlushPolicy
+{
+    private static final long MIN_UPDATE_INTERVAL_MILLIS = 100;
+    private final Config config;
+    private double emitBytesPerSecond = -1;
+    private double sendLatencyMillis;
+    private long lastUpdateTimeMillis = -1;
+    private long lastAppendedSize;
+    private int flushIntervalMillis;
+    private int chunkRetentionSize;
+    private int chunkRetentionTimeMillis;
+
+    private AdaptiveFlushPolicy(Config config, int initialFlushIntervalMillis)
+    {
+        this.config = config;
+        this.flushIntervalMillis = clamp(initialFlushIntervalMillis, config.getMinFlushIntervalMillis(), config.getMaxFlushIntervalMillis());
+        this.chunkRetentionSize = clamp(config.getTargetChunkSize(), config.getMinChunkRetentionSize(), config.getMaxChunkRetentionSize());
+        this.chunkRetentionTimeMillis = Math.max(config.getMinFlushIntervalMillis(), config.getTargetLatencyMillis() - flushIntervalMillis);
+    }
+
+    private static int clamp(int value, int min, int max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static long clamp(long value, long min, long max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    // Called with the time taken by a flush which sent some data
+    synchronized void recordSendLatency(long latencyMillis)
+    {
+        sendLatencyMillis += config.getSmoothingFactor() * (latencyMillis - sendLatencyMillis);
+    }
+
+    // `appendedSize` is the total size of data appended to the buffer so far. Returns true if the parameters are updated
+    synchronized boolean update(long nowMillis, long appendedSize)
+    {
+        if (lastUpdateTimeMillis < 0) {
+            lastUpdateTimeMillis = nowMillis;
+            lastAppendedSize = appendedSize;
+            return false;
+        }
+        long elapsedMillis = nowMillis - lastUpdateTimeMillis;
+        if (elapsedMillis < MIN_UPDATE_INTERVAL_MILLIS) {
+            return false;
+        }
+        double rate = (appendedSize - lastAppendedSize) * 1000.0 / elapsedMillis;
+        emitBytesPerSecond = emitBytesPerSecond < 0 ? rate : emitBytesPerSecond + config.getSmoothingFactor() * (rate - emitBytesPerSecond);
+        lastUpdateTimeMillis = nowMillis;
+        lastAppendedSize = appendedSize;
+
+        // What's left of the target latency after sending is shared by the retention and the flusher's wait
+        int budgetMillis = (int) Math.max(config.getMinFlushIntervalMillis(), config.getTargetLatencyMillis() - sendLatencyMillis);
+        flushIntervalMillis = clamp(budgetMillis / 4, config.getMinFlushIntervalMillis(), config.getMaxFlushIntervalMillis());
+        chunkRetentionTimeMillis = Math.max(config.getMinFlushIntervalMillis(), budgetMillis - flushIntervalMillis);
+        // At high volume, chunks are sealed at the target size well before the retention time.
+        // At low volume, they are sealed at the size expected to be emitted within the retention time
+        long expectedSize = (long) (emitBytesPerSecond * chunkRetentionTimeMillis / 1000);
+        chunkRetentionSize = (int) clamp(Math.min(config.getTargetChunkSize(), expectedSize),
+                config.getMinChunkRetentionSize(), config.getMaxChunkRetentionSize());
+        return true;
+    }
+
+    public synchronized int getFlushIntervalMillis()
+    {
+        return flushIntervalMillis;
+    }
+
+    public synchronized int getChunkRetentionSize()
+    {
+        return chunkRetentionSize;
+    }
+
+    public synchronized int getChunkRetentionTimeMillis()
+    {
+        return chunkRetentionTimeMillis;
+    }
+
+    public synchronized double getEmitBytesPerSecond()
+    {
+        return emitBytesPerSecond;
+    }
+
+    public synchronized double getSendLatencyMillis()
+    {
+        return sendLatencyMillis;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "AdaptiveFlushPolicy{" +
+                "config=" + config +
+                ", emitBytesPerSecond=" + emitBytesPerSecond +
+                ", sendLatencyMillis=" + sendLatencyMillis +
+                ", flushIntervalMillis=" + flushIntervalMillis +
+                ", chunkRetentionSize=" + chunkRetentionSize +
+                ", chunkRetentionTimeMillis=" + chunkRetentionTimeMillis +
+                '}';
+    }
+
+    public static class Config
+    {
+        private int targetLatencyMillis = 1000;
+        private int targetChunkSize = 1024 * 1024;
+        private int minFlushIntervalMillis = 20;
+        private int maxFlushIntervalMillis = 2000;
+        private int minChunkRetentionSize = 64 * 1024;
+        private int maxChunkRetentionSize = 8 * 1024 * 1024;
+        private float smoothingFactor = 0.2f;
+
+        public int getTargetLatencyMillis()
+        {
+            return targetLatencyMillis;
+        }
+
+        public Config setTargetLatencyMillis(int targetLatencyMillis)
+        {
+            this.targetLatencyMillis = targetLatencyMillis;
+            return this;
+        }
+
+        public int getTargetChunkSize()
+        {
+            return targetChunkSize;
+        }
+
+        public Config setTargetChunkSize(int targetChunkSize)
+        {
+            this.targetChunkSize = targetChunkSize;
+            return this;
+        }
+
+        public int getMinFlushIntervalMillis()
+        {
+            return minFlushIntervalMillis;
+        }
+
+        public Config setMinFlushIntervalMillis(int minFlushIntervalMillis)
+        {
+            this.minFlushIntervalMillis = minFlushIntervalMillis;
+            return this;
+        }
+
+        public int getMaxFlushIntervalMillis()
+        {
+            return maxFlushIntervalMillis;
+        }
+
+        public Config setMaxFlushIntervalMillis(int maxFlushIntervalMillis)
+        {
+            this.maxFlushIntervalMillis = maxFlushIntervalMillis;
+            return this;
+        }
+
+        public int getMinChunkRetentionSize()
+        {
+            return minChunkRetentionSize;
+        }
+
+        public Config setMinChunkRetentionSize(int minChunkRetentionSize)
+        {
+            this.minChunkRetentionSize = minChunkRetentionSize;
+            return this;
+        }
+
+        public int getMaxChunkRetentionSize()
+        {
+            return maxChunkRetentionSize;
+        }
+
+        public Config setMaxChunkRetentionSize(int maxChunkRetentionSize)
+        {
+            this.maxChunkRetentionSize = maxChunkRetentionSize;
+            return this;
+        }
+
+        public float getSmoothingFactor()
+        {
+            return smoothingFactor;
+        }
+
+        // Weight of the latest sample in (0, 1]
+        public Config setSmoothingFactor(float smoothingFactor)
+        {
+            this.smoothingFactor = smoothingFactor;
+            return this;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Config{" +
+                    "targetLatencyMillis=" + targetLatencyMillis +
+                    ", targetChunkSize=" + targetChunkSize +
+                    ", minFlushIntervalMillis=" + minFlushIntervalMillis +
+                    ", maxFlushIntervalMillis=" + maxFlushIntervalMillis +
+                    ", minChunkRetentionSize=" + minChunkRetentionSize +
+                    ", maxChunkRetentionSize=" + maxChunkRetentionSize +
+                    ", smoothingFactor=" + smoothingFactor +
+                    '}';
+        }
+
+        public AdaptiveFlushPolicy createInstance(int initialFlushIntervalMillis)
+        {
+            if (minFlushIntervalMillis <= 0 || minFlushIntervalMillis > maxFlushIntervalMillis) {
+                throw new IllegalArgumentException("Invalid flush interval bounds: config=" + this);
+            }
+            if (minChunkRetentionSize <= 0 || minChunkRetentionSize > maxChunkRetentionSize) {
+                throw new IllegalArgumentException("Invalid chunk retention size bounds: config=" + this);
+            }
+            if (smoothingFactor <= 0 || smoothingFactor > 1) {
+                throw new IllegalArgumentException("`smoothingFactor` should be in (0, 1]: config=" + this);
+            }
+            return new AdaptiveFlushPolicy(this, initialFlushIntervalMillis);
+        }
+    }
+}
@@ -1,35 +1,56 @@
 package org.komamitsu.fluency.flusher;
 
 import org.komamitsu.fluency.buffer.Buffer;
+import org.komamitsu.fluency.buffer.ChunkSealedListener;
 import org.komamitsu.fluency.sender.Sender;
+import org.komamitsu.fluency.util.ExecutorFactories;
 import org.komamitsu.fluency.util.ExecutorServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class AsyncFlusher
         extends Flusher
 {
     private static final Logger LOG = LoggerFactory.getLogger(AsyncFlusher.class);
-    private final BlockingQueue<Boolean> eventQueue = new LinkedBlockingQueue<Boolean>();
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    // Holds at most one wakeup so that bursts of force flush requests and sealed chunks are coalesced
+    private final BlockingQueue<Boolean> eventQueue = new ArrayBlockingQueue<Boolean>(1);
+    private final AtomicBoolean forceRequested = new AtomicBoolean();
+    private final ExecutorService executorService = ExecutorFactories.getDefault().newSingleThreadExecutor();
+    // Senders of the extra flush workers. The flusher thread itself uses `sender`
+    private final List<Sender> workerSenders = new ArrayList<Sender>();
+    private final ExecutorService workerExecutorService;
     private final Config config;
+    private final AdaptiveFlushPolicy adaptiveFlushPolicy;
+    private final ChunkSealedListener chunkSealedListener = new ChunkSealedListener()
+    {
+        @Override
+        public void onChunkSealed(String tag)
+        {
+            eventQueue.offer(true);
+        }
+    };
     private final Runnable task = new Runnable() {
             @Override
             public void run()
             {
-                Boolean wakeup = null;
+                boolean force = false;
                 do {
                     try {
-                        wakeup = eventQueue.poll(AsyncFlusher.this.config.getFlushIntervalMillis(), TimeUnit.MILLISECONDS);
-                        boolean force = wakeup != null;
-                        buffer.flush(sender, force);
+                        eventQueue.poll(getWaitMillis(), TimeUnit.MILLISECONDS);
+                        force = forceRequested.getAndSet(false);
+                        flushBuffer(force);
                     }
                     catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
@@ -39,14 +60,14 @@ public class AsyncFlusher
                     }
                 } while (!executorService.isShutdown());
 
-                if (wakeup == null) {
+                if (!force) {
                     // The above run loop can quit without force buffer flush in the following cases
                     // - close() is called right after the repeated non-force buffer flush executed in the run loop
                     //
                     // In these cases, remaining buffers wont't be flushed.
                     // So force buffer flush is executed here just in case
                     try {
-                        buffer.flush(sender, true);
+                        flushWithWorkers(true);
                     }
                     catch (IOException e) {
                         LOG.error("Failed to flush", e);
@@ -59,43 +80,160 @@ public class AsyncFlusher
     {
         super(buffer, sender, config.getBaseConfig());
         this.config = config;
+        if (config.getAdaptiveFlushPolicyConfig() != null) {
+            adaptiveFlushPolicy = config.getAdaptiveFlushPolicyConfig().createInstance(config.getFlushIntervalMillis());
+        }
+        else {
+            adaptiveFlushPolicy = null;
+        }
+        if (config.getFlushWorkerCount() > 1) {
+            for (int i = 1; i < config.getFlushWorkerCount(); i++) {
+                workerSenders.add(config.getWorkerSenderConfig().createInstance());
+            }
+            workerExecutorService = ExecutorFactories.getDefault().newFixedThreadPool(workerSenders.size());
+        }
+        else {
+            workerExecutorService = null;
+        }
+        buffer.addChunkSealedListener(chunkSealedListener);
         executorService.execute(task);
     }
 
+    private int getEffectiveFlushIntervalMillis()
+    {
+        return adaptiveFlushPolicy != null ? adaptiveFlushPolicy.getFlushIntervalMillis() : config.getFlushIntervalMillis();
+    }
+
+    // Until the next flush interval tick or the earliest max latency deadline of the buffer
+    private long getWaitMillis()
+    {
+        long deadline = buffer.getNextFlushDeadlineMillis();
+        if (deadline == Long.MAX_VALUE) {
+            return getEffectiveFlushIntervalMillis();
+        }
+        return Math.max(0, Math.min(getEffectiveFlushIntervalMillis(), deadline - System.currentTimeMillis()));
+    }
+
+    private void flushBuffer(boolean force)
+            throws IOException
+    {
+        if (adaptiveFlushPolicy == null) {
+            flushWithWorkers(force);
+            return;
+        }
+
+        long bufferedDataSize = buffer.getBufferedDataSize();
+        long start = System.currentTimeMillis();
+        flushWithWorkers(force);
+        long end = System.currentTimeMillis();
+        if (buffer.getBufferedDataSize() < bufferedDataSize) {
+            adaptiveFlushPolicy.recordSendLatency(end - start);
+        }
+        if (adaptiveFlushPolicy.update(end, buffer.getAppendedSize())) {
+            buffer.setEffectiveChunkRetention(adaptiveFlushPolicy.getChunkRetentionSize(), adaptiveFlushPolicy.getChunkRetentionTimeMillis());
+        }
+    }
+
+    // The flusher thread and the extra workers drain the buffer concurrently over their own connections
+    private void flushWithWorkers(final boolean force)
+            throws IOException
+    {
+        if (workerExecutorService == null) {
+            buffer.flush(sender, force);
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(workerSenders.size());
+        for (final Sender workerSender : workerSenders) {
+            futures.add(workerExecutorService.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws Exception
+                {
+                    buffer.flush(workerSender, force);
+                    return null;
+                }
+            }));
+        }
+        try {
+            buffer.flush(sender, force);
+        }
+        finally {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (ExecutionException e) {
+                    LOG.error("Failed to flush", e.getCause());
+                }
+            }
+        }
+    }
+
+    public AdaptiveFlushPolicy getAdaptiveFlushPolicy()
+    {
+        return adaptiveFlushPolicy;
+    }
+
     @Override
     protected void flushInternal(boolean force)
             throws IOException
     {
         if (force) {
-            try {
-                eventQueue.put(true);
-            }
-            catch (InterruptedException e) {
-                LOG.warn("Failed to force flushing buffer", e);
-            }
+            requestForceFlush();
         }
     }
 
+    private void requestForceFlush()
+    {
+        // Set before the wakeup so that the flusher never misses the request
+        forceRequested.set(true);
+        eventQueue.offer(true);
+    }
+
     @Override
-    protected void beforeClosingBuffer()
+    protected void beforeClosingBuffer(long waitMillis)
             throws IOException
     {
+        buffer.removeChunkSealedListener(chunkSealedListener);
+        // Shut down before the wakeup so that the flusher quits right after the force flush
+        executorService.shutdown();
+        requestForceFlush();
+        long start = System.currentTimeMillis();
         try {
-            eventQueue.put(true);
-        }
-        catch (InterruptedException e) {
-            LOG.warn("Failed to close buffer", e);
+            ExecutorServiceUtils.finishExecutorService(executorService, waitMillis, TimeUnit.MILLISECONDS);
         }
         finally {
-            ExecutorServiceUtils.finishExecutorService(executorService, this.config.getWaitUntilBufferFlushed());
+            if (workerExecutorService != null) {
+                // The workers are interrupted along with the flusher if the wait is over
+                long remaining = Math.max(0, waitMillis - (System.currentTimeMillis() - start));
+                ExecutorServiceUtils.finishExecutorService(workerExecutorService, remaining, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
+    @Override
+    protected void closeSenders(Long timeoutMillis)
+            throws IOException
+    {
+        List<Sender> senders = new ArrayList<Sender>(workerSenders);
+        senders.add(sender);
+        Sender.closeAll(senders, timeoutMillis);
+    }
+
     @Override
     public String toString()
     {
         return "AsyncFlusher{" +
                 "eventQueue=" + eventQueue +
+                ", forceRequested=" + forceRequested +
+                ", adaptiveFlushPolicy=" + adaptiveFlushPolicy +
+                ", workerSenders=" + workerSenders +
                 ", config=" + config +
                 ", task=" + task +
                 "} " + super.toString();
@@ -105,6 +243,9 @@ public class AsyncFlusher
         implements Flusher.Instantiator
     {
         private final Flusher.Config baseConfig = new Flusher.Config();
+        private AdaptiveFlushPolicy.Config adaptiveFlushPolicyConfig;
+        private int flushWorkerCount = 1;
+        private Sender.Instantiator workerSenderConfig;
 
         public Flusher.Config getBaseConfig()
         {
@@ -144,17 +285,62 @@ public class AsyncFlusher
             return baseConfig.getWaitUntilTerminated();
         }
 
+        public AdaptiveFlushPolicy.Config getAdaptiveFlushPolicyConfig()
+        {
+            return adaptiveFlushPolicyConfig;
+        }
+
+        // `flushIntervalMillis` is used as the initial interval if it's set
+        public Config setAdaptiveFlushPolicyConfig(AdaptiveFlushPolicy.Config adaptiveFlushPolicyConfig)
+        {
+            this.adaptiveFlushPolicyConfig = adaptiveFlushPolicyConfig;
+            return this;
+        }
+
+        public int getFlushWorkerCount()
+        {
+            return flushWorkerCount;
+        }
+
+        // Chunks of different tags are sent in parallel while the ones of a tag are sent in order
+        public Config setFlushWorkerCount(int flushWorkerCount)
+        {
+            this.flushWorkerCount = flushWorkerCount;
+            return this;
+        }
+
+        public Sender.Instantiator getWorkerSenderConfig()
+        {
+            return workerSenderConfig;
+        }
+
+        // Creates the senders of the extra flush workers. Required if `flushWorkerCount` is more than 1
+        public Config setWorkerSenderConfig(Sender.Instantiator workerSenderConfig)
+        {
+            this.workerSenderConfig = workerSenderConfig;
+            return this;
+        }
+
         @Override
         public String toString()
         {
             return "Config{" +
                     "baseConfig=" + baseConfig +
+                    ", adaptiveFlushPolicyConfig=" + adaptiveFlushPolicyConfig +
+                    ", flushWorkerCount=" + flushWorkerCount +
+                    ", workerSenderConfig=" + workerSenderConfig +
                     '}';
         }
 
         @Override
         public AsyncFlusher createInstance(Buffer buffer, Sender sender)
         {
+            if (flushWorkerCount < 1) {
+                throw new IllegalArgumentException("`flushWorkerCount` should be positive: config=" + this);
+            }
+            if (flushWorkerCount > 1 && workerSenderConfig == null) {
+                throw new IllegalArgumentException("`workerSenderConfig` is required for multiple flush workers: config=" + this);
+            }
             return new AsyncFlusher(buffer, sender, this);
         }
     }
@@ -2,6 +2,7 @@ package org.komamitsu.fluency.flusher;
 
 import org.komamitsu.fluency.buffer.Buffer;
 import org.komamitsu.fluency.sender.Sender;
+import org.komamitsu.fluency.util.ExecutorFactories;
 import org.komamitsu.fluency.util.ExecutorServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,19 +11,20 @@ import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 public abstract class Flusher
         implements Flushable, Closeable
 {
     private static final Logger LOG = LoggerFactory.getLogger(Flusher.class);
-    private final AtomicBoolean isTerminated = new AtomicBoolean();
+    // 1/CLOSE_RESERVE_RATIO of the deadline of close() is left for saving unsent data and closing the connections
+    private static final int CLOSE_RESERVE_RATIO = 5;
+    private final CountDownLatch terminated = new CountDownLatch(1);
     protected final Buffer buffer;
     protected final Sender sender;
     private final Config config;
@@ -42,7 +44,8 @@ public abstract class Flusher
     protected abstract void flushInternal(boolean force)
             throws IOException;
 
-    protected abstract void beforeClosingBuffer()
+    // Flushes the buffer before closing it, waiting `waitMillis` at most
+    protected abstract void beforeClosingBuffer(long waitMillis)
             throws IOException;
 
     public void onUpdate()
@@ -61,15 +64,33 @@ public abstract class Flusher
     @Override
     public void close()
             throws IOException
+    {
+        close(TimeUnit.SECONDS.toMillis(config.getWaitUntilBufferFlushed()),
+                TimeUnit.SECONDS.toMillis(config.getWaitUntilTerminated()), null);
+    }
+
+    // Closes within one overall deadline. Most of it is spent on sending the buffered data in parallel with
+    // the flush workers. Data that can't be sent in time is saved with the file backup if it's enabled,
+    // and the connections are closed as soon as the servers have read all the data
+    public void close(long timeout, TimeUnit unit)
+            throws IOException
+    {
+        long timeoutMillis = unit.toMillis(timeout);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        close(timeoutMillis - timeoutMillis / CLOSE_RESERVE_RATIO, deadline, deadline);
+    }
+
+    private void close(long flushWaitMillis, long closeBufferWaitMillis, Long deadline)
+            throws IOException
     {
         try {
-            beforeClosingBuffer();
+            beforeClosingBuffer(flushWaitMillis);
         }
         catch (Exception e) {
             LOG.error("Failed to call beforeClosingBuffer()", e);
         }
         finally {
-            ExecutorService executorService = Executors.newSingleThreadExecutor();
+            ExecutorService executorService = ExecutorFactories.getDefault().newSingleThreadExecutor();
             Future<Void> future = executorService.submit(new Callable<Void>()
             {
                 @Override
@@ -77,13 +98,13 @@ public abstract class Flusher
                         throws Exception
                 {
                     closeBuffer();
-                    isTerminated.set(true);
+                    terminated.countDown();
                     return null;
                 }
             });
 
             try {
-                future.get(config.getWaitUntilTerminated(), TimeUnit.SECONDS);
+                future.get(deadline == null ? closeBufferWaitMillis : remainingMillis(deadline), TimeUnit.MILLISECONDS);
             }
             catch (InterruptedException e) {
                 LOG.warn("Interrupted", e);
@@ -102,7 +123,7 @@ public abstract class Flusher
                 finally {
                     try {
                         // Close the socket at the end to prevent the server from failing to read from the connection
-                        sender.close();
+                        closeSenders(deadline == null ? null : remainingMillis(deadline));
                     }
                     catch (Exception e) {
                         LOG.error("Failed to close the sender", e);
@@ -113,9 +134,33 @@ public abstract class Flusher
         }
     }
 
+    private static long remainingMillis(long deadline)
+    {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    // `timeoutMillis` is null when closing without a deadline
+    protected void closeSenders(Long timeoutMillis)
+            throws IOException
+    {
+        if (timeoutMillis == null) {
+            sender.close();
+        }
+        else {
+            sender.close(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
     public boolean isTerminated()
     {
-        return isTerminated.get();
+        return terminated.getCount() == 0;
+    }
+
+    // Returns false if the buffer isn't closed within the timeout
+    public boolean waitUntilTerminated(long timeout, TimeUnit unit)
+            throws InterruptedException
+    {
+        return terminated.await(timeout, unit);
     }
 
     private void closeBuffer()
@@ -148,7 +193,7 @@ public abstract class Flusher
     public String toString()
     {
         return "Flusher{" +
-                "isTerminated=" + isTerminated +
+                "isTerminated=" + isTerminated() +
                 ", buffer=" + buffer +
                 ", sender=" + sender +
                 ", config=" + config +
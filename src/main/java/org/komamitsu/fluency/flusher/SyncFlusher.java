@@ -1,7 +1,10 @@
 package org.komamitsu.fluency.flusher;
 
 import org.komamitsu.fluency.buffer.Buffer;
+import org.komamitsu.fluency.buffer.ChunkSealedListener;
+import org.komamitsu.fluency.buffer.FlushBudget;
 import org.komamitsu.fluency.sender.Sender;
+import org.komamitsu.fluency.util.ExecutorFactories;
 import org.komamitsu.fluency.util.ExecutorServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,24 +13,36 @@ import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class SyncFlusher
         extends Flusher
 {
     private static final Logger LOG = LoggerFactory.getLogger(SyncFlusher.class);
     private final AtomicLong lastFlushTimeMillis = new AtomicLong();
+    private final AtomicBoolean chunkSealed = new AtomicBoolean();
+    private final ReentrantLock flushLock = new ReentrantLock();
     private final Config config;
+    private final ChunkSealedListener chunkSealedListener = new ChunkSealedListener()
+    {
+        @Override
+        public void onChunkSealed(String tag)
+        {
+            chunkSealed.set(true);
+        }
+    };
 
     private SyncFlusher(Buffer buffer, Sender sender, Config config)
     {
         super(buffer, sender, config.getBaseConfig());
         this.config = config;
         lastFlushTimeMillis.set(System.currentTimeMillis());
+        buffer.addChunkSealedListener(chunkSealedListener);
     }
 
     @Override
@@ -35,19 +50,61 @@ public class SyncFlusher
             throws IOException
     {
         long now = System.currentTimeMillis();
-        if (force ||
+        // Sealed chunks are sent on the next update without waiting for the flush interval
+        boolean sealed = chunkSealed.getAndSet(false);
+        if (!(force || sealed ||
                 now > lastFlushTimeMillis.get() + config.getFlushIntervalMillis() ||
-                buffer.getBufferUsage() > config.getBufferOccupancyThreshold()) {
-            buffer.flush(sender, force);
-            lastFlushTimeMillis.set(now);
+                now >= buffer.getNextFlushDeadlineMillis() ||
+                buffer.getBufferUsage() > config.getBufferOccupancyThreshold())) {
+            return;
+        }
+
+        if (!config.isNonBlockingFlush()) {
+            flushBuffer(force, now);
+            return;
+        }
+        // Only one thread flushes at a time. The others return without waiting for it except for forced flushes
+        if (force) {
+            flushLock.lock();
+        }
+        else if (!flushLock.tryLock()) {
+            if (sealed) {
+                // The chunk may have been sealed after the flushing thread took the chunks
+                chunkSealed.set(true);
+            }
+            return;
+        }
+        try {
+            flushBuffer(force, now);
+        }
+        finally {
+            flushLock.unlock();
         }
     }
 
+    private void flushBuffer(boolean force, long now)
+            throws IOException
+    {
+        if (force) {
+            buffer.flush(sender, true);
+        }
+        else {
+            FlushBudget budget = new FlushBudget(config.getFlushBudgetBytes(), config.getFlushBudgetMillis());
+            buffer.flush(sender, false, budget);
+            if (budget.isExhausted()) {
+                // The rest is sent on the next update
+                chunkSealed.set(true);
+            }
+        }
+        lastFlushTimeMillis.set(now);
+    }
+
     @Override
-    protected void beforeClosingBuffer()
+    protected void beforeClosingBuffer(long waitMillis)
             throws IOException
     {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        buffer.removeChunkSealedListener(chunkSealedListener);
+        ExecutorService executorService = ExecutorFactories.getDefault().newSingleThreadExecutor();
         Future<?> future = executorService.submit(new Callable<Void>()
         {
             @Override
@@ -59,7 +116,7 @@ public class SyncFlusher
             }
         });
         try {
-            future.get(config.getWaitUntilBufferFlushed(), TimeUnit.SECONDS);
+            future.get(waitMillis, TimeUnit.MILLISECONDS);
         }
         catch (InterruptedException e) {
             LOG.warn("Interrupted", e);
@@ -86,6 +143,8 @@ public class SyncFlusher
     {
         return "SyncFlusher{" +
                 "lastFlushTimeMillis=" + lastFlushTimeMillis +
+                ", chunkSealed=" + chunkSealed +
+                ", flushLock=" + flushLock +
                 ", config=" + config +
                 "} " + super.toString();
     }
@@ -97,6 +156,12 @@ public class SyncFlusher
 
         private float bufferOccupancyThreshold = 0.6f;
 
+        private boolean nonBlockingFlush = false;
+
+        private long flushBudgetBytes = 0;
+
+        private int flushBudgetMillis = 0;
+
         public Flusher.Config getBaseConfig()
         {
             return baseConfig;
@@ -146,18 +211,61 @@ public class SyncFlusher
             return this;
         }
 
+        public boolean isNonBlockingFlush()
+        {
+            return nonBlockingFlush;
+        }
+
+        // Only one emitting thread flushes at a time, and the others return without waiting for it
+        public Config setNonBlockingFlush(boolean nonBlockingFlush)
+        {
+            this.nonBlockingFlush = nonBlockingFlush;
+            return this;
+        }
+
+        public long getFlushBudgetBytes()
+        {
+            return flushBudgetBytes;
+        }
+
+        // A flush by an emitting thread stops after sending this size, and the rest is sent on the next update.
+        // 0 means unlimited
+        public Config setFlushBudgetBytes(long flushBudgetBytes)
+        {
+            this.flushBudgetBytes = flushBudgetBytes;
+            return this;
+        }
+
+        public int getFlushBudgetMillis()
+        {
+            return flushBudgetMillis;
+        }
+
+        // A flush by an emitting thread doesn't start sending another chunk after this time. 0 means unlimited
+        public Config setFlushBudgetMillis(int flushBudgetMillis)
+        {
+            this.flushBudgetMillis = flushBudgetMillis;
+            return this;
+        }
+
         @Override
         public String toString()
         {
             return "Config{" +
                     "baseConfig=" + baseConfig +
                     ", bufferOccupancyThreshold=" + bufferOccupancyThreshold +
+                    ", nonBlockingFlush=" + nonBlockingFlush +
+                    ", flushBudgetBytes=" + flushBudgetBytes +
+                    ", flushBudgetMillis=" + flushBudgetMillis +
                     '}';
         }
 
         @Override
         public SyncFlusher createInstance(Buffer buffer, Sender sender)
         {
+            if (flushBudgetBytes < 0 || flushBudgetMillis < 0) {
+                throw new IllegalArgumentException("`flushBudgetBytes` and `flushBudgetMillis` shouldn't be negative: config=" + this);
+            }
             return new SyncFlusher(buffer, sender, this);
         }
     }
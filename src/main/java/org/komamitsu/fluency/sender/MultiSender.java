@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class MultiSender
         extends Sender
@@ -30,7 +31,7 @@ public class MultiSender
     }
 
     @Override
-    protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+    protected void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
             throws AllNodesUnavailableException
     {
         for (Sender sender : senders) {
@@ -58,20 +59,14 @@ public class MultiSender
     public void close()
             throws IOException
     {
-        IOException firstException = null;
-        for (Sender sender : senders) {
-            try {
-                sender.close();
-            }
-            catch (IOException e) {
-                if (firstException == null) {
-                    firstException = e;
-                }
-            }
-        }
-        if (firstException != null) {
-            throw firstException;
-        }
+        Sender.closeAll(senders, null);
+    }
+
+    @Override
+    public void close(long timeout, TimeUnit unit)
+            throws IOException
+    {
+        Sender.closeAll(senders, unit.toMillis(timeout));
     }
 
     public static class AllNodesUnavailableException
@@ -27,6 +27,14 @@ public class RetryableSender
         isClosed.set(true);
     }
 
+    @Override
+    public void close(long timeout, TimeUnit unit)
+            throws IOException
+    {
+        baseSender.close(timeout, unit);
+        isClosed.set(true);
+    }
+
     public static class RetryOverException
             extends IOException
     {
@@ -50,7 +58,7 @@ public class RetryableSender
     }
 
     @Override
-    protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+    protected void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
             throws IOException
     {
         IOException firstException = null;
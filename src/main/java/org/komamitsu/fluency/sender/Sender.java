@@ -1,5 +1,6 @@
 package org.komamitsu.fluency.sender;
 
+import org.komamitsu.fluency.util.ExecutorFactories;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -9,35 +10,63 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class Sender
     implements Closeable
 {
     private static final Logger LOG = LoggerFactory.getLogger(Sender.class);
     private final Config config;
+    // Serializes the sends. A lock instead of the monitor so that virtual threads blocked on the socket
+    // while holding it don't pin their carrier threads
+    private final ReentrantLock sendLock = new ReentrantLock();
 
     protected Sender(Config config)
     {
         this.config = config;
     }
 
-    public synchronized void send(ByteBuffer data)
+    public void send(ByteBuffer data)
             throws IOException
     {
-        sendInternalWithRestoreBufferPositions(Arrays.asList(data), null);
+        send(Arrays.asList(data));
     }
 
-    public synchronized void send(List<ByteBuffer> dataList)
+    public void send(List<ByteBuffer> dataList)
             throws IOException
     {
-        sendInternalWithRestoreBufferPositions(dataList, null);
+        sendLock.lock();
+        try {
+            sendInternalWithRestoreBufferPositions(dataList, null);
+        }
+        finally {
+            sendLock.unlock();
+        }
     }
 
     public void sendWithAck(List<ByteBuffer> dataList, byte[] ackToken)
             throws IOException
     {
-        sendInternalWithRestoreBufferPositions(dataList, ackToken);
+        sendLock.lock();
+        try {
+            sendInternalWithRestoreBufferPositions(dataList, ackToken);
+        }
+        finally {
+            sendLock.unlock();
+        }
+    }
+
+    // `sendInternal()` is always called with this lock held
+    protected ReentrantLock getSendLock()
+    {
+        return sendLock;
     }
 
     private void sendInternalWithRestoreBufferPositions(List<ByteBuffer> dataList, byte[] ackToken)
@@ -78,6 +107,63 @@ public abstract class Sender
 
     abstract protected void sendInternal(List<ByteBuffer> dataList, byte[] ackToken) throws IOException;
 
+    // Closes within the timeout. Senders which wait for the peer when closing should override this
+    public void close(long timeout, TimeUnit unit)
+            throws IOException
+    {
+        close();
+    }
+
+    // Closes the senders in parallel. `timeoutMillis` can be null to use their own close()
+    public static void closeAll(Collection<? extends Sender> senders, final Long timeoutMillis)
+            throws IOException
+    {
+        if (senders.isEmpty()) {
+            return;
+        }
+        ExecutorService executorService = ExecutorFactories.getDefault().newFixedThreadPool(senders.size());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(senders.size());
+        for (final Sender sender : senders) {
+            futures.add(executorService.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws Exception
+                {
+                    if (timeoutMillis == null) {
+                        sender.close();
+                    }
+                    else {
+                        sender.close(timeoutMillis, TimeUnit.MILLISECONDS);
+                    }
+                    return null;
+                }
+            }));
+        }
+        executorService.shutdown();
+
+        IOException firstException = null;
+        try {
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                }
+                catch (ExecutionException e) {
+                    if (firstException == null) {
+                        firstException = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            LOG.warn("Interrupted while closing senders", e);
+            Thread.currentThread().interrupt();
+        }
+        if (firstException != null) {
+            throw firstException;
+        }
+    }
+
     public static class Config
     {
         private SenderErrorHandler senderErrorHandler;
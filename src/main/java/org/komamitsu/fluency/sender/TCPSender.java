@@ -4,12 +4,16 @@ import org.komamitsu.fluency.sender.failuredetect.FailureDetectStrategy;
 import org.komamitsu.fluency.sender.failuredetect.FailureDetector;
 import org.komamitsu.fluency.sender.failuredetect.PhiAccrualFailureDetectStrategy;
 import org.komamitsu.fluency.sender.heartbeat.Heartbeater;
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.ExecutorFactory;
 import org.komamitsu.fluency.util.ExecutorServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -20,7 +24,6 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -34,7 +37,8 @@ public class TCPSender
     private final AtomicReference<SocketChannel> channel = new AtomicReference<SocketChannel>();
     private final byte[] optionBuffer = new byte[256];
     private final AckTokenSerDe ackTokenSerDe = new MessagePackAckTokenSerDe();
-    private final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private final ExecutorFactory executorFactory = ExecutorFactories.getDefault();
+    private final ExecutorService executorService = executorFactory.newSingleThreadExecutor();
     private final Config config;
     private final FailureDetector failureDetector;
 
@@ -77,7 +81,7 @@ public class TCPSender
         return channel.get();
     }
 
-    private synchronized void sendBuffers(List<ByteBuffer> dataList)
+    private void sendBuffers(List<ByteBuffer> dataList)
             throws IOException
     {
         LOG.trace("send(): sender.host={}, sender.port={}", getHost(), getPort());
@@ -92,7 +96,7 @@ public class TCPSender
     }
 
     @Override
-    protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+    protected void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
             throws IOException
     {
         ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
@@ -109,30 +113,12 @@ public class TCPSender
             }
 
             // For ACK response mode
-            final ByteBuffer byteBuffer = ByteBuffer.wrap(optionBuffer);
-
-            Future<Void> future = executorService.submit(new Callable<Void>()
-            {
-                @Override
-                public Void call()
-                        throws Exception
-                {
-                    getOrOpenChannel().read(byteBuffer);
-                    return null;
-                }
-            });
-
-            try {
-                future.get(config.getReadTimeoutMilli(), TimeUnit.MILLISECONDS);
-            }
-            catch (InterruptedException e) {
-                throw new IOException("InterruptedException occurred", e);
+            if (executorFactory.isBlockingReadOnCallerPreferred()) {
+                // The socket's read timeout is applied to reads through its input stream
+                getOrOpenChannel().socket().getInputStream().read(optionBuffer);
             }
-            catch (ExecutionException e) {
-                throw new IOException("ExecutionException occurred", e);
-            }
-            catch (TimeoutException e) {
-                throw new SocketTimeoutException("Socket read timeout");
+            else {
+                readAckWithTimeout();
             }
 
             byte[] unpackedToken = ackTokenSerDe.unpack(optionBuffer);
@@ -147,6 +133,37 @@ public class TCPSender
         }
     }
 
+    // Channel reads ignore the socket's read timeout, so the read is done in another thread
+    private void readAckWithTimeout()
+            throws IOException
+    {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(optionBuffer);
+
+        Future<Void> future = executorService.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                getOrOpenChannel().read(byteBuffer);
+                return null;
+            }
+        });
+
+        try {
+            future.get(config.getReadTimeoutMilli(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            throw new IOException("InterruptedException occurred", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException("ExecutionException occurred", e);
+        }
+        catch (TimeoutException e) {
+            throw new SocketTimeoutException("Socket read timeout");
+        }
+    }
+
     private void closeSocket()
             throws IOException
     {
@@ -157,21 +174,53 @@ public class TCPSender
         }
     }
 
-    @Override
-    public synchronized void close()
+    // Half-closes the connection and waits until the server closes its side, which means the server has read
+    // all the data written so far. The socket is closed right then, or after `waitMillis` at the latest
+    private void closeSocketGracefully(long waitMillis)
             throws IOException
     {
+        SocketChannel socketChannel = channel.getAndSet(null);
+        if (socketChannel == null) {
+            return;
+        }
         try {
-            // Wait to confirm unsent request is flushed
-            try {
-                TimeUnit.MILLISECONDS.sleep(config.getWaitBeforeCloseMilli());
-            }
-            catch (InterruptedException e) {
-                LOG.warn("Interrupted", e);
-                Thread.currentThread().interrupt();
+            Socket socket = socketChannel.socket();
+            socket.shutdownOutput();
+            InputStream inputStream = socket.getInputStream();
+            long deadline = System.currentTimeMillis() + waitMillis;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+                socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+                if (inputStream.read(optionBuffer) < 0) {
+                    break;
+                }
             }
+        }
+        catch (SocketTimeoutException e) {
+            LOG.warn("The server didn't close the connection in time: sender.host={}, sender.port={}", getHost(), getPort());
+        }
+        catch (IOException e) {
+            LOG.debug("Failed to wait for the server to close the connection", e);
+        }
+        finally {
+            socketChannel.close();
+        }
+    }
 
-            closeSocket();
+    @Override
+    public void close()
+            throws IOException
+    {
+        close(config.getWaitBeforeCloseMilli(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close(long timeout, TimeUnit unit)
+            throws IOException
+    {
+        getSendLock().lock();
+        try {
+            closeSocketGracefully(unit.toMillis(timeout));
         }
         finally {
             try {
@@ -180,7 +229,12 @@ public class TCPSender
                 }
             }
             finally {
-                ExecutorServiceUtils.finishExecutorService(executorService);
+                try {
+                    ExecutorServiceUtils.finishExecutorService(executorService);
+                }
+                finally {
+                    getSendLock().unlock();
+                }
             }
         }
     }
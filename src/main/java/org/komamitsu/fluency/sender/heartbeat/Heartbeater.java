@@ -1,13 +1,13 @@
 package org.komamitsu.fluency.sender.heartbeat;
 
 import org.komamitsu.fluency.flusher.AsyncFlusher;
+import org.komamitsu.fluency.util.ExecutorFactories;
 import org.komamitsu.fluency.util.ExecutorServiceUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -23,7 +23,7 @@ public abstract class Heartbeater
     protected Heartbeater(Config config)
     {
         this.config = config;
-        executorService = Executors.newScheduledThreadPool(1);
+        executorService = ExecutorFactories.getDefault().newSingleThreadScheduledExecutor();
     }
 
     public void start()
@@ -0,0 +1,47 @@
+package org.komamitsu.fluency.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+// Holds the ExecutorFactory used by default. An implementation registered with ServiceLoader is used if any
+// (e.g. the virtual thread one of fluency-jdk21 is used just by adding it to the classpath).
+// Otherwise, platform thread pools are used
+public class ExecutorFactories
+{
+    private static final Logger LOG = LoggerFactory.getLogger(ExecutorFactories.class);
+    private static ExecutorFactory defaultFactory;
+
+    public static synchronized ExecutorFactory getDefault()
+    {
+        if (defaultFactory == null) {
+            defaultFactory = loadFactory();
+        }
+        return defaultFactory;
+    }
+
+    // Needs to be called before creating Fluency
+    public static synchronized void setDefault(ExecutorFactory executorFactory)
+    {
+        defaultFactory = executorFactory;
+    }
+
+    private static ExecutorFactory loadFactory()
+    {
+        try {
+            Iterator<ExecutorFactory> iterator = ServiceLoader.load(ExecutorFactory.class).iterator();
+            if (iterator.hasNext()) {
+                ExecutorFactory executorFactory = iterator.next();
+                LOG.info("Using {}", executorFactory);
+                return executorFactory;
+            }
+        }
+        catch (Throwable e) {
+            // e.g. the implementation requires a newer JDK
+            LOG.warn("Failed to load ExecutorFactory. Using platform threads", e);
+        }
+        return new PlatformExecutorFactory();
+    }
+}
@@ -0,0 +1,20 @@
+package org.komamitsu.fluency.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Creates all the threads of Fluency: the flushers, the senders, the heartbeaters and the background threads of
+// the buffer (e.g. the writers of FileBackup and the committer of Journal).
+// See ExecutorFactories about how an implementation is chosen
+public interface ExecutorFactory
+{
+    ExecutorService newSingleThreadExecutor();
+
+    ExecutorService newFixedThreadPool(int nThreads);
+
+    ScheduledExecutorService newSingleThreadScheduledExecutor();
+
+    // True if blocking the caller's thread on socket reads is cheap, so that the reads don't need to be
+    // handed to another thread to apply a timeout
+    boolean isBlockingReadOnCallerPreferred();
+}
@@ -16,10 +16,15 @@ public class ExecutorServiceUtils
     }
 
     public static void finishExecutorService(ExecutorService executorService, long waitSecond)
+    {
+        finishExecutorService(executorService, waitSecond, TimeUnit.SECONDS);
+    }
+
+    public static void finishExecutorService(ExecutorService executorService, long wait, TimeUnit unit)
     {
         executorService.shutdown();
         try {
-            executorService.awaitTermination(waitSecond, TimeUnit.SECONDS);
+            executorService.awaitTermination(wait, unit);
         }
         catch (InterruptedException e) {
             LOG.warn("1st awaitTermination was interrupted", e);
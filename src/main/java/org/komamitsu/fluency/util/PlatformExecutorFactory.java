@@ -0,0 +1,39 @@
+package org.komamitsu.fluency.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class PlatformExecutorFactory
+        implements ExecutorFactory
+{
+    @Override
+    public ExecutorService newSingleThreadExecutor()
+    {
+        return Executors.newSingleThreadExecutor();
+    }
+
+    @Override
+    public ExecutorService newFixedThreadPool(int nThreads)
+    {
+        return Executors.newFixedThreadPool(nThreads);
+    }
+
+    @Override
+    public ScheduledExecutorService newSingleThreadScheduledExecutor()
+    {
+        return Executors.newScheduledThreadPool(1);
+    }
+
+    @Override
+    public boolean isBlockingReadOnCallerPreferred()
+    {
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PlatformExecutorFactory{}";
+    }
+}
@@ -0,0 +1,78 @@
+package org.komamitsu.fluency.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resolves a tag to the value of the first matching pattern. Results are cached since this is called per event
+public class TagMatcher<T>
+{
+    private static final int MAX_CACHED_TAGS = 10000;
+    private static final Object NO_MATCH = new Object();
+    private final List<Tuple<TagPattern, T>> rules = new ArrayList<Tuple<TagPattern, T>>();
+    private final ConcurrentHashMap<String, Object> cache = new ConcurrentHashMap<String, Object>();
+
+    // `patterns` is evaluated in its iteration order. Use LinkedHashMap if the order matters
+    public TagMatcher(Map<String, T> patterns)
+    {
+        for (Map.Entry<String, T> entry : patterns.entrySet()) {
+            rules.add(new Tuple<TagPattern, T>(new TagPattern(entry.getKey()), entry.getValue()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T match(String tag)
+    {
+        Object value = cache.get(tag);
+        if (value == null) {
+            value = NO_MATCH;
+            for (Tuple<TagPattern, T> rule : rules) {
+                if (rule.getFirst().matches(tag)) {
+                    value = rule.getSecond();
+                    break;
+                }
+            }
+            if (cache.size() < MAX_CACHED_TAGS) {
+                cache.put(tag, value);
+            }
+        }
+        return value == NO_MATCH ? null : (T) value;
+    }
+
+    public T match(String tag, T defaultValue)
+    {
+        T value = match(tag);
+        return value == null ? defaultValue : value;
+    }
+
+    public List<T> getValues()
+    {
+        List<T> values = new ArrayList<T>(rules.size());
+        for (Tuple<TagPattern, T> rule : rules) {
+            values.add(rule.getSecond());
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    public boolean isEmpty()
+    {
+        return rules.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Tuple<TagPattern, T> rule : rules) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(rule.getFirst().getPattern()).append('=').append(rule.getSecond());
+        }
+        return "TagMatcher{" +
+                "rules=[" + sb + ']' +
+                '}';
+    }
+}
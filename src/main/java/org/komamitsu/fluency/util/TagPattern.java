@@ -0,0 +1,83 @@
+package org.komamitsu.fluency.util;
+
+import java.util.regex.Pattern;
+
+// Fluentd style tag pattern. `*` matches any characters in a tag part and `**` matches zero or more tag parts
+public class TagPattern
+{
+    private static final String PART_DELIM = ".";
+    private static final String MULTI_PARTS_WILDCARD = "**";
+    private final String pattern;
+    private final String[] parts;
+    private final Pattern[] partPatterns;
+
+    public TagPattern(String pattern)
+    {
+        if (pattern == null || pattern.isEmpty()) {
+            throw new IllegalArgumentException("`pattern` shouldn't be empty");
+        }
+        this.pattern = pattern;
+        this.parts = pattern.split(Pattern.quote(PART_DELIM), -1);
+        this.partPatterns = new Pattern[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            if (!part.equals(MULTI_PARTS_WILDCARD) && part.contains("*")) {
+                StringBuilder regex = new StringBuilder();
+                for (String literal : part.split("\\*", -1)) {
+                    if (regex.length() > 0) {
+                        regex.append(".*");
+                    }
+                    regex.append(Pattern.quote(literal));
+                }
+                partPatterns[i] = Pattern.compile(regex.toString());
+            }
+        }
+    }
+
+    public boolean matches(String tag)
+    {
+        return matches(tag.split(Pattern.quote(PART_DELIM), -1), 0, 0);
+    }
+
+    private boolean matches(String[] tagParts, int patternIndex, int tagIndex)
+    {
+        if (patternIndex == parts.length) {
+            return tagIndex == tagParts.length;
+        }
+
+        if (parts[patternIndex].equals(MULTI_PARTS_WILDCARD)) {
+            for (int i = tagIndex; i <= tagParts.length; i++) {
+                if (matches(tagParts, patternIndex + 1, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (tagIndex == tagParts.length) {
+            return false;
+        }
+
+        boolean partMatched;
+        if (partPatterns[patternIndex] == null) {
+            partMatched = parts[patternIndex].equals(tagParts[tagIndex]);
+        }
+        else {
+            partMatched = partPatterns[patternIndex].matcher(tagParts[tagIndex]).matches();
+        }
+        return partMatched && matches(tagParts, patternIndex + 1, tagIndex + 1);
+    }
+
+    public String getPattern()
+    {
+        return pattern;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "TagPattern{" +
+                "pattern='" + pattern + '\'' +
+                '}';
+    }
+}
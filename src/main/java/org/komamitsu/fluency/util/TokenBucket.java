@@ -0,0 +1,105 @@
+package org.komamitsu.fluency.util;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucket
+{
+    private double permitsPerSecond;
+    private double maxPermits;
+    private double storedPermits;
+    private long lastRefillNanos;
+
+    // `maxPermits` is the burst size. The bucket starts full
+    public TokenBucket(double permitsPerSecond, double maxPermits)
+    {
+        setRate(permitsPerSecond, maxPermits);
+        this.storedPermits = maxPermits;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public TokenBucket(double permitsPerSecond)
+    {
+        this(permitsPerSecond, Math.max(1, permitsPerSecond));
+    }
+
+    public synchronized void setRate(double permitsPerSecond, double maxPermits)
+    {
+        if (permitsPerSecond < 0 || maxPermits <= 0) {
+            throw new IllegalArgumentException("Invalid rate: permitsPerSecond=" + permitsPerSecond + ", maxPermits=" + maxPermits);
+        }
+        refill();
+        this.permitsPerSecond = permitsPerSecond;
+        this.maxPermits = maxPermits;
+        this.storedPermits = Math.min(storedPermits, maxPermits);
+    }
+
+    public synchronized void setRate(double permitsPerSecond)
+    {
+        setRate(permitsPerSecond, Math.max(1, permitsPerSecond));
+    }
+
+    public synchronized double getRate()
+    {
+        return permitsPerSecond;
+    }
+
+    public synchronized boolean tryAcquire(double permits)
+    {
+        refill();
+        if (storedPermits < permits) {
+            return false;
+        }
+        storedPermits -= permits;
+        return true;
+    }
+
+    public boolean tryAcquire()
+    {
+        return tryAcquire(1);
+    }
+
+    // Unlike tryAcquire(), `permits` larger than the burst size can be taken once the bucket is full.
+    // The excess is paid back before the next acquisition succeeds
+    public synchronized boolean tryAcquireWithDebt(double permits)
+    {
+        refill();
+        if (storedPermits < Math.min(permits, maxPermits)) {
+            return false;
+        }
+        storedPermits -= permits;
+        return true;
+    }
+
+    // Returns how long it takes until `permits` become available. 0 if they're already available
+    public synchronized long getWaitMillis(double permits)
+    {
+        refill();
+        if (storedPermits >= permits) {
+            return 0;
+        }
+        if (permitsPerSecond == 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.ceil((permits - storedPermits) * 1000 / permitsPerSecond);
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        if (lastRefillNanos != 0) {
+            double elapsedSeconds = (double) (now - lastRefillNanos) / TimeUnit.SECONDS.toNanos(1);
+            storedPermits = Math.min(maxPermits, storedPermits + elapsedSeconds * permitsPerSecond);
+        }
+        lastRefillNanos = now;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "TokenBucket{" +
+                "permitsPerSecond=" + permitsPerSecond +
+                ", maxPermits=" + maxPermits +
+                ", storedPermits=" + storedPermits +
+                '}';
+    }
+}
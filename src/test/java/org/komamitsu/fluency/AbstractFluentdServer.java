@@ -226,12 +226,7 @@ public abstract class AbstractFluentdServer
         {
             eventHandler.onClose(acceptSocketChannel);
             FluentdAcceptTask fluentdAcceptTask = fluentdTasks.remove(acceptSocketChannel);
-            try {
-                fluentdAcceptTask.getPipedInputStream().close();
-            }
-            catch (IOException e) {
-                LOG.warn("Failed to close PipedInputStream");
-            }
+            // PipedInputStream is closed by the task after it reads all the data
             try {
                 fluentdAcceptTask.getPipedOutputStream().close();
             }
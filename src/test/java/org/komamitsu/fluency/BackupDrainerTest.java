@@ -0,0 +1,126 @@
+package org.komamitsu.fluency;
+
+import org.junit.Test;
+import org.komamitsu.fluency.buffer.PackedForwardBuffer;
+import org.msgpack.value.MapValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class BackupDrainerTest
+{
+    @Test
+    public void testDrain()
+            throws IOException, InterruptedException
+    {
+        File baseDir = new File(System.getProperty("java.io.tmpdir"), "testBackupDrainer" + System.nanoTime());
+        baseDir.mkdir();
+        File dir0 = new File(baseDir, "disk0");
+        File dir1 = new File(baseDir, "disk1");
+        List<String> dirs = Arrays.asList(dir0.getAbsolutePath(), dir1.getAbsolutePath());
+
+        final AtomicInteger receivedEventCount = new AtomicInteger();
+        AbstractFluentdServer fluentd = new AbstractFluentdServer()
+        {
+            @Override
+            protected EventHandler getFluentdEventHandler()
+            {
+                return new EventHandler()
+                {
+                    @Override
+                    public void onConnect(SocketChannel accpetSocketChannel)
+                    {
+                    }
+
+                    @Override
+                    public void onReceive(String tag, long timestampMillis, MapValue data)
+                    {
+                        receivedEventCount.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onClose(SocketChannel accpetSocketChannel)
+                    {
+                    }
+                };
+            }
+        };
+        fluentd.start();
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDirs(dirs)
+                    .setFileBackupPrefix("app")
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 8; i++) {
+                for (int j = 0; j < 10; j++) {
+                    buffer.append("tag" + i, 42, map);
+                }
+            }
+            buffer.close();
+            assertThat(dir0.listFiles().length + dir1.listFiles().length, is(8));
+
+            BackupDrainer.Result result = new BackupDrainer.Config()
+                    .setBackupDirs(dirs)
+                    .setFileBackupPrefix("app")
+                    .setServers(Arrays.asList(new InetSocketAddress("127.0.0.1", fluentd.getLocalPort())))
+                    .setConnections(3)
+                    .setAckResponseMode(true)
+                    .createInstance()
+                    .drain();
+            assertThat(result.getSentChunkCount(), is(8));
+            assertThat(result.getRemainingChunkCount(), is(0));
+            assertThat(result.getFailedConnectionCount(), is(0));
+            assertThat(dir0.listFiles().length + dir1.listFiles().length, is(0));
+
+            for (int i = 0; i < 20 && receivedEventCount.get() < 80; i++) {
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+            assertThat(receivedEventCount.get(), is(80));
+        }
+        finally {
+            fluentd.stop();
+            for (File dir : new File[] {dir0, dir1}) {
+                File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                dir.delete();
+            }
+            baseDir.delete();
+        }
+    }
+
+    @Test
+    public void testParseArgs()
+    {
+        BackupDrainer.Config config = BackupDrainer.parseArgs(new String[] {
+                "--backup-dir", "/disk0", "--backup-dir", "/disk1", "--server", "fluentd0:24224", "--server", "fluentd1:24225",
+                "--connections", "8", "--ack", "--max-bytes-per-second", "1048576"});
+        assertThat(config.getBackupDirs(), is(Arrays.asList("/disk0", "/disk1")));
+        assertThat(config.getServers().size(), is(2));
+        assertThat(config.getServers().get(1).getPort(), is(24225));
+        assertThat(config.getConnections(), is(8));
+        assertThat(config.isAckResponseMode(), is(true));
+        assertThat(config.getMaxBytesPerSecond(), is(1048576L));
+
+        assertThat(BackupDrainer.parseArgs(new String[] {"--connections", "8"}), is(nullValue()));
+        assertThat(BackupDrainer.parseArgs(new String[] {"--backup-dir", "/disk0", "--server", "fluentd0"}), is(nullValue()));
+        assertThat(BackupDrainer.parseArgs(new String[] {"--backup-dir"}), is(nullValue()));
+    }
+}
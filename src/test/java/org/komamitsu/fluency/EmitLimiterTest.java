@@ -0,0 +1,97 @@
+package org.komamitsu.fluency;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmitLimiterTest
+{
+    @Test
+    public void testDeterministicSampling()
+    {
+        Map<String, Double> samplingRates = new LinkedHashMap<String, Double>();
+        samplingRates.put("debug.**", 0.25);
+        EmitLimiter emitLimiter = new EmitLimiter.Config()
+                .setSamplingRates(samplingRates)
+                .setDeterministicSampling(true)
+                .createInstance();
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (emitLimiter.tryAcquire("debug.foo")) {
+                accepted++;
+            }
+            assertTrue(emitLimiter.tryAcquire("audit.foo"));
+        }
+        assertEquals(25, accepted);
+        assertEquals(25, emitLimiter.getSamplingAcceptedCount("debug.**"));
+        assertEquals(75, emitLimiter.getSamplingRejectedCount("debug.**"));
+        assertEquals(125, emitLimiter.getAcceptedCount());
+        assertEquals(75, emitLimiter.getRejectedCount());
+
+        emitLimiter.setSamplingRate("debug.**", 1.0);
+        assertTrue(emitLimiter.tryAcquire("debug.foo"));
+    }
+
+    @Test
+    public void testRateLimit()
+            throws InterruptedException
+    {
+        Map<String, Double> rateLimits = new LinkedHashMap<String, Double>();
+        rateLimits.put("debug.**", 10.0);
+        EmitLimiter emitLimiter = new EmitLimiter.Config()
+                .setRateLimits(rateLimits)
+                .createInstance();
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (emitLimiter.tryAcquire("debug.foo")) {
+                accepted++;
+            }
+        }
+        assertEquals(10, accepted);
+        assertEquals(90, emitLimiter.getRateLimitRejectedCount("debug.**"));
+
+        emitLimiter.setRateLimit("debug.**", 0.0);
+        Thread.sleep(200);
+        assertFalse(emitLimiter.tryAcquire("debug.foo"));
+        assertEquals(0.0, emitLimiter.getRateLimit("debug.**"), 0.001);
+    }
+
+    @Test
+    public void testSamplingAndRateLimit()
+    {
+        Map<String, Double> samplingRates = new LinkedHashMap<String, Double>();
+        samplingRates.put("debug.**", 1.0);
+        Map<String, Double> rateLimits = new LinkedHashMap<String, Double>();
+        rateLimits.put("debug.**", 10.0);
+        EmitLimiter emitLimiter = new EmitLimiter.Config()
+                .setSamplingRates(samplingRates)
+                .setRateLimits(rateLimits)
+                .createInstance();
+
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (emitLimiter.tryAcquire("debug.foo")) {
+                accepted++;
+            }
+        }
+        // Events rejected by the rate limiter aren't counted as accepted by the sampler
+        assertEquals(10, accepted);
+        assertEquals(10, emitLimiter.getSamplingAcceptedCount("debug.**"));
+        assertEquals(10, emitLimiter.getRateLimitAcceptedCount("debug.**"));
+        assertEquals(10, emitLimiter.getAcceptedCount());
+        assertEquals(90, emitLimiter.getRejectedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownTagPattern()
+    {
+        new EmitLimiter.Config().createInstance().setRateLimit("debug.**", 1.0);
+    }
+}
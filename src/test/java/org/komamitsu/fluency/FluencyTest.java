@@ -387,6 +387,27 @@ public class FluencyTest
         assertThat(fluency.getAllocatedBufferSize(), is(TestableBuffer.ALLOC_SIZE * 10000L));
     }
 
+    @Test
+    public void testEmitLimiter()
+            throws IOException
+    {
+        Map<String, Double> samplingRates = new HashMap<String, Double>();
+        samplingRates.put("debug.**", 0.0);
+        TestableBuffer.Config bufferConfig = new TestableBuffer.Config();
+        Fluency fluency = new Fluency.Builder(new MockTCPSender(24224)).
+                setBufferConfig(bufferConfig).
+                setEmitLimiterConfig(new EmitLimiter.Config().setSamplingRates(samplingRates)).
+                build();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("comment", "hello world");
+        for (int i = 0; i < 10; i++) {
+            fluency.emit("debug.foo", map);
+            fluency.emit("audit.foo", map);
+        }
+        assertThat(((TestableBuffer) fluency.getBuffer()).getEvents().size(), is(10));
+        assertThat(fluency.getEmitLimiter().getRejectedCount(), is(10L));
+    }
+
     @Test
     public void testWaitUntilFlusherTerminated()
             throws IOException, InterruptedException
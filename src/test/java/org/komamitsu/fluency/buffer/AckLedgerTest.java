@@ -0,0 +1,126 @@
+package org.komamitsu.fluency.buffer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AckLedgerTest
+{
+    @Test
+    public void testRecoverOutstandingChunks()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testAckLedger" + System.nanoTime());
+        dir.mkdir();
+        try {
+            AckLedger ackLedger = new AckLedger(dir, null, 1000);
+            ackLedger.add("id0", "foo", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            ackLedger.add("id1", "bar", ByteBuffer.wrap(new byte[] {4, 5}));
+            ackLedger.remove("id0");
+            ackLedger.add("id2", "baz", ByteBuffer.wrap(new byte[] {6}));
+            // Simulate a crash in the middle of writing the last record
+            ackLedger.close();
+            // The ledger and the data of each outstanding chunk
+            assertEquals(3, dir.listFiles().length);
+            File ledgerFile = new File(dir, "ack_ledger.log");
+            RandomAccessFile file = new RandomAccessFile(ledgerFile, "rw");
+            file.setLength(file.length() - 3);
+            file.close();
+
+            AckLedger recoveredAckLedger = new AckLedger(dir, null, 1000);
+            List<AckLedger.Entry> entries = recoveredAckLedger.getRecoveredEntries();
+            assertEquals(1, entries.size());
+            assertEquals("id1", entries.get(0).getChunkId());
+            assertEquals("bar", entries.get(0).getTag());
+            assertEquals(ByteBuffer.wrap(new byte[] {4, 5}), entries.get(0).getData());
+
+            // The data of the chunk whose record is broken is removed
+            assertEquals(2, dir.listFiles().length);
+
+            recoveredAckLedger.remove("id1");
+            assertEquals(0, recoveredAckLedger.getOutstandingCount());
+            assertEquals(0, ledgerFile.length());
+            recoveredAckLedger.close();
+            assertEquals(0, dir.listFiles().length);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAddSameChunkTwice()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testAckLedger" + System.nanoTime());
+        dir.mkdir();
+        try {
+            AckLedger ackLedger = new AckLedger(dir, null, 1000);
+            ackLedger.add("id0", "foo", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            File file = new File(dir, "ack_ledger.log");
+            long size = file.length();
+            // A resend after a failure doesn't write the data again
+            ackLedger.add("id0", "foo", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            assertEquals(size, file.length());
+            assertEquals(1, ackLedger.getOutstandingCount());
+            assertEquals(2, dir.listFiles().length);
+            ackLedger.remove("id0");
+            assertEquals(0, ackLedger.getOutstandingCount());
+            ackLedger.close();
+            assertEquals(0, dir.listFiles().length);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSkipChunkWithBrokenData()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testAckLedger" + System.nanoTime());
+        dir.mkdir();
+        try {
+            AckLedger ackLedger = new AckLedger(dir, null, 1000);
+            ackLedger.add("id0", "foo", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            ackLedger.add("id1", "bar", ByteBuffer.wrap(new byte[] {4, 5}));
+            ackLedger.close();
+
+            // Simulate the data which wasn't forced before a crash
+            RandomAccessFile file = new RandomAccessFile(new File(dir, "ack_ledger_id0.chunk"), "rw");
+            file.seek(1);
+            file.write(9);
+            file.close();
+
+            AckLedger recoveredAckLedger = new AckLedger(dir, null, 1000);
+            List<AckLedger.Entry> entries = recoveredAckLedger.getRecoveredEntries();
+            assertEquals(1, entries.size());
+            assertEquals("id1", entries.get(0).getChunkId());
+            assertEquals(ByteBuffer.wrap(new byte[] {4, 5}), entries.get(0).getData());
+            assertEquals(1, recoveredAckLedger.getOutstandingCount());
+            assertFalse(new File(dir, "ack_ledger_id0.chunk").exists());
+            recoveredAckLedger.remove("id1");
+            recoveredAckLedger.close();
+            assertEquals(0, dir.listFiles().length);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+}
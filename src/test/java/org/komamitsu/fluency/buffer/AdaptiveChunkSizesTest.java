@@ -0,0 +1,36 @@
+package org.komamitsu.fluency.buffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveChunkSizesTest
+{
+    @Test
+    public void testChunkSizes()
+    {
+        AdaptiveChunkSizes chunkSizes = new AdaptiveChunkSizes(4096);
+        // Unknown tags use the default sizes
+        assertEquals(1024 * 1024, chunkSizes.getSealSize("unknown", 1024 * 1024, 1000));
+        assertEquals(65536, chunkSizes.getInitialSize("unknown", 65536, 1024 * 1024, 1000));
+
+        // 2000 bytes per second
+        chunkSizes.recordChunk("low", 2000, 10000, 11000);
+        assertEquals(4096, chunkSizes.getSealSize("low", 1024 * 1024, 1000));
+        assertEquals(4096 + 512, chunkSizes.getInitialSize("low", 65536, 1024 * 1024, 1000));
+
+        // 160000 bytes per second, measured from the previous seal
+        chunkSizes.recordChunk("mid", 80000, 10000, 10500);
+        chunkSizes.recordChunk("mid", 80000, 10400, 11000);
+        assertEquals(160000, chunkSizes.getSealSize("mid", 1024 * 1024, 1000));
+        assertEquals(80000, chunkSizes.getSealSize("mid", 1024 * 1024, 500));
+
+        // Too high rates are bounded by the max size
+        chunkSizes.recordChunk("high", 4 * 1024 * 1024, 10000, 10200);
+        assertEquals(1024 * 1024, chunkSizes.getSealSize("high", 1024 * 1024, 1000));
+
+        // The rate is smoothed
+        chunkSizes.recordChunk("mid", 16000, 11000, 12000);
+        assertEquals((int) (160000 + 0.3 * (16000 - 160000)), chunkSizes.getSealSize("mid", 1024 * 1024, 1000));
+    }
+}
@@ -0,0 +1,123 @@
+package org.komamitsu.fluency.buffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackupSegmentTest
+{
+    private File dir;
+    private File dataFile;
+    private File indexFile;
+
+    @Before
+    public void setUp()
+    {
+        dir = new File(System.getProperty("java.io.tmpdir"), "testBackupSegment" + System.nanoTime());
+        dir.mkdir();
+        dataFile = new File(dir, "segment.seg");
+        indexFile = new File(dir, "segment.idx");
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testLoadWithRemovalsAndPartiallyWrittenIndex()
+            throws IOException
+    {
+        byte[] compressible = new byte[1024];
+        Arrays.fill(compressible, (byte) 'x');
+
+        BackupSegment segment = BackupSegment.create(1, dataFile, indexFile);
+        BackupSegment.Entry foo = segment.append(Arrays.asList("foo"), ByteBuffer.wrap(compressible), 10, true);
+        segment.append(Arrays.asList("bar"), ByteBuffer.wrap(new byte[] {1, 2, 3}), 1, true);
+        foo.remove();
+        segment.append(Arrays.asList("baz"), ByteBuffer.wrap(new byte[] {4, 5}), 1, false);
+        segment.close();
+        // The compressed chunk is smaller than the original
+        assertTrue(dataFile.length() < compressible.length);
+
+        // Simulate a crash in the middle of writing the last index record
+        RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+        index.setLength(index.length() - 3);
+        index.close();
+
+        BackupSegment loadedSegment = BackupSegment.load(1, dataFile, indexFile);
+        List<BackupSegment.Entry> entries = loadedSegment.getEntries();
+        assertEquals(1, entries.size());
+        BackupSegment.Entry bar = entries.get(0);
+        assertEquals(Arrays.asList("bar"), bar.getParams());
+        assertEquals(1, bar.getEventCount());
+        assertEquals(ByteBuffer.wrap(new byte[] {1, 2, 3}), bar.read());
+
+        bar.remove();
+        assertFalse(bar.exists());
+        assertFalse(dataFile.exists());
+        assertFalse(indexFile.exists());
+    }
+
+    @Test
+    public void testOpenEntryAsFile()
+            throws IOException
+    {
+        BackupSegment segment = BackupSegment.create(1, dataFile, indexFile);
+        BackupSegment.Entry foo = segment.append(Arrays.asList("foo"), ByteBuffer.wrap(new byte[] {1, 2, 3}), 1, true);
+
+        final List<ByteBuffer> contents = new ArrayList<ByteBuffer>();
+        foo.open(new FileBackup.SavedBuffer.Callback()
+        {
+            @Override
+            public void process(List<String> params, FileChannel channel)
+            {
+                try {
+                    ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+                    channel.read(content);
+                    content.flip();
+                    contents.add(content);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertEquals(Arrays.asList(ByteBuffer.wrap(new byte[] {1, 2, 3})), contents);
+        // Removed once it's processed like chunk files
+        assertFalse(foo.exists());
+        segment.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadBrokenChunk()
+            throws IOException
+    {
+        BackupSegment segment = BackupSegment.create(1, dataFile, indexFile);
+        BackupSegment.Entry entry = segment.append(Arrays.asList("foo"), ByteBuffer.wrap(new byte[] {1, 2, 3}), 1, false);
+        segment.close();
+
+        RandomAccessFile data = new RandomAccessFile(dataFile, "rw");
+        data.write(0xFF);
+        data.close();
+
+        entry.read();
+    }
+}
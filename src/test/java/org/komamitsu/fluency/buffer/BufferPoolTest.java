@@ -13,6 +13,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.*;
 
@@ -164,4 +165,66 @@ public class BufferPoolTest
         assertEquals(0, buffer0.position());
         assertEquals(128 * 1024, bufferPool.getAllocatedSize());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testJvmMemoryAware()
+    {
+        final AtomicLong usedMemorySize = new AtomicLong(0);
+        JvmMemoryMonitor jvmMemoryMonitor = new JvmMemoryMonitor(true, 0.5f, 0)
+        {
+            @Override
+            protected long getMaxMemorySize()
+            {
+                return 1024 * 1024;
+            }
+
+            @Override
+            protected long getUsedMemorySize()
+            {
+                return usedMemorySize.get();
+            }
+        };
+        BufferPool bufferPool = new BufferPool(64 * 1024, 1024 * 1024, true, null, 0, jvmMemoryMonitor);
+        // Only 50% of the JVM's memory can be used
+        assertEquals(512 * 1024, bufferPool.getEffectiveMaxBufferSize());
+
+        usedMemorySize.set(256 * 1024);
+        assertEquals(256 * 1024, bufferPool.getEffectiveMaxBufferSize());
+        ByteBuffer buffer0 = bufferPool.acquireBuffer(128 * 1024);
+        assertNotNull(buffer0);
+        usedMemorySize.addAndGet(128 * 1024);
+        ByteBuffer buffer1 = bufferPool.acquireBuffer(128 * 1024);
+        assertNotNull(buffer1);
+        usedMemorySize.addAndGet(128 * 1024);
+        assertNull(bufferPool.acquireBuffer(64 * 1024));
+        assertEquals(256 * 1024, bufferPool.getEffectiveMaxBufferSize());
+
+        // Returned buffers are trimmed under memory pressure
+        usedMemorySize.addAndGet(64 * 1024);
+        bufferPool.returnBuffer(buffer0);
+        assertEquals(128 * 1024, bufferPool.getAllocatedSize());
+
+        usedMemorySize.set(0);
+        bufferPool.returnBuffer(buffer1);
+        assertEquals(128 * 1024, bufferPool.getAllocatedSize());
+    }
+
+    @Test
+    public void testHeapUsedSizeAfterGc()
+    {
+        JvmMemoryMonitor jvmMemoryMonitor = new JvmMemoryMonitor(true, 0.5f, 0);
+        System.gc();
+        long usedSize = jvmMemoryMonitor.getUsedMemorySize();
+        assertTrue(usedSize > 0);
+        assertTrue(usedSize <= Runtime.getRuntime().totalMemory());
+    }
+
+    @Test
+    public void testParseSize()
+    {
+        assertEquals(1024, JvmMemoryMonitor.parseSize("1024"));
+        assertEquals(512 * 1024, JvmMemoryMonitor.parseSize("512k"));
+        assertEquals(256 * 1024 * 1024, JvmMemoryMonitor.parseSize("256M"));
+        assertEquals(2L * 1024 * 1024 * 1024, JvmMemoryMonitor.parseSize("2g"));
+    }
+}
@@ -14,6 +14,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -48,6 +50,49 @@ public class BufferTest
         assertEquals(0, buffer.getBufferUsage(), 0.001);
     }
 
+    @Test
+    public void testPressureListener()
+            throws IOException, InterruptedException
+    {
+        TestableBuffer.Config config = new TestableBuffer.Config().setMaxBufferSize(1000);
+        config.getBaseConfig().setPressureThresholds(Arrays.asList(0.5f, 0.8f)).setPressureCheckIntervalMillis(10);
+        TestableBuffer buffer = config.createInstance();
+        final LinkedBlockingQueue<BufferPressure> pressures = new LinkedBlockingQueue<BufferPressure>();
+        buffer.addPressureListener(new BufferPressureListener()
+        {
+            @Override
+            public void onPressureChanged(BufferPressure pressure)
+            {
+                pressures.add(pressure);
+            }
+        });
+
+        HashMap<String, Object> data = new HashMap<String, Object>();
+        try {
+            for (int i = 0; i < 4; i++) {
+                buffer.append("foodb.bartbl", 1420070400, data);
+            }
+            BufferPressure pressure = pressures.poll(3, TimeUnit.SECONDS);
+            assertEquals(1, pressure.getLevel());
+            assertEquals(0.5f, pressure.getThreshold(), 0.001);
+
+            for (int i = 0; i < 3; i++) {
+                buffer.append("foodb.bartbl", 1420070400, data);
+            }
+            pressure = pressures.poll(3, TimeUnit.SECONDS);
+            assertEquals(2, pressure.getLevel());
+            assertEquals(0.8f, pressure.getThreshold(), 0.001);
+
+            buffer.flush(new StubSender(), false);
+            pressure = pressures.poll(3, TimeUnit.SECONDS);
+            assertEquals(0, pressure.getLevel());
+            assertEquals(0, buffer.getPressureLevel());
+        }
+        finally {
+            buffer.close();
+        }
+    }
+
     @Test
     public void testFileBackup()
     {
@@ -102,6 +147,72 @@ public class BufferTest
         }
     }
 
+    @Test
+    public void testSegmentedFileBackupWithoutByteBufferLoader()
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testSegmentedFileBackup" + System.nanoTime());
+        TestableBuffer.Config config = new TestableBuffer.Config().setFileBackupDir(dir.getAbsolutePath());
+        config.getBaseConfig().setFileBackupSegmentEnabled(true);
+        try {
+            TestableBuffer buffer = config.createInstance();
+            buffer.setSavableBuffer(Arrays.asList("hello"), ByteBuffer.wrap("foobar".getBytes(UTF8)));
+            buffer.close();
+
+            // TestableBuffer only implements loadBufferFromFile()
+            buffer = config.createInstance();
+            buffer.close();
+            assertEquals(1, buffer.getLoadedBuffers().size());
+            Tuple<List<String>, ByteBuffer> loadedBuffer = buffer.getLoadedBuffers().get(0);
+            assertEquals(Arrays.asList("hello"), loadedBuffer.getFirst());
+            assertEquals(ByteBuffer.wrap("foobar".getBytes(UTF8)), loadedBuffer.getSecond());
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testReadSavedBuffersWithFailingCallback()
+            throws InterruptedException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testReadSavedBuffers" + System.nanoTime());
+        TestableBuffer buffer = new TestableBuffer.Config().createInstance();
+        FileBackup fileBackup = new FileBackup(dir, buffer, null);
+        try {
+            // More than the readers can read ahead
+            for (int i = 0; i < 16; i++) {
+                assertNotNull(fileBackup.saveBuffer(Arrays.asList("tag" + i), ByteBuffer.wrap(new byte[] {1, 2, 3})));
+            }
+            long start = System.currentTimeMillis();
+            try {
+                fileBackup.readSavedBuffers(new FileBackup.ReadCallback()
+                {
+                    @Override
+                    public void process(FileBackup.SavedBuffer savedBuffer, ByteBuffer data)
+                    {
+                        throw new IllegalStateException("Failed");
+                    }
+                });
+                fail();
+            }
+            catch (IllegalStateException e) {
+                // The readers blocked on the full queue are interrupted without waiting
+                assertTrue(System.currentTimeMillis() - start < 2000);
+            }
+        }
+        finally {
+            fileBackup.close();
+            buffer.close();
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
     @Test
     public void testFileBackupThatIsNotDirectory()
             throws IOException
@@ -0,0 +1,131 @@
+package org.komamitsu.fluency.buffer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest
+{
+    @Test
+    public void testRecoverWithPartiallyWrittenRecord()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testJournal" + System.nanoTime());
+        dir.mkdir();
+        try {
+            Journal journal = new Journal(dir, null, 1024, 1000, 1);
+            List<Long> segmentIds = new ArrayList<Long>();
+            journal.append("foo", ByteBuffer.wrap(new byte[] {1, 2, 3}), segmentIds);
+            journal.append("bar", ByteBuffer.wrap(new byte[] {4, 5}), segmentIds);
+            assertEquals(Arrays.asList(1L), segmentIds);
+            journal.close();
+
+            // Simulate a crash in the middle of writing the last record
+            File[] files = dir.listFiles();
+            assertEquals(1, files.length);
+            RandomAccessFile segment = new RandomAccessFile(files[0], "rw");
+            segment.setLength(segment.length() - 3);
+            segment.close();
+
+            final List<String> tags = new ArrayList<String>();
+            final List<Integer> sizes = new ArrayList<Integer>();
+            Journal recoveringJournal = new Journal(dir, null, 1024, 1000, 1);
+            recoveringJournal.recover(new Journal.RecoveryCallback()
+            {
+                @Override
+                public void process(String tag, ByteBuffer data)
+                {
+                    tags.add(tag);
+                    sizes.add(data.remaining());
+                }
+            });
+            assertEquals(Arrays.asList("foo"), tags);
+            assertEquals(Arrays.asList(3), sizes);
+            recoveringJournal.close(true);
+            assertEquals(0, dir.listFiles().length);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAwaitCommit()
+            throws IOException, InterruptedException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testJournal" + System.nanoTime());
+        dir.mkdir();
+        try {
+            // Neither the interval nor the size triggers a commit
+            Journal journal = new Journal(dir, null, 1024, 60000, 1024 * 1024);
+            List<Long> segmentIds = new ArrayList<Long>();
+            journal.append("foo", ByteBuffer.wrap(new byte[] {1, 2, 3}), segmentIds);
+            long sequence = journal.append("bar", ByteBuffer.wrap(new byte[] {4, 5}), segmentIds);
+            assertEquals(2, sequence);
+            assertEquals(0, dir.listFiles()[0].length());
+
+            // The committer is woken up by the waiter
+            assertTrue(journal.awaitCommit(sequence, 5000));
+            assertEquals(2 * 12 + 3 + 3 + 3 + 2, dir.listFiles()[0].length());
+            journal.close(true);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRecoveredEventsAreForcedBeforeSegmentRemoval()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testJournal" + System.nanoTime());
+        dir.mkdir();
+        try {
+            Journal journal = new Journal(dir, null, 1024, 1000, 1);
+            List<Long> segmentIds = new ArrayList<Long>();
+            journal.append("foo", ByteBuffer.wrap(new byte[] {1, 2, 3}), segmentIds);
+            journal.append("bar", ByteBuffer.wrap(new byte[] {4, 5}), segmentIds);
+            journal.close();
+
+            // Neither the interval nor the size triggers a commit
+            final Journal recoveringJournal = new Journal(dir, null, 1024, 60000, 1024 * 1024);
+            final List<Long> recoveredSegmentIds = new ArrayList<Long>();
+            recoveringJournal.recover(new Journal.RecoveryCallback()
+            {
+                @Override
+                public void process(String tag, ByteBuffer data)
+                        throws IOException
+                {
+                    // As the buffer does with the recovered events
+                    recoveringJournal.append(tag, data, recoveredSegmentIds);
+                }
+            });
+            // Only the new segment is left and it has the events on disk
+            File[] files = dir.listFiles();
+            assertEquals(1, files.length);
+            assertEquals(2 * 12 + 3 + 3 + 3 + 2, files[0].length());
+            recoveringJournal.close(true);
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -1,18 +1,41 @@
 package org.komamitsu.fluency.buffer;
 
 import org.junit.Test;
+import org.komamitsu.fluency.BufferFullException;
+import org.komamitsu.fluency.StubSender;
 import org.komamitsu.fluency.sender.MockTCPSender;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.lessThan;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class PackedForwardBufferTest
 {
@@ -66,6 +89,348 @@ public class PackedForwardBufferTest
         assertThat(buffer.getBufferedDataSize(), is(0L));
     }
 
+    @Test
+    public void testGetFlushLagMillis()
+            throws IOException, InterruptedException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config().setChunkInitialSize(256 * 1024).createInstance();
+        assertThat(buffer.getFlushLagMillis(), is(0L));
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        buffer.append("foo.bar", new Date().getTime(), map);
+        TimeUnit.MILLISECONDS.sleep(100);
+        buffer.append("foo.baz", new Date().getTime(), map);
+        assertThat(buffer.getFlushLagMillis(), is(greaterThanOrEqualTo(100L)));
+
+        buffer.flush(new StubSender(), true);
+        assertThat(buffer.getFlushLagMillis(), is(0L));
+    }
+
+    @Test
+    public void testFlushBarrier()
+            throws IOException, InterruptedException, ExecutionException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config().setChunkInitialSize(256 * 1024).createInstance();
+        assertThat(buffer.createFlushBarrier().isDone(), is(true));
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        buffer.append("foo.bar", new Date().getTime(), map);
+        FlushBarrier flushBarrier = buffer.createFlushBarrier();
+        assertThat(flushBarrier.isDone(), is(false));
+
+        TimeUnit.MILLISECONDS.sleep(10);
+        buffer.append("foo.baz", new Date().getTime(), map);
+        assertThat(flushBarrier.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        buffer.flush(new StubSender(), true);
+        assertThat(flushBarrier.await(100, TimeUnit.MILLISECONDS), is(true));
+        flushBarrier.get();
+
+        buffer.append("foo.bar", new Date().getTime(), map);
+        flushBarrier = buffer.createFlushBarrier();
+        buffer.close();
+        try {
+            flushBarrier.get(1, TimeUnit.SECONDS);
+            fail();
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(IOException.class)));
+        }
+        catch (TimeoutException e) {
+            fail();
+        }
+    }
+
+    @Test
+    public void testCoalescedWrites()
+            throws IOException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(1024)
+                .setMaxCoalescedWriteSize(64 * 1024)
+                .setCoalescingWindowMicros(0)
+                .createInstance();
+        final List<Integer> dataListSizes = new ArrayList<Integer>();
+        MockTCPSender sender = new MockTCPSender(24224)
+        {
+            @Override
+            protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                    throws IOException
+            {
+                dataListSizes.add(dataList.size());
+                super.sendInternal(dataList, ackToken);
+            }
+        };
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        for (int i = 0; i < 4; i++) {
+            buffer.append("tag" + i, new Date().getTime(), map);
+        }
+        buffer.flush(sender, true);
+        // One write with a header and a chunk for each tag
+        assertThat(dataListSizes, is(Arrays.asList(8)));
+
+        List<String> tags = new ArrayList<String>();
+        for (int i = 0; i < sender.getEvents().size(); i += 2) {
+            ByteBuffer header = sender.getEvents().get(i);
+            byte[] bytes = new byte[header.remaining()];
+            header.get(bytes);
+            MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes);
+            assertThat(unpacker.unpackArrayHeader(), is(2));
+            tags.add(unpacker.unpackString());
+            assertThat(unpacker.unpackBinaryHeader(), is(sender.getEvents().get(i + 1).remaining()));
+        }
+        Collections.sort(tags);
+        assertThat(tags, is(Arrays.asList("tag0", "tag1", "tag2", "tag3")));
+        assertThat(buffer.getBufferedDataSize(), is(0L));
+    }
+
+    @Test
+    public void testCoalescedWritesDoNotWaitOnEmptyQueue()
+            throws IOException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setMaxCoalescedWriteSize(64 * 1024)
+                .setCoalescingWindowMicros(2000000)
+                .createInstance();
+        MockTCPSender sender = new MockTCPSender(24224);
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        buffer.append("foo", new Date().getTime(), map);
+        long start = System.currentTimeMillis();
+        buffer.flush(sender, true);
+        assertThat(System.currentTimeMillis() - start, lessThan(1000L));
+        assertThat(sender.getEvents().size(), is(2));
+        assertThat(buffer.getBufferedDataSize(), is(0L));
+    }
+
+    @Test
+    public void testWaitForTagInFlightWithinBudget()
+            throws Exception
+    {
+        final PackedForwardBuffer buffer = new PackedForwardBuffer.Config().createInstance();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final MockTCPSender blockingSender = new MockTCPSender(24224)
+        {
+            @Override
+            protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                    throws IOException
+            {
+                sending.countDown();
+                try {
+                    released.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.sendInternal(dataList, ackToken);
+            }
+        };
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        buffer.append("foo", new Date().getTime(), map);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Void> future = executorService.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                buffer.flush(blockingSender, true);
+                return null;
+            }
+        });
+        try {
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            buffer.append("foo", new Date().getTime(), map);
+
+            // The chunk of the tag being sent by the other flusher isn't waited for beyond the budget
+            MockTCPSender sender = new MockTCPSender(24224);
+            long start = System.currentTimeMillis();
+            buffer.flush(sender, true, new FlushBudget(0, 200));
+            assertThat(System.currentTimeMillis() - start, lessThan(1000L));
+            assertThat(sender.getEvents().size(), is(0));
+
+            released.countDown();
+            future.get(10, TimeUnit.SECONDS);
+            // The other flusher sends the rest of the tag
+            assertThat(buffer.getBufferedDataSize(), is(0L));
+        }
+        finally {
+            released.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMessageMode()
+            throws IOException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(1024)
+                .setChunkRetentionTimeMillis(60000)
+                .setMessageModeTagPatterns(Arrays.asList("alert.**"))
+                .setMessageModeBufferSize(128)
+                .createInstance();
+        MockTCPSender sender = new MockTCPSender(24224);
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        buffer.append("alert.disk", 42, map);
+        buffer.append("bulk", 42, map);
+        buffer.append("alert.cpu", 43, map);
+        buffer.flush(sender, false);
+
+        // The alerts are sent as messages in one write ahead of the chunks
+        ByteBuffer data = sender.getEvents().get(0).duplicate();
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes);
+        for (String tag : Arrays.asList("alert.disk", "alert.cpu")) {
+            assertThat(unpacker.unpackArrayHeader(), is(3));
+            assertThat(unpacker.unpackString(), is(tag));
+            unpacker.unpackLong();
+            assertThat(unpacker.unpackValue().asMapValue().map().size(), is(1));
+        }
+        assertThat(unpacker.hasNext(), is(false));
+
+        // Messages which don't fit in the lane go through chunks
+        for (int i = 0; i < 20; i++) {
+            buffer.append("alert.disk", i, map);
+        }
+        buffer.flush(sender, true);
+        Map<String, Integer> eventCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < sender.getEvents().size(); i++) {
+            data = sender.getEvents().get(i).duplicate();
+            bytes = new byte[data.remaining()];
+            data.get(bytes);
+            unpacker = MessagePack.newDefaultUnpacker(bytes);
+            if (unpacker.unpackArrayHeader() == 3) {
+                // Messages
+                unpacker = MessagePack.newDefaultUnpacker(bytes);
+                while (unpacker.hasNext()) {
+                    unpacker.unpackArrayHeader();
+                    String tag = unpacker.unpackString();
+                    unpacker.skipValue();
+                    unpacker.skipValue();
+                    eventCounts.put(tag, eventCounts.containsKey(tag) ? eventCounts.get(tag) + 1 : 1);
+                }
+            }
+            else {
+                // The header and the entries of a chunk
+                String tag = unpacker.unpackString();
+                data = sender.getEvents().get(++i);
+                bytes = new byte[data.remaining()];
+                data.get(bytes);
+                unpacker = MessagePack.newDefaultUnpacker(bytes);
+                while (unpacker.hasNext()) {
+                    unpacker.skipValue();
+                    eventCounts.put(tag, eventCounts.containsKey(tag) ? eventCounts.get(tag) + 1 : 1);
+                }
+            }
+        }
+        assertThat(eventCounts.get("alert.disk"), is(21));
+        assertThat(eventCounts.get("alert.cpu"), is(1));
+        assertThat(eventCounts.get("bulk"), is(1));
+        assertThat(buffer.getBufferedDataSize(), is(0L));
+    }
+
+    @Test
+    public void testMessageModeKeepsOrderOnOverflow()
+            throws IOException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(1024)
+                .setChunkRetentionTimeMillis(60000)
+                .setMessageModeTagPatterns(Arrays.asList("alert.**"))
+                .setMessageModeBufferSize(128)
+                .createInstance();
+        MockTCPSender sender = new MockTCPSender(24224);
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        // The messages after the overflow go through chunks too until the chunk is flushed
+        for (int i = 0; i < 18; i++) {
+            buffer.append("alert.disk", i, map);
+        }
+        buffer.flush(sender, true);
+        List<Long> times = new ArrayList<Long>();
+        List<Boolean> sentAsMessages = new ArrayList<Boolean>();
+        collectEventTimes(sender.getEvents(), times, sentAsMessages);
+        List<Long> expected = new ArrayList<Long>();
+        for (long i = 0; i < 18; i++) {
+            expected.add(i);
+        }
+        assertThat(times, is(expected));
+        assertThat(buffer.getBufferedDataSize(), is(0L));
+
+        // Back to the lane after the chunk is flushed
+        buffer.append("alert.disk", 18, map);
+        buffer.flush(sender, false);
+        times.clear();
+        sentAsMessages.clear();
+        collectEventTimes(sender.getEvents(), times, sentAsMessages);
+        assertThat(times.get(times.size() - 1), is(18L));
+        assertThat(sentAsMessages.get(sentAsMessages.size() - 1), is(true));
+    }
+
+    private static void collectEventTimes(List<ByteBuffer> sentData, List<Long> times, List<Boolean> sentAsMessages)
+            throws IOException
+    {
+        for (int i = 0; i < sentData.size(); i++) {
+            ByteBuffer data = sentData.get(i).duplicate();
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes);
+            boolean messages = unpacker.unpackArrayHeader() == 3;
+            if (!messages) {
+                // The entries of a chunk follow its header
+                data = sentData.get(++i).duplicate();
+                bytes = new byte[data.remaining()];
+                data.get(bytes);
+            }
+            unpacker = MessagePack.newDefaultUnpacker(bytes);
+            while (unpacker.hasNext()) {
+                unpacker.unpackArrayHeader();
+                if (messages) {
+                    unpacker.unpackString();
+                }
+                times.add(unpacker.unpackLong());
+                unpacker.skipValue();
+                sentAsMessages.add(messages);
+            }
+        }
+    }
+
+    @Test
+    public void testAdaptiveChunkSizing()
+            throws IOException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64 * 1024)
+                .setChunkRetentionSize(1024 * 1024)
+                .setAdaptiveChunkSizingEnabled(true)
+                .setMinAdaptiveChunkSize(4096)
+                .createInstance();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        buffer.append("low", 42, map);
+        assertThat(buffer.getChunkSealSize("low"), is(1024 * 1024));
+        buffer.flush(new StubSender(), true);
+
+        // The tag emitted a few bytes, so its chunks are sealed at the min size
+        assertThat(buffer.getChunkSealSize("low"), is(4096));
+        for (int i = 0; i < 4096 / 16; i++) {
+            buffer.append("low", 42, map);
+        }
+        assertThat(buffer.getFlushableChunkCount("default"), is(1));
+    }
+
     @Test
     public void testAppendIfItDoesNotThrowBufferOverflow()
             throws IOException
@@ -96,4 +461,720 @@ public class PackedForwardBufferTest
             buffer.append("tag0", new Date().getTime(), map);
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOverflowPolicies()
+            throws IOException
+    {
+        Map<String, OverflowPolicy> overflowPolicies = new LinkedHashMap<String, OverflowPolicy>();
+        overflowPolicies.put("debug.newest", OverflowPolicy.DROP_NEWEST);
+        overflowPolicies.put("debug.oldest", OverflowPolicy.DROP_OLDEST);
+        overflowPolicies.put("debug.unevictable", OverflowPolicy.DROP_OLDEST);
+        overflowPolicies.put("debug.sample", OverflowPolicy.SAMPLE);
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64)
+                .setChunkRetentionSize(16)
+                .setMaxBufferSize(256)
+                .setOverflowPolicies(overflowPolicies)
+                .setOverflowSamplingRate(0.0f)
+                .createInstance();
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        // Each event is sealed as a 64 bytes chunk since it's larger than the chunk retention size
+        for (int i = 0; i < 4; i++) {
+            buffer.append("debug.oldest", 42, map);
+        }
+        assertThat(buffer.getAllocatedSize(), is(256L));
+
+        buffer.append("debug.newest", 42, map);
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_NEWEST), is(1L));
+
+        buffer.append("debug.sample", 42, map);
+        assertThat(buffer.getOverflowCount(OverflowPolicy.SAMPLE), is(1L));
+
+        try {
+            buffer.append("audit", 42, map);
+            assertTrue(false);
+        }
+        catch (BufferFullException e) {
+            assertThat(buffer.getOverflowCount(OverflowPolicy.REJECT), is(1L));
+        }
+
+        long bufferedDataSize = buffer.getBufferedDataSize();
+        buffer.append("debug.oldest", 42, map);
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_OLDEST), is(1L));
+        assertThat(buffer.getBufferedDataSize(), is(bufferedDataSize));
+        assertThat(buffer.getAllocatedSize(), is(256L));
+
+        // The tag has no flushable chunk to evict
+        buffer.append("debug.unevictable", 42, map);
+        assertThat(buffer.getUnevictableDropCount(), is(1L));
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_OLDEST), is(1L));
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_NEWEST), is(1L));
+        assertThat(buffer.getBufferedDataSize(), is(bufferedDataSize));
+
+        buffer.flush(new StubSender(), true);
+        assertThat(buffer.getBufferedDataSize(), is(0L));
+    }
+
+    @Test
+    public void testCloseSavesChunksInFlight()
+            throws Exception
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testCloseSavesChunksInFlight" + System.nanoTime());
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        try {
+            final PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            buffer.append("foo", 42, map);
+            long bufferedDataSize = buffer.getBufferedDataSize();
+
+            // The send fails after the close started, as an interrupted flusher does
+            final MockTCPSender sender = new MockTCPSender(24224)
+            {
+                @Override
+                protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                        throws IOException
+                {
+                    sending.countDown();
+                    try {
+                        released.await();
+                    }
+                    catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    throw new IOException("Emulated failure");
+                }
+            };
+            Future<Void> flushFuture = executorService.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws Exception
+                {
+                    buffer.flush(sender, true);
+                    return null;
+                }
+            });
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            Future<Void> closeFuture = executorService.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws Exception
+                {
+                    buffer.close();
+                    return null;
+                }
+            });
+            try {
+                closeFuture.get(200, TimeUnit.MILLISECONDS);
+                fail();
+            }
+            catch (TimeoutException e) {
+                // Expected
+            }
+            released.countDown();
+            try {
+                flushFuture.get(10, TimeUnit.SECONDS);
+                fail();
+            }
+            catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(IOException.class));
+            }
+            closeFuture.get(10, TimeUnit.SECONDS);
+
+            PackedForwardBuffer recoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .createInstance();
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(bufferedDataSize));
+            recoveredBuffer.flush(new StubSender(), true);
+            recoveredBuffer.close();
+        }
+        finally {
+            released.countDown();
+            executorService.shutdownNow();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testRecoveryBypassesOverflowPolicies()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testRecoveryBypassesOverflowPolicies" + System.nanoTime());
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 3; i++) {
+                buffer.append("debug.foo", 42, map);
+            }
+            long bufferedDataSize = buffer.getBufferedDataSize();
+            buffer.close();
+
+            // Every new event would be sampled out
+            PackedForwardBuffer recoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setDefaultOverflowPolicy(OverflowPolicy.SAMPLE)
+                    .setOverflowSamplingThreshold(0)
+                    .setOverflowSamplingRate(0.0f)
+                    .createInstance();
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(bufferedDataSize));
+            assertThat(recoveredBuffer.getOverflowCount(OverflowPolicy.SAMPLE), is(0L));
+
+            recoveredBuffer.flush(new StubSender(), true);
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(0L));
+            recoveredBuffer.close();
+        }
+        finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testTagQuotas()
+            throws IOException
+    {
+        Map<String, TagQuota> tagQuotas = new LinkedHashMap<String, TagQuota>();
+        tagQuotas.put("debug.**", new TagQuota(128));
+        tagQuotas.put("audit.**", new TagQuota(256, 128));
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64)
+                .setChunkRetentionSize(16)
+                .setMaxBufferSize(512)
+                .setTagQuotas(tagQuotas)
+                .setDefaultOverflowPolicy(OverflowPolicy.DROP_NEWEST)
+                .createInstance();
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        for (int i = 0; i < 4; i++) {
+            buffer.append("debug.foo", 42, map);
+        }
+        assertThat(buffer.getTagQuotaUsedSize("debug.foo"), is(128L));
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_NEWEST), is(2L));
+
+        for (int i = 0; i < 8; i++) {
+            buffer.append("other", 42, map);
+        }
+        // 128 bytes are reserved for `audit.**`
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_NEWEST), is(6L));
+
+        buffer.append("audit.login", 42, map);
+        buffer.append("audit.login", 42, map);
+        assertThat(buffer.getTagQuotaUsedSize("audit.login"), is(128L));
+        assertThat(buffer.getOverflowCount(OverflowPolicy.DROP_NEWEST), is(6L));
+
+        buffer.flush(new StubSender(), true);
+        assertThat(buffer.getTagQuotaUsedSize("debug.foo"), is(0L));
+        assertThat(buffer.getTagQuotaUsedSize("audit.login"), is(0L));
+    }
+
+    @Test
+    public void testPriorityClasses()
+            throws IOException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64)
+                .setChunkRetentionSize(16)
+                .setPriorityClasses(Arrays.asList(
+                        new PriorityClass("audit").setTagPatterns(Arrays.asList("audit.**")).setWeight(3)))
+                .createInstance();
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        for (int i = 0; i < 4; i++) {
+            buffer.append("debug.foo", 42, map);
+        }
+        for (int i = 0; i < 4; i++) {
+            buffer.append("audit.login", 42, map);
+        }
+        assertThat(buffer.getFlushableChunkCount("audit"), is(4));
+        assertThat(buffer.getFlushableChunkCount("default"), is(4));
+
+        MockTCPSender sender = new MockTCPSender(24224);
+        buffer.flush(sender, false);
+
+        List<String> tags = new ArrayList<String>();
+        // Each chunk is sent as a pair of a header and a body
+        for (int i = 0; i < sender.getEvents().size(); i += 2) {
+            ByteBuffer header = sender.getEvents().get(i);
+            byte[] headerBytes = new byte[header.remaining()];
+            header.get(headerBytes);
+            MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(headerBytes);
+            unpacker.unpackArrayHeader();
+            tags.add(unpacker.unpackString());
+        }
+        assertThat(tags, is(Arrays.asList(
+                "audit.login", "audit.login", "debug.foo", "audit.login",
+                "audit.login", "debug.foo", "debug.foo", "debug.foo")));
+        assertThat(buffer.getFlushableChunkCount("audit"), is(0));
+        assertThat(buffer.getFlushableChunkCount("default"), is(0));
+    }
+
+    @Test
+    public void testSpillToFile()
+            throws IOException, InterruptedException
+    {
+        String fileBackupPrefix = "testSpillToFile" + System.nanoTime();
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64)
+                .setChunkRetentionSize(16)
+                .setMaxBufferSize(512)
+                .setFileBackupDir(System.getProperty("java.io.tmpdir"))
+                .setFileBackupPrefix(fileBackupPrefix)
+                .setSpillEnabled(true)
+                .setSpillThreshold(0.25f)
+                .createInstance();
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        // Each event is sealed as a 64 bytes chunk. Only 2 chunks are kept in memory
+        for (int i = 0; i < 6; i++) {
+            buffer.append("tag" + i, 42, map);
+        }
+        // The chunks are written by the writer thread
+        long start = System.currentTimeMillis();
+        while (buffer.getSpilledChunkCount() < 4 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        assertThat(buffer.getSpilledChunkCount(), is(4));
+        long bufferedDataSize = buffer.getBufferedDataSize();
+        assertThat(bufferedDataSize, is(greaterThan(0L)));
+
+        MockTCPSender sender = new MockTCPSender(24224);
+        buffer.flush(sender, false);
+        assertThat(buffer.getSpilledChunkCount(), is(0));
+        assertThat(buffer.getBufferedDataSize(), is(0L));
+
+        List<String> tags = new ArrayList<String>();
+        long sentDataSize = 0;
+        for (int i = 0; i < sender.getEvents().size(); i += 2) {
+            ByteBuffer header = sender.getEvents().get(i);
+            byte[] headerBytes = new byte[header.remaining()];
+            header.get(headerBytes);
+            MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(headerBytes);
+            unpacker.unpackArrayHeader();
+            tags.add(unpacker.unpackString());
+            sentDataSize += sender.getEvents().get(i + 1).remaining();
+        }
+        // Oldest first
+        assertThat(tags, is(Arrays.asList("tag0", "tag1", "tag2", "tag3", "tag4", "tag5")));
+        assertThat(sentDataSize, is(bufferedDataSize));
+        buffer.close();
+        assertThat(new PackedForwardBuffer.Config()
+                .setFileBackupDir(System.getProperty("java.io.tmpdir"))
+                .setFileBackupPrefix(fileBackupPrefix)
+                .createInstance()
+                .getBufferedDataSize(), is(0L));
+    }
+
+    @Test
+    public void testJournal()
+            throws IOException, InterruptedException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testJournal" + System.nanoTime());
+        PackedForwardBuffer.Config config = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64)
+                .setChunkRetentionSize(1024)
+                .setFileBackupDir(dir.getAbsolutePath())
+                .setJournalEnabled(true)
+                .setJournalSegmentSize(80)
+                .setJournalForceBytes(1);
+        PackedForwardBuffer crashedBuffer = config.createInstance();
+        PackedForwardBuffer recoveredBuffer = null;
+        try {
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 3; i++) {
+                crashedBuffer.append("foo", 42, map);
+            }
+            // Each segment has only 2 events
+            assertThat(crashedBuffer.getJournalSegmentCount(), is(2));
+            // The committer thread forces the events to the disk
+            assertTrue(crashedBuffer.waitForJournalCommit(5, TimeUnit.SECONDS));
+
+            // Start another buffer without closing the previous one
+            recoveredBuffer = config.createInstance();
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(crashedBuffer.getBufferedDataSize()));
+
+            MockTCPSender sender = new MockTCPSender(24224);
+            recoveredBuffer.flush(sender, true);
+            assertThat(sender.getEvents().size(), is(2));
+            // Only the active segment remains after the chunk is sent
+            assertThat(recoveredBuffer.getJournalSegmentCount(), is(1));
+        }
+        finally {
+            crashedBuffer.close();
+            if (recoveredBuffer != null) {
+                recoveredBuffer.close();
+            }
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testLazyBackupRecovery()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testLazyBackupRecovery" + System.nanoTime());
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 3; i++) {
+                buffer.append("tag" + i, 42, map);
+            }
+            long bufferedDataSize = buffer.getBufferedDataSize();
+            buffer.close();
+            assertThat(dir.listFiles().length, is(3));
+
+            PackedForwardBuffer recoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setLazyBackupRecovery(true)
+                    .createInstance();
+            // Nothing is loaded into memory
+            assertThat(recoveredBuffer.getAllocatedSize(), is(0L));
+            assertThat(recoveredBuffer.getSpilledChunkCount(), is(3));
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(bufferedDataSize));
+
+            MockTCPSender sender = new MockTCPSender(24224);
+            recoveredBuffer.flush(sender, false);
+            assertThat(sender.getEvents().size(), is(6));
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(0L));
+            assertThat(dir.listFiles().length, is(0));
+            recoveredBuffer.close();
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSegmentedFileBackup()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testSegmentedFileBackup" + System.nanoTime());
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setFileBackupSegmentEnabled(true)
+                    .setFileBackupCompressionEnabled(true)
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 3; i++) {
+                buffer.append("tag" + i, 42, map);
+                buffer.append("tag" + i, 43, map);
+            }
+            long bufferedDataSize = buffer.getBufferedDataSize();
+            buffer.close();
+            // A data file and its index
+            assertThat(dir.listFiles().length, is(2));
+
+            PackedForwardBuffer lazilyRecoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setFileBackupSegmentEnabled(true)
+                    .setLazyBackupRecovery(true)
+                    .createInstance();
+            assertThat(lazilyRecoveredBuffer.getSpilledChunkCount(), is(3));
+            assertThat(lazilyRecoveredBuffer.getBufferedDataSize(), is(bufferedDataSize));
+            lazilyRecoveredBuffer.close();
+
+            PackedForwardBuffer recoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setFileBackupSegmentEnabled(true)
+                    .createInstance();
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(bufferedDataSize));
+            // The segment is removed once all the chunks are loaded
+            assertThat(dir.listFiles().length, is(0));
+
+            MockTCPSender sender = new MockTCPSender(24224);
+            recoveredBuffer.flush(sender, true);
+            assertThat(sender.getEvents().size(), is(6));
+            recoveredBuffer.close();
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testThrottledBacklogReplay()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testThrottledBacklogReplay" + System.nanoTime());
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 3; i++) {
+                buffer.append("backlog" + i, 42, map);
+            }
+            buffer.close();
+
+            PackedForwardBuffer recoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setLazyBackupRecovery(true)
+                    .setBacklogReplayBytesPerSecond(1)
+                    .setBacklogReplayShare(0.5f)
+                    .createInstance();
+            long backlogSize = recoveredBuffer.getBacklogSize();
+            assertThat(backlogSize, is(greaterThan(0L)));
+            // Estimated from `backlogReplayBytesPerSecond`
+            assertThat(recoveredBuffer.getBacklogDrainEtaMillis(), is(backlogSize * 1000));
+
+            for (int i = 0; i < 2; i++) {
+                recoveredBuffer.append("live" + i, 42, map);
+            }
+            MockTCPSender sender = new MockTCPSender(24224);
+            recoveredBuffer.flush(sender, true);
+
+            // Only one backlog chunk fits in the rate limit, and it's sent between the live chunks
+            List<String> tags = new ArrayList<String>();
+            for (int i = 0; i < sender.getEvents().size(); i += 2) {
+                ByteBuffer header = sender.getEvents().get(i);
+                byte[] bytes = new byte[header.remaining()];
+                header.get(bytes);
+                MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(bytes);
+                unpacker.unpackArrayHeader();
+                tags.add(unpacker.unpackString());
+            }
+            assertThat(tags.size(), is(3));
+            assertThat(tags.get(0).startsWith("live"), is(true));
+            assertThat(tags.get(1).startsWith("backlog"), is(true));
+            assertThat(tags.get(2).startsWith("live"), is(true));
+            assertThat(recoveredBuffer.getSpilledChunkCount(), is(2));
+            assertThat(recoveredBuffer.getBacklogSize(), is(lessThan(backlogSize)));
+            assertThat(recoveredBuffer.getBacklogDrainEtaMillis(), is(greaterThan(0L)));
+            recoveredBuffer.close();
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testStripedFileBackup()
+            throws IOException
+    {
+        File baseDir = new File(System.getProperty("java.io.tmpdir"), "testStripedFileBackup" + System.nanoTime());
+        baseDir.mkdir();
+        File dir0 = new File(baseDir, "disk0");
+        File dir1 = new File(baseDir, "disk1");
+        List<String> dirs = Arrays.asList(dir0.getAbsolutePath(), dir1.getAbsolutePath());
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDirs(dirs)
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            for (int i = 0; i < 4; i++) {
+                buffer.append("tag" + i, 42, map);
+            }
+            long bufferedDataSize = buffer.getBufferedDataSize();
+            buffer.close();
+            assertThat(dir0.listFiles().length, is(2));
+            assertThat(dir1.listFiles().length, is(2));
+
+            PackedForwardBuffer recoveredBuffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDirs(dirs)
+                    .createInstance();
+            assertThat(recoveredBuffer.getBufferedDataSize(), is(bufferedDataSize));
+            assertThat(dir0.listFiles().length, is(0));
+            assertThat(dir1.listFiles().length, is(0));
+
+            MockTCPSender sender = new MockTCPSender(24224);
+            recoveredBuffer.flush(sender, true);
+            assertThat(sender.getEvents().size(), is(8));
+            recoveredBuffer.close();
+        }
+        finally {
+            for (File dir : new File[] {dir0, dir1}) {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+            baseDir.delete();
+        }
+    }
+
+    @Test
+    public void testAckLedger()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testAckLedger" + System.nanoTime());
+        dir.mkdir();
+        try {
+            // A chunk which was in flight when the previous process crashed
+            AckLedger ackLedger = new AckLedger(dir, null, 1000);
+            ackLedger.add("in-flight-chunk", "foo", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+            ackLedger.close();
+
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setAckResponseMode(true)
+                    .setAckLedgerEnabled(true)
+                    .createInstance();
+            assertThat(buffer.getBufferedDataSize(), is(3L));
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            buffer.append("bar", 42, map);
+
+            final List<String> ackTokens = new ArrayList<String>();
+            MockTCPSender sender = new MockTCPSender(24224)
+            {
+                @Override
+                protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                        throws IOException
+                {
+                    ackTokens.add(new String(ackToken, "UTF-8"));
+                    super.sendInternal(dataList, ackToken);
+                }
+            };
+            buffer.flush(sender, true);
+            assertThat(ackTokens.size(), is(2));
+            // Resent with the original chunk id
+            assertThat(ackTokens.get(0), is("in-flight-chunk"));
+            assertThat(buffer.getBufferedDataSize(), is(0L));
+            buffer.close();
+            assertThat(dir.listFiles().length, is(0));
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAckLedgerWithJournal()
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testAckLedgerWithJournal" + System.nanoTime());
+        try {
+            new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setAckResponseMode(true)
+                    .setAckLedgerEnabled(true)
+                    .setJournalEnabled(true)
+                    .createInstance();
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        finally {
+            // Rejected before the journal is opened
+            File[] files = dir.listFiles();
+            assertThat(files == null ? 0 : files.length, is(0));
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testAckLedgerKeepsChunkAfterFailedSend()
+            throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testAckLedger" + System.nanoTime());
+        dir.mkdir();
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setFileBackupDir(dir.getAbsolutePath())
+                    .setAckResponseMode(true)
+                    .setAckLedgerEnabled(true)
+                    .createInstance();
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put("name", "komamitsu");
+            buffer.append("foo", 42, map);
+
+            final List<String> ackTokens = new ArrayList<String>();
+            final AtomicBoolean failing = new AtomicBoolean(true);
+            MockTCPSender sender = new MockTCPSender(24224)
+            {
+                @Override
+                protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                        throws IOException
+                {
+                    ackTokens.add(new String(ackToken, "UTF-8"));
+                    if (failing.get()) {
+                        throw new IOException("Emulated failure");
+                    }
+                    super.sendInternal(dataList, ackToken);
+                }
+            };
+            try {
+                buffer.flush(sender, true);
+                fail();
+            }
+            catch (IOException e) {
+                // Expected
+            }
+            File ledgerFile = new File(dir, "ack_ledger.log");
+            long ledgerSize = ledgerFile.length();
+            assertThat(ledgerSize > 0, is(true));
+
+            // The chunk is resent with the same chunk id and its data isn't written to the ledger again
+            try {
+                buffer.flush(sender, true);
+                fail();
+            }
+            catch (IOException e) {
+                // Expected
+            }
+            assertThat(ledgerFile.length(), is(ledgerSize));
+
+            failing.set(false);
+            buffer.flush(sender, true);
+            assertThat(ackTokens.size(), is(3));
+            assertThat(ackTokens.get(1), is(ackTokens.get(0)));
+            assertThat(ackTokens.get(2), is(ackTokens.get(0)));
+            assertThat(ledgerFile.length(), is(0L));
+            buffer.close();
+        }
+        finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+}
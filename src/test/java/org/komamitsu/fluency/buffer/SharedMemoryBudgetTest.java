@@ -0,0 +1,56 @@
+package org.komamitsu.fluency.buffer;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class SharedMemoryBudgetTest
+{
+    @Test
+    public void testReservationAndFairShare()
+    {
+        SharedMemoryBudget budget = new SharedMemoryBudget(1024);
+        BufferPool poolA = new BufferPool(128, 4096, true, budget, 256);
+        BufferPool poolB = new BufferPool(128, 4096, true, budget, 256);
+
+        // poolA uses its reservation and all the shared part
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (int i = 0; i < 6; i++) {
+            buffers.add(poolA.acquireBuffer(128));
+        }
+        assertNull(poolA.acquireBuffer(128));
+        assertEquals(768, budget.getUsedSize());
+
+        // poolB can always use its reservation
+        assertNotNull(poolB.acquireBuffer(128));
+        assertNotNull(poolB.acquireBuffer(128));
+        // poolA's chunks are in use, so nothing can be reclaimed
+        assertNull(poolB.acquireBuffer(128));
+
+        // Once poolA returns its chunks, poolB reclaims them since poolA is over its fair share
+        for (ByteBuffer buffer : buffers) {
+            poolA.returnBuffer(buffer);
+        }
+        assertNotNull(poolB.acquireBuffer(128));
+        assertEquals(0, poolA.getAllocatedSize());
+        assertEquals(384, budget.getUsedSize());
+
+        poolB.close();
+        assertEquals(0, budget.getUsedSize());
+        assertEquals(256, budget.getReservedSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLargeReservation()
+    {
+        SharedMemoryBudget budget = new SharedMemoryBudget(1024);
+        new BufferPool(128, 4096, true, budget, 768);
+        new BufferPool(128, 4096, true, budget, 512);
+    }
+}
@@ -0,0 +1,62 @@
+package org.komamitsu.fluency.buffer;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TagQuotasTest
+{
+    @Test
+    public void testTryAcquireAndRelease()
+    {
+        Map<String, TagQuota> quotas = new LinkedHashMap<String, TagQuota>();
+        quotas.put("debug.**", new TagQuota(100));
+        quotas.put("audit.**", new TagQuota(200, 100));
+        TagQuotas tagQuotas = new TagQuotas(quotas, 300);
+
+        assertTrue(tagQuotas.tryAcquire("debug.foo", 64));
+        // Tags matching the same pattern share the quota
+        assertFalse(tagQuotas.tryAcquire("debug.bar", 64));
+        assertEquals(64, tagQuotas.getUsedSize("debug.bar"));
+
+        // The reserved size for `audit.**` can't be used by other tags
+        assertFalse(tagQuotas.tryAcquire("other", 150));
+        assertTrue(tagQuotas.tryAcquire("other", 128));
+        assertTrue(tagQuotas.tryAcquire("audit.login", 100));
+        assertFalse(tagQuotas.tryAcquire("audit.login", 64));
+
+        tagQuotas.release("debug.foo", 64);
+        assertEquals(0, tagQuotas.getUsedSize("debug.foo"));
+        assertTrue(tagQuotas.tryAcquire("audit.login", 64));
+        assertEquals(164, tagQuotas.getUsedSize("audit.login"));
+    }
+
+    @Test
+    public void testTryAcquireWithShrunkMaxBufferSize()
+    {
+        Map<String, TagQuota> quotas = new LinkedHashMap<String, TagQuota>();
+        quotas.put("audit.**", new TagQuota(200, 100));
+        TagQuotas tagQuotas = new TagQuotas(quotas, 300);
+
+        // The reserved size for `audit.**` is kept out of the current limit, not `maxBufferSize`
+        assertFalse(tagQuotas.tryAcquire("other", 64, 150));
+        assertTrue(tagQuotas.tryAcquire("other", 32, 150));
+        assertTrue(tagQuotas.tryAcquire("audit.login", 100, 150));
+        assertFalse(tagQuotas.tryAcquire("audit.login", 32, 150));
+        assertTrue(tagQuotas.tryAcquire("audit.login", 32, 300));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooLargeReservedSize()
+    {
+        Map<String, TagQuota> quotas = new LinkedHashMap<String, TagQuota>();
+        quotas.put("audit.**", new TagQuota(200, 200));
+        quotas.put("security.**", new TagQuota(200, 200));
+        new TagQuotas(quotas, 300);
+    }
+}
@@ -0,0 +1,63 @@
+package org.komamitsu.fluency.flusher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveFlushPolicyTest
+{
+    private AdaptiveFlushPolicy createPolicy()
+    {
+        return new AdaptiveFlushPolicy.Config()
+                .setTargetLatencyMillis(1000)
+                .setTargetChunkSize(1024 * 1024)
+                .setMinChunkRetentionSize(64 * 1024)
+                .setSmoothingFactor(1)
+                .createInstance(600);
+    }
+
+    @Test
+    public void testHighVolume()
+    {
+        AdaptiveFlushPolicy policy = createPolicy();
+        assertEquals(600, policy.getFlushIntervalMillis());
+        assertFalse(policy.update(0, 0));
+        assertFalse(policy.update(50, 1024));
+
+        assertTrue(policy.update(1000, 10 * 1024 * 1024));
+        assertEquals(250, policy.getFlushIntervalMillis());
+        assertEquals(750, policy.getChunkRetentionTimeMillis());
+        // 7.5MB would be emitted within the retention time
+        assertEquals(1024 * 1024, policy.getChunkRetentionSize());
+    }
+
+    @Test
+    public void testLowVolume()
+    {
+        AdaptiveFlushPolicy policy = createPolicy();
+        policy.update(0, 0);
+        assertTrue(policy.update(1000, 200 * 1024));
+        assertEquals(150 * 1024, policy.getChunkRetentionSize());
+
+        assertTrue(policy.update(2000, 201 * 1024));
+        assertEquals(64 * 1024, policy.getChunkRetentionSize());
+    }
+
+    @Test
+    public void testSlowSender()
+    {
+        AdaptiveFlushPolicy policy = createPolicy();
+        policy.update(0, 0);
+        policy.recordSendLatency(600);
+        assertTrue(policy.update(1000, 10 * 1024 * 1024));
+        assertEquals(100, policy.getFlushIntervalMillis());
+        assertEquals(300, policy.getChunkRetentionTimeMillis());
+
+        policy.recordSendLatency(5000);
+        assertTrue(policy.update(2000, 20 * 1024 * 1024));
+        assertEquals(20, policy.getFlushIntervalMillis());
+        assertEquals(20, policy.getChunkRetentionTimeMillis());
+    }
+}
@@ -1,11 +1,25 @@
 package org.komamitsu.fluency.flusher;
 
 import org.junit.Test;
+import org.komamitsu.fluency.buffer.PackedForwardBuffer;
+import org.komamitsu.fluency.buffer.PriorityClass;
 import org.komamitsu.fluency.buffer.TestableBuffer;
 import org.komamitsu.fluency.sender.MockTCPSender;
+import org.komamitsu.fluency.sender.Sender;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -43,4 +57,247 @@ public class AsyncFlusherTest
         assertEquals(flushCount, buffer.getFlushCount().get());
         assertEquals(forceFlushCount + 1, buffer.getForceFlushCount().get());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testWakeupOnChunkSealed()
+            throws IOException, InterruptedException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(1024)
+                .setChunkRetentionSize(1024)
+                .createInstance();
+        MockTCPSender sender = new MockTCPSender(24225);
+        Flusher flusher = new AsyncFlusher.Config().setFlushIntervalMillis(10000).createInstance(buffer, sender);
+        try {
+            // Wait for the first poll so that the wakeup isn't confused with the startup
+            TimeUnit.MILLISECONDS.sleep(100);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("name", "komamitsu");
+            // Exceeds `chunkRetentionSize`
+            for (int i = 0; i < 100; i++) {
+                buffer.append("foo.bar", 42, data);
+                flusher.onUpdate();
+            }
+
+            long start = System.currentTimeMillis();
+            while (sender.getEvents().isEmpty() && System.currentTimeMillis() - start < 2000) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+        finally {
+            flusher.close();
+        }
+    }
+
+    @Test
+    public void testWakeupOnMaxLatencyDeadline()
+            throws IOException, InterruptedException
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(64)
+                .setChunkRetentionSize(1024)
+                .setPriorityClasses(Arrays.asList(
+                        new PriorityClass("audit").setTagPatterns(Arrays.asList("audit.**")).setMaxLatencyMillis(200)))
+                .createInstance();
+        MockTCPSender sender = new MockTCPSender(24225);
+        Flusher flusher = new AsyncFlusher.Config().setFlushIntervalMillis(10000).createInstance(buffer, sender);
+        try {
+            // Wait for the first poll so that the wakeup isn't confused with the startup
+            TimeUnit.MILLISECONDS.sleep(100);
+            Map<String, Object> data = new HashMap<String, Object>();
+            data.put("name", "komamitsu");
+            // Expands the chunk without sealing it
+            for (int i = 0; i < 8; i++) {
+                buffer.append("audit.login", 42, data);
+            }
+            assertTrue(buffer.getNextFlushDeadlineMillis() <= System.currentTimeMillis() + 201);
+
+            long start = System.currentTimeMillis();
+            while (sender.getEvents().isEmpty() && System.currentTimeMillis() - start < 2000) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        }
+        finally {
+            flusher.close();
+        }
+    }
+
+    // Records the sequence numbers of events per tag, taking a while for each chunk like a slow round trip
+    private static class SlowSender
+            extends MockTCPSender
+    {
+        private final Map<String, List<Integer>> receivedSeqs;
+        private final AtomicInteger concurrency;
+        private final AtomicInteger maxConcurrency;
+
+        SlowSender(Map<String, List<Integer>> receivedSeqs, AtomicInteger concurrency, AtomicInteger maxConcurrency)
+                throws IOException
+        {
+            super(24225);
+            this.receivedSeqs = receivedSeqs;
+            this.concurrency = concurrency;
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        private static byte[] toBytes(ByteBuffer byteBuffer)
+        {
+            ByteBuffer duplicated = byteBuffer.duplicate();
+            byte[] bytes = new byte[duplicated.remaining()];
+            duplicated.get(bytes);
+            return bytes;
+        }
+
+        @Override
+        protected void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                throws IOException
+        {
+            int current = concurrency.incrementAndGet();
+            try {
+                synchronized (maxConcurrency) {
+                    maxConcurrency.set(Math.max(maxConcurrency.get(), current));
+                }
+                MessageUnpacker headerUnpacker = MessagePack.newDefaultUnpacker(toBytes(dataList.get(0)));
+                headerUnpacker.unpackArrayHeader();
+                String tag = headerUnpacker.unpackString();
+                List<Integer> seqs = new ArrayList<Integer>();
+                MessageUnpacker dataUnpacker = MessagePack.newDefaultUnpacker(toBytes(dataList.get(1)));
+                while (dataUnpacker.hasNext()) {
+                    dataUnpacker.unpackArrayHeader();
+                    dataUnpacker.unpackValue();
+                    dataUnpacker.unpackMapHeader();
+                    dataUnpacker.unpackString();
+                    seqs.add(dataUnpacker.unpackInt());
+                }
+                TimeUnit.MILLISECONDS.sleep(20);
+                List<Integer> received = receivedSeqs.get(tag);
+                synchronized (received) {
+                    received.addAll(seqs);
+                }
+            }
+            catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            finally {
+                concurrency.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelFlushWorkers()
+            throws IOException, InterruptedException
+    {
+        final Map<String, List<Integer>> receivedSeqs = new ConcurrentHashMap<String, List<Integer>>();
+        final AtomicInteger concurrency = new AtomicInteger();
+        final AtomicInteger maxConcurrency = new AtomicInteger();
+        int tagCount = 4;
+        int eventCount = 200;
+        for (int i = 0; i < tagCount; i++) {
+            receivedSeqs.put("tag" + i, new ArrayList<Integer>());
+        }
+
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                .setChunkInitialSize(256)
+                .setChunkRetentionSize(256)
+                .createInstance();
+        Flusher flusher = new AsyncFlusher.Config()
+                .setFlushWorkerCount(4)
+                .setWorkerSenderConfig(new Sender.Instantiator()
+                {
+                    @Override
+                    public Sender createInstance()
+                    {
+                        try {
+                            return new SlowSender(receivedSeqs, concurrency, maxConcurrency);
+                        }
+                        catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                })
+                .createInstance(buffer, new SlowSender(receivedSeqs, concurrency, maxConcurrency));
+        try {
+            Map<String, Object> data = new HashMap<String, Object>();
+            for (int seq = 0; seq < eventCount; seq++) {
+                for (int i = 0; i < tagCount; i++) {
+                    data.put("seq", seq);
+                    buffer.append("tag" + i, 42, data);
+                }
+            }
+            flusher.flush();
+
+            long start = System.currentTimeMillis();
+            while (buffer.getBufferedDataSize() > 0 && System.currentTimeMillis() - start < 10000) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        }
+        finally {
+            flusher.close();
+        }
+
+        assertTrue(maxConcurrency.get() > 1);
+        for (int i = 0; i < tagCount; i++) {
+            List<Integer> seqs = receivedSeqs.get("tag" + i);
+            assertEquals(eventCount, seqs.size());
+            for (int seq = 0; seq < eventCount; seq++) {
+                assertEquals(seq, (int) seqs.get(seq));
+            }
+        }
+    }
+
+    @Test
+    public void testCloseWithDeadline()
+            throws IOException
+    {
+        File backupDir = new File(System.getProperty("java.io.tmpdir"), "testCloseWithDeadline" + System.nanoTime());
+        backupDir.mkdir();
+        final AtomicInteger sentChunkCount = new AtomicInteger();
+        Sender sender = new MockTCPSender(24225)
+        {
+            @Override
+            protected void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                    throws IOException
+            {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                sentChunkCount.incrementAndGet();
+            }
+        };
+        try {
+            PackedForwardBuffer buffer = new PackedForwardBuffer.Config()
+                    .setChunkInitialSize(256)
+                    .setChunkRetentionSize(256)
+                    .setFileBackupDir(backupDir.getAbsolutePath())
+                    .createInstance();
+            Flusher flusher = new AsyncFlusher.Config().createInstance(buffer, sender);
+            Map<String, Object> data = new HashMap<String, Object>();
+            for (int seq = 0; seq < 200; seq++) {
+                for (int i = 0; i < 4; i++) {
+                    data.put("seq", seq);
+                    buffer.append("tag" + i, 42, data);
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            flusher.close(1, TimeUnit.SECONDS);
+            long duration = System.currentTimeMillis() - start;
+            assertTrue(duration < 2000);
+            assertTrue(flusher.isTerminated());
+            // What couldn't be sent in time is saved in the backup directory
+            assertTrue(sentChunkCount.get() > 0);
+            assertTrue(backupDir.listFiles().length > 0);
+        }
+        finally {
+            for (File file : backupDir.listFiles()) {
+                file.delete();
+            }
+            backupDir.delete();
+        }
+    }
+}
@@ -1,10 +1,20 @@
 package org.komamitsu.fluency.flusher;
 
 import org.junit.Test;
+import org.komamitsu.fluency.buffer.PackedForwardBuffer;
 import org.komamitsu.fluency.buffer.TestableBuffer;
 import org.komamitsu.fluency.sender.MockTCPSender;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -44,4 +54,73 @@ public class SyncFlusherTest
         assertEquals(1, buffer.getFlushCount().get());
         assertEquals(3 + 1, buffer.getForceFlushCount().get());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testNonBlockingFlushWithBudget()
+            throws Exception
+    {
+        PackedForwardBuffer buffer = new PackedForwardBuffer.Config().setChunkInitialSize(1024).createInstance();
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch releaseSender = new CountDownLatch(1);
+        MockTCPSender sender = new MockTCPSender(24225)
+        {
+            @Override
+            protected synchronized void sendInternal(List<ByteBuffer> dataList, byte[] ackToken)
+                    throws IOException
+            {
+                sending.countDown();
+                try {
+                    releaseSender.await();
+                }
+                catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.sendInternal(dataList, ackToken);
+            }
+        };
+        final Flusher flusher = new SyncFlusher.Config()
+                .setFlushIntervalMillis(10)
+                .setNonBlockingFlush(true)
+                .setFlushBudgetBytes(1)
+                .createInstance(buffer, sender);
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        for (int i = 0; i < 4; i++) {
+            buffer.append("tag" + i, 42, map);
+        }
+        TimeUnit.MILLISECONDS.sleep(20);
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Void> future = executorService.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                flusher.onUpdate();
+                return null;
+            }
+        });
+        assertTrue(sending.await(5, TimeUnit.SECONDS));
+        // Another thread doesn't wait for the flushing thread
+        long start = System.currentTimeMillis();
+        flusher.onUpdate();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, sender.getEvents().size());
+
+        releaseSender.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        executorService.shutdown();
+        // The flush stopped after one chunk due to the budget
+        assertEquals(2, sender.getEvents().size());
+
+        // The rest is sent one chunk per update
+        for (int i = 2; i <= 4; i++) {
+            flusher.onUpdate();
+            assertEquals(i * 2, sender.getEvents().size());
+        }
+        assertEquals(0, buffer.getBufferedDataSize());
+        flusher.close();
+    }
+}
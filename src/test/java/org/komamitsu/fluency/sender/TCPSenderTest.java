@@ -4,11 +4,15 @@ import org.hamcrest.Matcher;
 import org.junit.Test;
 import org.komamitsu.fluency.MockTCPServer;
 import org.komamitsu.fluency.sender.heartbeat.TCPHeartbeater;
+import org.komamitsu.fluency.util.ExecutorFactories;
+import org.komamitsu.fluency.util.PlatformExecutorFactory;
 import org.komamitsu.fluency.util.Tuple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
@@ -188,6 +192,41 @@ public class TCPSenderTest
         }
     }
 
+    @Test
+    public void testReadTimeoutWithBlockingReadOnCaller()
+            throws IOException
+    {
+        MockTCPServer server = new MockTCPServer();
+        server.start();
+        ExecutorFactories.setDefault(new PlatformExecutorFactory()
+        {
+            @Override
+            public boolean isBlockingReadOnCallerPreferred()
+            {
+                return true;
+            }
+        });
+        try {
+            TCPSender sender = new TCPSender.Config().setPort(server.getLocalPort()).setReadTimeoutMilli(1000).createInstance();
+            long start = System.currentTimeMillis();
+            try {
+                sender.sendWithAck(Arrays.asList(ByteBuffer.wrap("hello, world".getBytes("UTF-8"))), "Waiting ack forever".getBytes("UTF-8"));
+                fail();
+            }
+            catch (SocketTimeoutException e) {
+                long duration = System.currentTimeMillis() - start;
+                assertTrue(duration >= 900 && duration < 2000);
+            }
+            finally {
+                sender.close();
+            }
+        }
+        finally {
+            ExecutorFactories.setDefault(null);
+            server.stop();
+        }
+    }
+
     @Test
     public void testClose()
             throws IOException, InterruptedException, TimeoutException, ExecutionException
@@ -220,13 +259,38 @@ public class TCPSenderTest
                 }
             });
             future.get(3000, TimeUnit.MILLISECONDS);
-            assertTrue(duration.get() > 1000 && duration.get() < 2000);
+            // The server closes the connection right after reading all the data
+            assertTrue(duration.get() < 1000);
         }
         finally {
             server.stop();
         }
     }
 
+    @Test
+    public void testCloseWithServerNotClosingConnection()
+            throws IOException
+    {
+        ServerSocket serverSocket = new ServerSocket(0);
+        try {
+            TCPSender sender = new TCPSender.Config().setPort(serverSocket.getLocalPort()).setWaitBeforeCloseMilli(1500).createInstance();
+            sender.send(Arrays.asList(ByteBuffer.wrap("hello, world".getBytes("UTF-8"))));
+            Socket accepted = serverSocket.accept();
+            try {
+                long start = System.currentTimeMillis();
+                sender.close(500, TimeUnit.MILLISECONDS);
+                long duration = System.currentTimeMillis() - start;
+                assertTrue(duration >= 400 && duration < 1000);
+            }
+            finally {
+                accepted.close();
+            }
+        }
+        finally {
+            serverSocket.close();
+        }
+    }
+
     @Test
     public void testConfig()
     {
@@ -0,0 +1,57 @@
+package org.komamitsu.fluency.util;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TagPatternTest
+{
+    @Test
+    public void testMatches()
+    {
+        assertTrue(new TagPattern("foo.bar").matches("foo.bar"));
+        assertFalse(new TagPattern("foo.bar").matches("foo.bar.baz"));
+        assertFalse(new TagPattern("foo.bar").matches("foo"));
+
+        assertTrue(new TagPattern("foo.*").matches("foo.bar"));
+        assertFalse(new TagPattern("foo.*").matches("foo.bar.baz"));
+        assertFalse(new TagPattern("foo.*").matches("foo"));
+
+        assertTrue(new TagPattern("foo.b*").matches("foo.bar"));
+        assertFalse(new TagPattern("foo.b*").matches("foo.car"));
+
+        assertTrue(new TagPattern("foo.**").matches("foo"));
+        assertTrue(new TagPattern("foo.**").matches("foo.bar"));
+        assertTrue(new TagPattern("foo.**").matches("foo.bar.baz"));
+        assertFalse(new TagPattern("foo.**").matches("bar.foo"));
+
+        assertTrue(new TagPattern("**").matches("foo.bar"));
+        assertTrue(new TagPattern("**.baz").matches("foo.bar.baz"));
+        assertTrue(new TagPattern("foo.**.baz").matches("foo.baz"));
+        assertTrue(new TagPattern("foo.**.baz").matches("foo.bar.qux.baz"));
+        assertFalse(new TagPattern("foo.**.baz").matches("foo.bar.qux"));
+    }
+
+    @Test
+    public void testTagMatcher()
+    {
+        Map<String, Integer> patterns = new LinkedHashMap<String, Integer>();
+        patterns.put("audit.**", 1);
+        patterns.put("**", 2);
+        TagMatcher<Integer> matcher = new TagMatcher<Integer>(patterns);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(Integer.valueOf(1), matcher.match("audit.login"));
+            assertEquals(Integer.valueOf(2), matcher.match("debug.foo"));
+        }
+
+        TagMatcher<Integer> emptyMatcher = new TagMatcher<Integer>(new LinkedHashMap<String, Integer>());
+        assertNull(emptyMatcher.match("foo"));
+        assertEquals(Integer.valueOf(42), emptyMatcher.match("foo", 42));
+    }
+}